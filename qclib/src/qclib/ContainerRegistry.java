@@ -0,0 +1,147 @@
+package qclib;
+
+import java.util.Arrays;
+
+/**
+ * Which container of a QubitRegister holds each qubit, and at which bit, in primitive arrays.
+ * Each live container has a small integer id, reused once the container is removed;
+ *   there are never more containers than qubits, so the arrays never grow.
+ * Lookups (qubit -> id, bit, container) are array reads.  union relabels the qubits of the merged containers
+ *   right away instead of linking their roots, since every one of them gets a new bit anyway.
+ */
+final class ContainerRegistry {
+	/** Qubit -> id of its container */
+	private final int[] idOf;
+	/** Qubit -> its bit in its container */
+	private final int[] bitOf;
+	/** Id -> container, or null if the id is free */
+	private final QubitContainer[] containers;
+	/** Id -> its qubits, in bit order */
+	private final int[][] qubitsOf;
+	/** Stack of free ids */
+	private final int[] free;
+	private int numFree;
+	/** distinct marks the ids it has seen with the current stamp */
+	private final int[] seen;
+	private int stamp;
+	/** Result of the last call to distinct */
+	private final int[] distinct;
+
+	/** Empty: call add for each qubit. */
+	ContainerRegistry(int numqubits) {
+		idOf = new int[numqubits];
+		bitOf = new int[numqubits];
+		containers = new QubitContainer[numqubits];
+		qubitsOf = new int[numqubits][];
+		free = new int[numqubits];
+		for (int id=0; id < numqubits; id++)
+			free[numFree++] = numqubits-1-id; // hand out low ids first
+		seen = new int[numqubits];
+		distinct = new int[numqubits];
+	}
+
+	/** Ids are in [0, capacity()); see get. */
+	int capacity() { return containers.length; }
+
+	/** The container with this id, or null if none */
+	QubitContainer get(int id) { return containers[id]; }
+
+	/** Qubits of container id, in bit order.  Shared; do not modify. */
+	int[] qubits(int id) { return qubitsOf[id]; }
+
+	int id(int qubit) { return idOf[qubit]; }
+
+	int bit(int qubit) { return bitOf[qubit]; }
+
+	QubitContainer container(int qubit) { return containers[idOf[qubit]]; }
+
+	/**
+	 * Registers qc as holding qubits, qubits[i] at bit i.  The qubits must be out of any other container.
+	 * @param qubits kept, not copied
+	 * @return the id of qc
+	 */
+	int add(QubitContainer qc, int[] qubits) {
+		int id = free[--numFree];
+		containers[id] = qc;
+		setQubits(id, qubits);
+		return id;
+	}
+
+	/** Container id now holds qubits[i] at bit i, for the same set of qubits.  qubits is kept, not copied. */
+	void setQubits(int id, int[] qubits) {
+		qubitsOf[id] = qubits;
+		for (int i=0; i < qubits.length; i++) {
+			idOf[qubits[i]] = id;
+			bitOf[qubits[i]] = i;
+		}
+	}
+
+	/** Frees id; its qubits must be added to other containers next.  @return the container it had */
+	QubitContainer remove(int id) {
+		QubitContainer qc = containers[id];
+		containers[id] = null;
+		qubitsOf[id] = null;
+		free[numFree++] = id;
+		return qc;
+	}
+
+	/**
+	 * Replaces containers ids[0..count) by qcnew, which holds their qubits in that order:
+	 *   those of ids[0] in the low bits, then those of ids[1], and so on.
+	 * Does not close the old containers.
+	 * @return the id of qcnew
+	 */
+	int union(int[] ids, int count, QubitContainer qcnew) {
+		int[] qubits = new int[qcnew.getNumbits()];
+		int n = 0;
+		for (int j=0; j < count; j++) {
+			int[] part = qubitsOf[ids[j]];
+			System.arraycopy(part, 0, qubits, n, part.length);
+			n += part.length;
+			remove(ids[j]);
+		}
+		assert n == qubits.length;
+		return add(qcnew, qubits);
+	}
+
+	/**
+	 * Replaces container id by rest, holding its qubits other than qubit in the same order, and single, holding qubit.
+	 * Does not close the old container.
+	 * @return the id of rest
+	 */
+	int split(int id, int qubit, QubitContainer rest, QubitContainer single) {
+		int[] previous = qubitsOf[id];
+		int[] remaining = new int[previous.length-1];
+		for (int i=0, j=0; i < previous.length; i++)
+			if (previous[i] != qubit)
+				remaining[j++] = previous[i];
+		remove(id);
+		int ret = add(rest, remaining);
+		add(single, new int[] {qubit});
+		return ret;
+	}
+
+	/**
+	 * The ids of the containers holding qubits, each once, in order of first appearance:
+	 *   distinctIds()[0..return value).  Does not allocate.
+	 */
+	int distinct(int[] qubits) {
+		if (++stamp == 0) {
+			Arrays.fill(seen, 0);
+			stamp = 1;
+		}
+		int count = 0;
+		for (int q : qubits) {
+			int id = idOf[q];
+			if (seen[id] != stamp) {
+				seen[id] = stamp;
+				distinct[count++] = id;
+			}
+		}
+		return count;
+	}
+
+	/** Result of the last call to distinct.  Shared, and overwritten by the next call. */
+	int[] distinctIds() { return distinct; }
+
+}
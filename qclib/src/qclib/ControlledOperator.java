@@ -0,0 +1,153 @@
+package qclib;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.complex.ComplexField;
+import org.apache.commons.math3.linear.ArrayFieldVector;
+import org.apache.commons.math3.linear.FieldVector;
+
+import qclib.store.AmplitudeStore;
+import qclib.util.IndexIterator;
+import qclib.util.QuantumUtil;
+
+/**
+ * An Operator that applies a gate to some of its bits only when all of its control bits are |1>.
+ * Ex. CNOT is new ControlledOperator(new X(), 1): bit 0 is the target of X, bit 1 is the control.
+ * 	   Toffoli is new ControlledOperator(new X(), 0, 1): bits 0 and 1 are controls, bit 2 is the target.
+ *
+ * When applied to an AmplitudeStore, only the amplitudes whose control bits are all set are read or written.
+ * Controls nest: a ControlledOperator around a ControlledOperator passes both sets of controls to the inner gate.
+ */
+public class ControlledOperator extends Operator {
+	/** The operator applied when the controls are all |1> */
+	private final Operator gate;
+	/** Positions of the control bits among {0,1,...,arity-1} */
+	private final int[] controlbits;
+	/** The remaining positions, in order; gatebits[i] is passed to bit i of gate */
+	private final int[] gatebits;
+	/** OR of 1<<controlbits[i] */
+	private final int localcontrolmask;
+	/** Diagonal of this operator if gate is diagonal, else null */
+	private final double[] diagonal;
+	/** Permutation of this operator if gate is a permutation, else null */
+	private final int[] permutation;
+
+	/**
+	 * @param gate the operator to control
+	 * @param controlbits which bits among {0,1,...,gate.getArity()+controlbits.length-1} are controls.
+	 * 		The rest are passed to gate in increasing order.
+	 */
+	public ControlledOperator(Operator gate, int... controlbits) {
+		super(gate.getArity() + controlbits.length);
+		if (controlbits.length == 0)
+			throw new IllegalArgumentException("need at least one control bit");
+		checkSetUniquelyK(false, getArity(), controlbits);
+		this.gate = gate;
+		this.controlbits = controlbits.clone();
+
+		int mask = 0;
+		for (int cb : controlbits)
+			mask |= 1<<cb;
+		this.localcontrolmask = mask;
+		this.gatebits = new int[gate.getArity()];
+		for (int b=0, j=0; b < getArity(); b++)
+			if ((mask & (1<<b)) == 0)
+				gatebits[j++] = b;
+		
+		// a controlled diagonal is diagonal: 1 where the controls are not all set
+		double[] gatediag = gate.getDiagonal();
+		if (gatediag != null) {
+			diagonal = new double[2<<getArity()];
+			for (int l=0; l < 1<<getArity(); l++) {
+				if ((l & mask) == mask) {
+					int g = QuantumUtil.extractBits(l, gatebits);
+					diagonal[2*l] = gatediag[2*g];
+					diagonal[2*l+1] = gatediag[2*g+1];
+				} else
+					diagonal[2*l] = 1;
+			}
+		} else
+			diagonal = null;
+		
+		// likewise a controlled permutation is a permutation: fixed where the controls are not all set
+		int[] gateperm = gate.getPermutation();
+		if (gateperm != null) {
+			permutation = new int[1<<getArity()];
+			for (int l=0; l < 1<<getArity(); l++)
+				permutation[l] = (l & mask) == mask 
+						? (l & mask) | QuantumUtil.depositBits(gateperm[QuantumUtil.extractBits(l, gatebits)], gatebits)
+						: l;
+		} else
+			permutation = null;
+	}
+
+	public Operator getGate() { return gate; }
+
+	/** Returns a copy of the control bit positions. */
+	public int[] getControlbits() { return controlbits.clone(); }
+
+	/** Returns a copy of the bit positions passed to the gate. */
+	public int[] getGatebits() { return gatebits.clone(); }
+
+	/** 
+	 * Applies gate to each block of invec whose control bits are all set.
+	 * Creates new vector; does not change original.
+	 */
+	@Override
+	protected FieldVector<Complex> myApply(FieldVector<Complex> invec) {
+		FieldVector<Complex> outvec = invec.copy();
+		FieldVector<Complex> part = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<gate.getArity());
+		IndexIterator it = new IndexIterator(getArity(), gatebits);
+		while (it.nextBlock()) {
+			if ((it.base() & localcontrolmask) != localcontrolmask)
+				continue;
+			QuantumUtil.indexGet(outvec, it, part);
+			part = gate.apply(part);
+			QuantumUtil.indexSet(outvec, it, part);
+		}
+		return outvec;
+	}
+
+	@Override
+	protected void myApply(double[] amps) {
+		double[] buf = new double[2<<gate.getArity()];
+		IndexIterator it = new IndexIterator(getArity(), gatebits);
+		while (it.nextBlock()) {
+			if ((it.base() & localcontrolmask) != localcontrolmask)
+				continue;
+			for (int i=0; i < buf.length; i += 2) {
+				int idx = (int)it.next();
+				buf[i] = amps[2*idx];
+				buf[i+1] = amps[2*idx+1];
+			}
+			gate.myApply(buf);
+			it.rewindBlock();
+			for (int i=0; i < buf.length; i += 2) {
+				int idx = (int)it.next();
+				amps[2*idx] = buf[i];
+				amps[2*idx+1] = buf[i+1];
+			}
+		}
+	}
+
+	@Override
+	protected double[] getDiagonal() {
+		return diagonal;
+	}
+
+	@Override
+	protected int[] getPermutation() {
+		return permutation;
+	}
+
+	/** Add this operator's controls to controlmask and hand the gate's bits to the gate's own kernel. */
+	@Override
+	protected void applyControlled(AmplitudeStore amps, long controlmask, int[] targetbits) {
+		for (int cb : controlbits)
+			controlmask |= 1L<<targetbits[cb];
+		int[] innertargetbits = new int[gatebits.length];
+		for (int i=0; i < gatebits.length; i++)
+			innertargetbits[i] = targetbits[gatebits[i]];
+		gate.applyControlled(amps, controlmask, innertargetbits);
+	}
+
+}
@@ -0,0 +1,97 @@
+package qclib;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+
+import qclib.util.ComplexArrays;
+
+/**
+ * An Operator whose matrix is diagonal: it multiplies each basis state |idx> by a phase (or any complex number) d_idx.
+ * Ex. a|00> + b|01> + c|10> + d|11> ==> d_0*a|00> + d_1*b|01> + d_2*c|10> + d_3*d|11>
+ *
+ * The diagonal is given either as a vector to the public constructor,
+ * 	 or as a function of the basis index by a subclass that overrides getDiagonalReal (and getDiagonalImaginary if complex).
+ * QubitContainer applies it as one streaming multiply over the state,
+ *   and merges consecutive diagonal operators into a single pass.
+ */
+public class DiagonalOperator extends Operator {
+	/** Interleaved {re_0, im_0, re_1, im_1, ...}; built lazily from the function for subclasses */
+	private double[] diagonal;
+
+	/**
+	 * @param arity number of qubits
+	 * @param diagonal the 2^arity entries, interleaved {re_0, im_0, re_1, im_1, ...}
+	 */
+	public DiagonalOperator(int arity, double[] diagonal) {
+		super(arity);
+		if (diagonal == null || diagonal.length != 2<<arity)
+			throw new IllegalArgumentException("diagonal should have "+(2<<arity)+" entries for arity "+arity);
+		this.diagonal = diagonal.clone();
+	}
+
+	/** For subclasses that define the diagonal as a function of the basis index. */
+	protected DiagonalOperator(int arity) {
+		super(arity);
+	}
+
+	/** Real part of the diagonal entry for basis index idx in {0,1,...,2^arity-1}. */
+	public double getDiagonalReal(int idx) {
+		if (diagonal == null)
+			throw new UnsupportedOperationException("subclasses without a diagonal vector must override getDiagonalReal");
+		return diagonal[2*idx];
+	}
+
+	/** Imaginary part of the diagonal entry for basis index idx.  Subclasses with a real-valued function may leave this alone. */
+	public double getDiagonalImaginary(int idx) {
+		return diagonal == null ? 0 : diagonal[2*idx+1];
+	}
+
+	/** The diagonal as an interleaved vector; evaluated once from the function if needed. */
+	@Override
+	protected final double[] getDiagonal() {
+		if (diagonal == null) {
+			double[] d = new double[2<<getArity()];
+			for (int i=0; i < 1<<getArity(); i++) {
+				d[2*i] = getDiagonalReal(i);
+				d[2*i+1] = getDiagonalImaginary(i);
+			}
+			diagonal = d;
+		}
+		return diagonal;
+	}
+
+	/**
+	 * Multiplies each entry by its diagonal entry.
+	 * Creates new vector; does not change original.
+	 */
+	@Override
+	protected FieldVector<Complex> myApply(FieldVector<Complex> invec) {
+		final double[] d = getDiagonal();
+		FieldVector<Complex> outvec = invec.copy();
+		for (int i=0; i < outvec.getDimension(); i++)
+			outvec.setEntry(i, invec.getEntry(i).multiply(new Complex(d[2*i], d[2*i+1])));
+		return outvec;
+	}
+
+	@Override
+	protected void myApply(double[] amps) {
+		final double[] d = getDiagonal();
+		for (int i=0; i < amps.length; i+=2) {
+			double re = amps[i], im = amps[i+1];
+			amps[i]   = re*d[i] - im*d[i+1];
+			amps[i+1] = re*d[i+1] + im*d[i];
+		}
+	}
+
+	/**
+	 * Two diagonal operators compose into one by multiplying their diagonals entrywise.
+	 * @see qclib.Operator#curryBefore(qclib.Operator)
+	 */
+	@Override
+	public Operator curryBefore(Operator op2) {
+		if (op2 != null && op2.getArity() == getArity() && op2.getDiagonal() != null)
+			return new DiagonalOperator(getArity(), ComplexArrays.multiplyElementwise(getDiagonal(), op2.getDiagonal()));
+		return super.curryBefore(op2);
+	}
+
+}
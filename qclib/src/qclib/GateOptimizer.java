@@ -0,0 +1,22 @@
+package qclib;
+
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Rewrites a run of gates before a QubitRegister in deferred mode applies them.
+ * Each gate is an Operator and the qubits it is applied to, as passed to QubitRegister.doOp.
+ * The run is bounded by anything that is not a gate (setAmps, couple, or an observation),
+ *   so the result only needs to have the same effect as the run on the register's state.
+ * @see QubitRegister#setDeferred(boolean)
+ */
+public interface GateOptimizer {
+
+	/**
+	 * @param gates the run, in order of application; may be modified
+	 * @return the gates to apply instead, in order
+	 */
+	List<Pair<Operator,int[]>> optimize(List<Pair<Operator,int[]>> gates);
+
+}
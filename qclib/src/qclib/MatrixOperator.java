@@ -7,10 +7,22 @@ import org.apache.commons.math3.linear.FieldVector;
 public class MatrixOperator extends Operator {
 	
 	private FieldMatrix<Complex> matrixop;
+	/** Primitive copy of matrixop, row-major with interleaved (re,im) entries */
+	private final double[] coeffs;
 	
 	public MatrixOperator(int arity, FieldMatrix<Complex> matrixop) {
 		super(arity);
 		this.matrixop = matrixop;
+		int dim = 1<<arity;
+		if (matrixop.getRowDimension() != dim || matrixop.getColumnDimension() != dim)
+			throw new IllegalArgumentException("matrix should be "+dim+"x"+dim+" for arity "+arity);
+		coeffs = new double[2*dim*dim];
+		for (int r=0; r < dim; r++)
+			for (int c=0; c < dim; c++) {
+				Complex z = matrixop.getEntry(r, c);
+				coeffs[2*(r*dim+c)] = z.getReal();
+				coeffs[2*(r*dim+c)+1] = z.getImaginary();
+			}
 	}
 
 	@Override
@@ -18,8 +30,31 @@ public class MatrixOperator extends Operator {
 		return matrixop.operate(invec);
 	}
 	
+	/** Dense matrix-vector product on primitive doubles; no Complex objects. */
+	@Override
+	protected void myApply(double[] amps) {
+		int dim = 1<<getArity();
+		double[] in = amps.clone();
+		for (int r=0; r < dim; r++) {
+			double re = 0, im = 0;
+			for (int c=0; c < dim; c++) {
+				double mr = coeffs[2*(r*dim+c)], mi = coeffs[2*(r*dim+c)+1];
+				re += mr*in[2*c] - mi*in[2*c+1];
+				im += mr*in[2*c+1] + mi*in[2*c];
+			}
+			amps[2*r] = re;
+			amps[2*r+1] = im;
+		}
+	}
+	
 	
 
+	/** 1-arity matrices are applied by the in-place single-qubit kernel. */
+	@Override
+	protected double[] getSingleQubitMatrix() {
+		return getArity() == 1 ? coeffs : null;
+	}
+
 	/** 
 	 * Efficiency boost when composing matix operators:
 	 * 	Do matrix multiplication instead of just chaining an extra function call on the stack.
@@ -0,0 +1,19 @@
+package qclib;
+
+/**
+ * Watches the rounding error that accumulates in the states of a QubitRegister: 
+ *   the squared amplitudes of a container sum to 1 only up to rounding, 
+ *   and the difference grows with the number of gates, faster in Precision.FLOAT.
+ * See QubitRegister.setNormMonitor.
+ */
+public interface NormMonitor {
+	
+	/**
+	 * Called with the sum of the squared amplitudes of the joint state of qubits.
+	 * @param qubits the qubits of the container, in container order; do not modify
+	 * @param normSquared 1 up to rounding error
+	 * @return true to scale the state back to norm 1 (ignored after a measurement, which renormalizes anyway)
+	 */
+	boolean normChecked(int[] qubits, double normSquared);
+	
+}
@@ -8,7 +8,10 @@ import org.apache.commons.math3.complex.ComplexField;
 import org.apache.commons.math3.linear.ArrayFieldVector;
 import org.apache.commons.math3.linear.FieldVector;
 
+import qclib.store.AmplitudeStore;
 import qclib.util.BitSetUtil;
+import qclib.util.ComplexArrays;
+import qclib.util.IndexIterator;
 import qclib.util.QuantumUtil;
 
 public abstract class Operator {
@@ -55,6 +58,73 @@ public abstract class Operator {
 	protected abstract FieldVector<Complex> myApply(FieldVector<Complex> invec);
 	// should I do error checking- For vector size?
 	
+	/**
+	 * Primitive version of myApply used by the AmplitudeStore kernels.
+	 * Applies the operator in place to amps, which holds the 2^arity amplitudes 
+	 *   interleaved as {re_0, im_0, re_1, im_1, ...}.
+	 * The default uses getSingleQubitMatrix() if there is one, 
+	 *   and otherwise boxes the amplitudes and calls myApply(FieldVector); 
+	 *   subclasses should override it to avoid creating Complex objects.
+	 * @param amps array of length 2*2^arity, modified in place
+	 */
+	protected void myApply(double[] amps) {
+		final double[] m = getSingleQubitMatrix();
+		if (m != null) {
+			double r0 = amps[0], i0 = amps[1], r1 = amps[2], i1 = amps[3];
+			amps[0] = m[0]*r0 - m[1]*i0 + m[2]*r1 - m[3]*i1;
+			amps[1] = m[0]*i0 + m[1]*r0 + m[2]*i1 + m[3]*r1;
+			amps[2] = m[4]*r0 - m[5]*i0 + m[6]*r1 - m[7]*i1;
+			amps[3] = m[4]*i0 + m[5]*r0 + m[6]*i1 + m[7]*r1;
+			return;
+		}
+		FieldVector<Complex> invec = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<arity);
+		for (int i=0; i < 1<<arity; i++)
+			invec.setEntry(i, new Complex(amps[2*i], amps[2*i+1]));
+		FieldVector<Complex> outvec = this.myApply(invec);
+		for (int i=0; i < 1<<arity; i++) {
+			Complex c = outvec.getEntry(i);
+			amps[2*i] = c.getReal();
+			amps[2*i+1] = c.getImaginary();
+		}
+	}
+	
+	/**
+	 * 1-qubit operators may return their 2x2 matrix here so that they are applied 
+	 *   by the allocation-free in-place kernel AmplitudeStore.applySingleQubit.
+	 * Layout is row-major with interleaved (re,im) entries: 
+	 *   {re00, im00, re01, im01, re10, im10, re11, im11}, 
+	 *   so that a|0> + b|1> ==> (m00*a + m01*b)|0> + (m10*a + m11*b)|1>.
+	 * The returned array is shared; do not modify it.
+	 * @return the matrix, or null (the default) if not available or arity != 1
+	 */
+	protected double[] getSingleQubitMatrix() {
+		return null;
+	}
+	
+	/**
+	 * Diagonal operators may return their diagonal here so that they are applied 
+	 *   by the streaming kernel AmplitudeStore.applyDiagonal, and so that QubitContainer 
+	 *   can merge consecutive diagonal operators into one pass.
+	 * Layout is interleaved: {re_0, im_0, re_1, im_1, ...}, 2^arity entries.
+	 * The returned array is shared; do not modify it.
+	 * @return the diagonal, or null (the default) if the operator is not diagonal
+	 */
+	protected double[] getDiagonal() {
+		return null;
+	}
+	
+	/**
+	 * Operators that only permute basis states may return the mapping here so that they are applied 
+	 *   by the in-place kernel AmplitudeStore.applyPermutation, which moves amplitudes around 
+	 *   without arithmetic (and flips bits with a single XOR pass where it can).
+	 * |l> ==> |perm[l]> for each l in {0,1,...,2^arity-1}.
+	 * The returned array is shared; do not modify it.
+	 * @return the permutation, or null (the default) if the operator is not a permutation
+	 */
+	protected int[] getPermutation() {
+		return null;
+	}
+	
 	/**
 	 * Returns a new Operator that applies this, then applies op2.
 	 * Use like this: op1.curryBefore(op2).curryBefore(op3)
@@ -67,12 +137,42 @@ public abstract class Operator {
 			throw new IllegalArgumentException("bad operator argument does not match arity: this="+this+", op2="+op2);
 		
 		final Operator outside = this;
+		// two 1-qubit matrices compose into one: precompute the product so the kernel still applies
+		final double[] m1 = outside.getSingleQubitMatrix(), m2 = op2.getSingleQubitMatrix();
+		final double[] m = m1 != null && m2 != null ? ComplexArrays.multiply(m2, m1, 2) : null;
+		// likewise two diagonals compose into one
+		final double[] d1 = outside.getDiagonal(), d2 = op2.getDiagonal();
+		final double[] d = d1 != null && d2 != null ? ComplexArrays.multiplyElementwise(d1, d2) : null;
+		// and two permutations
+		final int[] p1 = outside.getPermutation(), p2 = op2.getPermutation();
+		final int[] p = p1 != null && p2 != null ? PermutationOperator.compose(p1, p2) : null;
 		return new Operator(arity) {
 			@Override
 			public FieldVector<Complex> myApply(FieldVector<Complex> invec) {
 				return op2.myApply(outside.myApply(invec));
 			}
 			
+			@Override
+			protected void myApply(double[] amps) {
+				outside.myApply(amps);
+				op2.myApply(amps);
+			}
+			
+			@Override
+			protected double[] getSingleQubitMatrix() {
+				return m;
+			}
+			
+			@Override
+			protected double[] getDiagonal() {
+				return d;
+			}
+			
+			@Override
+			protected int[] getPermutation() {
+				return p;
+			}
+			
 		};
 	}
 	
@@ -193,20 +293,76 @@ public abstract class Operator {
 		if (targetbits.length != arity)
 			throw new IllegalArgumentException("targetbits should have the same length as arity");
 		
-		final Set<int[]> transet = QuantumUtil.translateIndices(extendedArity, targetbits);
 		final Operator outside = this;
+		// the extension of a diagonal operator is diagonal
+		final double[] innerdiag = outside.getDiagonal();
+		final double[] outerdiag = innerdiag == null ? null : new double[2<<extendedArity];
+		if (innerdiag != null)
+			for (int l=0; l < 1<<extendedArity; l++) {
+				int inner = QuantumUtil.extractBits(l, targetbits);
+				outerdiag[2*l] = innerdiag[2*inner];
+				outerdiag[2*l+1] = innerdiag[2*inner+1];
+			}
+		// and so is the extension of a permutation
+		final int[] innerperm = outside.getPermutation();
+		final int[] outerperm = innerperm == null ? null : new int[1<<extendedArity];
+		if (innerperm != null) {
+			int tmask = QuantumUtil.depositBits((1<<targetbits.length)-1, targetbits);
+			for (int l=0; l < 1<<extendedArity; l++)
+				outerperm[l] = (l & ~tmask) | QuantumUtil.depositBits(innerperm[QuantumUtil.extractBits(l, targetbits)], targetbits);
+		}
 		
 		return new Operator(extendedArity) {
 			@Override
 			public FieldVector<Complex> myApply(FieldVector<Complex> invec) {
 				FieldVector<Complex> remappedVec = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<outside.arity);
-				for (int[] indices : transet) {
-					QuantumUtil.indexGet(invec, indices, remappedVec);
+				IndexIterator it = new IndexIterator(extendedArity, targetbits);
+				while (it.nextBlock()) {
+					QuantumUtil.indexGet(invec, it, remappedVec);
 					remappedVec = outside.apply(remappedVec);
-					QuantumUtil.indexSet(invec, indices, remappedVec);
+					QuantumUtil.indexSet(invec, it, remappedVec);
 				}
 				return invec;
 			}
+			
+			@Override
+			protected void myApply(double[] amps) {
+				double[] buf = new double[2<<outside.arity];
+				IndexIterator it = new IndexIterator(extendedArity, targetbits);
+				while (it.nextBlock()) {
+					for (int i=0; i < buf.length; i += 2) {
+						int idx = (int)it.next();
+						buf[i] = amps[2*idx];
+						buf[i+1] = amps[2*idx+1];
+					}
+					outside.myApply(buf);
+					it.rewindBlock();
+					for (int i=0; i < buf.length; i += 2) {
+						int idx = (int)it.next();
+						amps[2*idx] = buf[i];
+						amps[2*idx+1] = buf[i+1];
+					}
+				}
+			}
+			
+			@Override
+			protected double[] getDiagonal() {
+				return outerdiag;
+			}
+			
+			@Override
+			protected int[] getPermutation() {
+				return outerperm;
+			}
+			
+			/** Compose the bit mappings and let the inner operator pick its own kernel. */
+			@Override
+			protected void applyControlled(AmplitudeStore amps, long controlmask, int[] outertargetbits) {
+				int[] innertargetbits = new int[targetbits.length];
+				for (int i=0; i < targetbits.length; i++)
+					innertargetbits[i] = outertargetbits[targetbits[i]];
+				outside.applyControlled(amps, controlmask, innertargetbits);
+			}
 		};
 	}
 
@@ -226,14 +382,63 @@ public abstract class Operator {
 		// vector to hold the amplitudes to pass to the operator
 		FieldVector<Complex> vec = new ArrayFieldVector<Complex>(ComplexField.getInstance(),1<<targetbits.length);
 		// map indices in this.data to indices in vec, in order specified by targetbits
-		Set<int[]> indexset = QuantumUtil.translateIndices(datavecloglength, targetbits);
-		// for each set of indices indexing into this.data
-		for (int[] indices : indexset) {
+		IndexIterator it = new IndexIterator(datavecloglength, targetbits);
+		// for each block of indices indexing into this.data
+		while (it.nextBlock()) {
 			// get the amplitudes from this.data into vec, do the operator on vec to get a new vec, and set the new amplitudes from vec into this.data 
-			//System.err.println("targetbits: "+Arrays.toString(targetbits));
-			QuantumUtil.indexGet(datavec, indices, vec);
+			QuantumUtil.indexGet(datavec, it, vec);
 			vec = this.myApply(vec);
-			QuantumUtil.indexSet(datavec, indices, vec);
+			QuantumUtil.indexSet(datavec, it, vec);
+		}
+	}
+	
+	/**
+	 * Applies this Operator in place to the amplitudes held in amps.
+	 * Same as applyTo(int, FieldVector, int...) but works on primitive doubles.
+	 * @param amps store of 2^amps.getNumbits() amplitudes
+	 * @param targetbits which bits of amps to pass to bits {0,1,...,arity-1} of this
+	 */
+	public final void applyTo(AmplitudeStore amps, int... targetbits) {
+		if (targetbits == null || amps == null || targetbits.length != arity || targetbits.length > amps.getNumbits())
+			throw new IllegalArgumentException("bad arguments to applyTo");
+		applyControlled(amps, 0, targetbits);
+	}
+	
+	/**
+	 * Applies this Operator in place to the amplitudes of amps whose index has every bit of controlmask set,
+	 *   leaving all other amplitudes untouched.  controlmask == 0 applies it everywhere.
+	 * Subclasses override this to pick a faster kernel; ControlledOperator uses it to pass its control bits down.
+	 * @param amps store of 2^amps.getNumbits() amplitudes
+	 * @param controlmask bits of amps that must all be 1; disjoint from targetbits
+	 * @param targetbits which bits of amps to pass to bits {0,1,...,arity-1} of this
+	 */
+	protected void applyControlled(AmplitudeStore amps, long controlmask, int[] targetbits) {
+		final double[] d = getDiagonal();
+		if (d != null) {
+			amps.applyDiagonal(targetbits, d, controlmask);
+			return;
+		}
+		final int[] p = getPermutation();
+		if (p != null) {
+			amps.applyPermutation(targetbits, p, controlmask);
+			return;
+		}
+		final double[] m = getSingleQubitMatrix();
+		if (m != null) {
+			amps.applySingleQubit(targetbits[0], m, controlmask);
+			return;
+		}
+		
+		// interleaved buffer to hold the amplitudes to pass to the operator
+		double[] buf = new double[2<<targetbits.length];
+		IndexIterator it = new IndexIterator(amps.getNumbits(), targetbits);
+		while (it.nextBlock()) {
+			// the base has all the target bits clear, so it tells whether this block is controlled on
+			if ((it.base() & controlmask) != controlmask)
+				continue;
+			amps.gather(it, buf);
+			this.myApply(buf);
+			amps.scatter(it, buf);
 		}
 	}
 	
@@ -0,0 +1,113 @@
+package qclib;
+
+import java.util.Arrays;
+
+/**
+ * A weighted tensor product of Pauli operators on some qubits of a register, ex. 0.5 * Z0 Z1:
+ *   one term of a Hamiltonian, whose expectation QubitRegister.expectation computes.
+ * The identity acts on the qubits not named.
+ */
+public final class PauliString {
+	private final double coefficient;
+	/** paulis[i] ('X', 'Y' or 'Z') acts on qubits[i] */
+	private final char[] paulis;
+	private final int[] qubits;
+
+	/**
+	 * @param paulis 'X', 'Y' or 'Z' for each of qubits
+	 * @param qubits distinct qubits
+	 */
+	public PauliString(double coefficient, char[] paulis, int[] qubits) {
+		if (paulis == null || qubits == null || paulis.length != qubits.length)
+			throw new IllegalArgumentException("need one Pauli operator per qubit");
+		this.coefficient = coefficient;
+		this.paulis = paulis.clone();
+		this.qubits = qubits.clone();
+		for (int i=0; i < qubits.length; i++) {
+			if (paulis[i] != 'X' && paulis[i] != 'Y' && paulis[i] != 'Z')
+				throw new IllegalArgumentException("not a Pauli operator: "+paulis[i]);
+			if (qubits[i] < 0)
+				throw new IllegalArgumentException("bad qubit: "+qubits[i]);
+			for (int j=0; j < i; j++)
+				if (qubits[j] == qubits[i])
+					throw new IllegalArgumentException("repeated qubit: "+qubits[i]);
+		}
+	}
+
+	/**
+	 * Parses a term like "Z0 Z1" or "X2 Y5": a Pauli letter and a qubit number per factor, separated by spaces.
+	 * "" or "I" is the identity.
+	 */
+	public PauliString(double coefficient, String term) {
+		this(coefficient, parsePaulis(term), parseQubits(term));
+	}
+
+	private static String[] factors(String term) {
+		String t = term.trim();
+		if (t.isEmpty() || t.equals("I"))
+			return new String[0];
+		return t.split("\\s+");
+	}
+
+	private static char[] parsePaulis(String term) {
+		String[] f = factors(term);
+		char[] ret = new char[f.length];
+		for (int i=0; i < f.length; i++)
+			ret[i] = f[i].charAt(0);
+		return ret;
+	}
+
+	private static int[] parseQubits(String term) {
+		String[] f = factors(term);
+		int[] ret = new int[f.length];
+		for (int i=0; i < f.length; i++) {
+			try {
+				ret[i] = Integer.parseInt(f[i].substring(1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad factor \""+f[i]+"\" in \""+term+"\"", e);
+			}
+		}
+		return ret;
+	}
+
+	public double getCoefficient() { return coefficient; }
+
+	/** The qubits with an X, Y or Z.  A copy. */
+	public int[] getQubits() { return qubits.clone(); }
+
+	/** The Pauli operator on each of getQubits().  A copy. */
+	public char[] getPaulis() { return paulis.clone(); }
+
+	/** Number of qubits with an X, Y or Z */
+	public int size() { return qubits.length; }
+
+	/** 'X', 'Y' or 'Z' on the i-th qubit of getQubits() */
+	char pauliAt(int i) { return paulis[i]; }
+
+	int qubitAt(int i) { return qubits[i]; }
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(coefficient);
+		if (qubits.length == 0)
+			sb.append(" I");
+		for (int i=0; i < qubits.length; i++)
+			sb.append(' ').append(paulis[i]).append(qubits[i]);
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PauliString))
+			return false;
+		PauliString p = (PauliString)o;
+		return coefficient == p.coefficient && Arrays.equals(paulis, p.paulis) && Arrays.equals(qubits, p.qubits);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*(31*Double.valueOf(coefficient).hashCode() + Arrays.hashCode(paulis)) + Arrays.hashCode(qubits);
+	}
+
+}
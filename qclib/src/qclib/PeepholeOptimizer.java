@@ -0,0 +1,219 @@
+package qclib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.complex.ComplexField;
+import org.apache.commons.math3.linear.Array2DRowFieldMatrix;
+import org.apache.commons.math3.linear.FieldMatrix;
+import org.apache.commons.math3.util.Pair;
+
+import qclib.store.AmplitudeStore;
+import qclib.store.DoubleAmplitudeStore;
+import qclib.util.QuantumUtil;
+
+/**
+ * A GateOptimizer that removes redundant gates from a run with local rewrites.
+ * Each gate is moved back through the gates before it as far as it commutes with them:
+ *   past gates on disjoint qubits, and past diagonal gates if it is diagonal too.
+ * If it meets a gate on the same set of qubits, the two are merged into one gate;
+ *   when the product is the identity (H.H, X.X, CNOT.CNOT, phases summing to 2pi, ...) both are dropped.
+ * Merged gates keep the cheapest kernel of their product:
+ *   a diagonal or a permutation stays one, otherwise it becomes a dense MatrixOperator.
+ * Every gate removed is one pass over the state saved.
+ *
+ * Ex. on a register in deferred mode:
+ * 	 qr.setOptimizer(new PeepholeOptimizer());
+ */
+public class PeepholeOptimizer implements GateOptimizer {
+	/** Largest number of qubits of two merged gates that are not both diagonal or both permutations */
+	private int maxDenseArity = 3;
+	private int lastRemoved;
+	private long totalRemoved;
+
+	public PeepholeOptimizer() {}
+
+	/** @param maxDenseArity largest number of qubits of a merged dense gate; 0 to only merge diagonals and permutations */
+	public PeepholeOptimizer(int maxDenseArity) {
+		setMaxDenseArity(maxDenseArity);
+	}
+
+	public int getMaxDenseArity() { return maxDenseArity; }
+
+	public void setMaxDenseArity(int maxDenseArity) {
+		if (maxDenseArity < 0 || maxDenseArity > 10)
+			throw new IllegalArgumentException("bad dense arity: "+maxDenseArity);
+		this.maxDenseArity = maxDenseArity;
+	}
+
+	/** Number of gates removed by the last call to optimize. */
+	public int getLastRemoved() { return lastRemoved; }
+
+	/** Number of gates removed by all calls to optimize. */
+	public long getTotalRemoved() { return totalRemoved; }
+
+	@Override
+	public List<Pair<Operator,int[]>> optimize(List<Pair<Operator,int[]>> gates) {
+		List<Pair<Operator,int[]>> out = new ArrayList<Pair<Operator,int[]>>(gates.size());
+		int removed = 0;
+		for (Pair<Operator,int[]> g : gates)
+			removed += place(out, out.size(), g.getFirst(), g.getSecond());
+		lastRemoved = removed;
+		totalRemoved += removed;
+		return out;
+	}
+
+	/**
+	 * Put op on qubits into out, as if it were applied right after the gates before end.
+	 * A merged gate is placed again, since it may commute further back or cancel.
+	 * @return number of gates removed
+	 */
+	private int place(List<Pair<Operator,int[]>> out, int end, Operator op, int[] qubits) {
+		boolean diagonal = op.getDiagonal() != null;
+		for (int i=end-1; i >= 0; i--) {
+			Operator prevop = out.get(i).getFirst();
+			int[] prevqubits = out.get(i).getSecond();
+			int[] pos = positions(prevqubits, qubits);
+			if (pos != null) {
+				Operator merged = merge(prevop, op, pos);
+				if (merged == null)
+					break;
+				out.remove(i);
+				if (merged == IDENTITY)
+					return 2;
+				return 1 + place(out, i, merged, prevqubits);
+			}
+			if (!disjoint(prevqubits, qubits) && !(diagonal && prevop.getDiagonal() != null))
+				break;
+		}
+		out.add(end, new Pair<Operator,int[]>(op, qubits));
+		return 0;
+	}
+
+	/** Marks a merge whose product is the identity. */
+	private static final Operator IDENTITY = new DiagonalOperator(1, new double[] {1, 0, 1, 0});
+
+	/**
+	 * Returns the operator that applies op1 on its bits 0..n-1, then op2 on bits pos,
+	 *   IDENTITY if that is the identity, or null if the two are not merged.
+	 */
+	private Operator merge(Operator op1, Operator op2, int[] pos) {
+		final int n = op1.getArity();
+		double[] d1 = op1.getDiagonal();
+		int[] p1 = op1.getPermutation();
+		// express op2 on the bits of op1, which maps its diagonal or permutation
+		Operator op2in1 = op2;
+		if (d1 != null || p1 != null)
+			for (int i=0; i < n; i++)
+				if (pos[i] != i) {
+					op2in1 = op2.extend(n, pos);
+					break;
+				}
+
+		double[] d2 = op2in1.getDiagonal();
+		if (d1 != null && d2 != null) {
+			double[] d = new double[2<<n];
+			boolean identity = true;
+			for (int l=0; l < 1<<n; l++) {
+				d[2*l] = d1[2*l]*d2[2*l] - d1[2*l+1]*d2[2*l+1];
+				d[2*l+1] = d1[2*l]*d2[2*l+1] + d1[2*l+1]*d2[2*l];
+				identity &= QuantumUtil.isApproxZero(d[2*l]-1) && QuantumUtil.isApproxZero(d[2*l+1]);
+			}
+			return identity ? IDENTITY : new DiagonalOperator(n, d);
+		}
+		int[] p2 = op2in1.getPermutation();
+		if (p1 != null && p2 != null) {
+			int[] p = PermutationOperator.compose(p1, p2);
+			for (int l=0; l < p.length; l++)
+				if (p[l] != l)
+					return new PermutationOperator(n, p);
+			return IDENTITY;
+		}
+		if (n > maxDenseArity)
+			return null;
+		return fromMatrix(n, product(op1, op2, pos));
+	}
+
+	/** Dense matrix of op1 on bits 0..n-1 followed by op2 on bits pos; column c is the image of |c>. */
+	private static double[] product(Operator op1, Operator op2, int[] pos) {
+		final int n = op1.getArity(), dim = 1<<n;
+		int[] bits1 = QuantumUtil.makeConsecutiveIntArray(0, n);
+		double[] ret = new double[2*dim*dim];
+		AmplitudeStore col = new DoubleAmplitudeStore(n);
+		for (int c=0; c < dim; c++) {
+			col.fill(0, 0);
+			col.set(c, 1, 0);
+			op1.applyTo(col, bits1);
+			op2.applyTo(col, pos);
+			for (int r=0; r < dim; r++) {
+				ret[2*(r*dim+c)] = col.getReal(r);
+				ret[2*(r*dim+c)+1] = col.getImaginary(r);
+			}
+		}
+		return ret;
+	}
+
+	/** The cheapest operator with the given dense matrix: IDENTITY, diagonal, or dense. */
+	private static Operator fromMatrix(int n, double[] m) {
+		final int dim = 1<<n;
+		boolean diagonal = true, identity = true;
+		for (int r=0; r < dim; r++)
+			for (int c=0; c < dim; c++) {
+				double re = m[2*(r*dim+c)], im = m[2*(r*dim+c)+1];
+				if (r != c)
+					diagonal &= QuantumUtil.isApproxZero(re) && QuantumUtil.isApproxZero(im);
+				else
+					identity &= QuantumUtil.isApproxZero(re-1) && QuantumUtil.isApproxZero(im);
+			}
+		if (diagonal && identity)
+			return IDENTITY;
+		if (diagonal) {
+			double[] d = new double[2*dim];
+			for (int l=0; l < dim; l++) {
+				d[2*l] = m[2*(l*dim+l)];
+				d[2*l+1] = m[2*(l*dim+l)+1];
+			}
+			return new DiagonalOperator(n, d);
+		}
+		FieldMatrix<Complex> fm = new Array2DRowFieldMatrix<Complex>(ComplexField.getInstance(), dim, dim);
+		for (int r=0; r < dim; r++)
+			for (int c=0; c < dim; c++)
+				fm.setEntry(r, c, new Complex(m[2*(r*dim+c)], m[2*(r*dim+c)+1]));
+		return new MatrixOperator(n, fm);
+	}
+
+	/**
+	 * If qubits is a reordering of base, returns pos with qubits[i] == base[pos[i]];
+	 *   otherwise returns null.
+	 */
+	private static int[] positions(int[] base, int[] qubits) {
+		if (base.length != qubits.length)
+			return null;
+		int[] pos = new int[qubits.length];
+		outer:
+		for (int i=0; i < qubits.length; i++) {
+			for (int j=0; j < base.length; j++)
+				if (base[j] == qubits[i]) {
+					pos[i] = j;
+					continue outer;
+				}
+			return null;
+		}
+		return pos;
+	}
+
+	private static boolean disjoint(int[] a, int[] b) {
+		for (int x : a)
+			for (int y : b)
+				if (x == y)
+					return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "PeepholeOptimizer (dense arity "+maxDenseArity+", removed "+totalRemoved+")";
+	}
+
+}
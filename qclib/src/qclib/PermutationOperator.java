@@ -0,0 +1,120 @@
+package qclib;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+
+/**
+ * An Operator that only permutes basis states: |idx> ==> |permute(idx)>.
+ * Ex. X, CNOT, SWAP, and reversible oracles |x,y> ==> |x, y^f(x)>.
+ *
+ * The mapping is given either as a table to the public constructor,
+ * 	 or as a function of the basis index by a subclass that overrides permute.
+ * It is applied in place by walking the cycles of the permutation, moving amplitudes without arithmetic;
+ *   a permutation that flips a fixed set of bits (idx ==> idx ^ mask) is applied as a single XOR pass.
+ */
+public class PermutationOperator extends Operator {
+	/** permutation[l] is the image of basis state l; built lazily from the function for subclasses */
+	private int[] permutation;
+
+	/**
+	 * @param arity number of qubits
+	 * @param permutation the image of each of the 2^arity basis states; must be a bijection
+	 */
+	public PermutationOperator(int arity, int[] permutation) {
+		super(arity);
+		if (permutation == null || permutation.length != 1<<arity)
+			throw new IllegalArgumentException("permutation should have "+(1<<arity)+" entries for arity "+arity);
+		this.permutation = checkBijection(permutation.clone());
+	}
+
+	/** For subclasses that define the permutation as a function of the basis index. */
+	protected PermutationOperator(int arity) {
+		super(arity);
+	}
+
+	/**
+	 * Returns the operator on arity bits that flips the bits set in flipmask: |idx> ==> |idx ^ flipmask>.
+	 * Ex. flip(3, 0b111) is an X on each of 3 bits.
+	 */
+	public static PermutationOperator flip(int arity, int flipmask) {
+		if ((flipmask & ~((1<<arity)-1)) != 0)
+			throw new IllegalArgumentException("flip mask "+Integer.toBinaryString(flipmask)+" has bits outside arity "+arity);
+		int[] p = new int[1<<arity];
+		for (int l=0; l < p.length; l++)
+			p[l] = l ^ flipmask;
+		return new PermutationOperator(arity, p);
+	}
+
+	/** Image of basis index idx in {0,1,...,2^arity-1}. */
+	public int permute(int idx) {
+		if (permutation == null)
+			throw new UnsupportedOperationException("subclasses without a permutation table must override permute");
+		return permutation[idx];
+	}
+
+	/** The permutation as a table; evaluated once from the function if needed. */
+	@Override
+	protected final int[] getPermutation() {
+		if (permutation == null) {
+			int[] p = new int[1<<getArity()];
+			for (int i=0; i < p.length; i++)
+				p[i] = permute(i);
+			permutation = checkBijection(p);
+		}
+		return permutation;
+	}
+
+	/**
+	 * Moves each entry to its image.
+	 * Creates new vector; does not change original.
+	 */
+	@Override
+	protected FieldVector<Complex> myApply(FieldVector<Complex> invec) {
+		final int[] p = getPermutation();
+		FieldVector<Complex> outvec = invec.copy();
+		for (int i=0; i < p.length; i++)
+			outvec.setEntry(p[i], invec.getEntry(i));
+		return outvec;
+	}
+
+	@Override
+	protected void myApply(double[] amps) {
+		final int[] p = getPermutation();
+		final double[] in = amps.clone();
+		for (int i=0; i < p.length; i++) {
+			amps[2*p[i]] = in[2*i];
+			amps[2*p[i]+1] = in[2*i+1];
+		}
+	}
+
+	/**
+	 * Two permutations compose into one.
+	 * @see qclib.Operator#curryBefore(qclib.Operator)
+	 */
+	@Override
+	public Operator curryBefore(Operator op2) {
+		if (op2 != null && op2.getArity() == getArity() && op2.getPermutation() != null)
+			return new PermutationOperator(getArity(), compose(getPermutation(), op2.getPermutation()));
+		return super.curryBefore(op2);
+	}
+
+	/** Returns the permutation that applies p1, then p2: l ==> p2[p1[l]]. */
+	static int[] compose(final int[] p1, final int[] p2) {
+		int[] ret = new int[p1.length];
+		for (int l=0; l < ret.length; l++)
+			ret[l] = p2[p1[l]];
+		return ret;
+	}
+
+	/** Throws an exception if p is not a bijection on {0,1,...,p.length-1}; returns p. */
+	private static int[] checkBijection(final int[] p) {
+		boolean[] hit = new boolean[p.length];
+		for (int l=0; l < p.length; l++) {
+			if (p[l] < 0 || p[l] >= p.length || hit[p[l]])
+				throw new IllegalArgumentException("not a permutation: "+p[l]+" is out of range or repeated (image of "+l+")");
+			hit[p[l]] = true;
+		}
+		return p;
+	}
+
+}
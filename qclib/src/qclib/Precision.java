@@ -0,0 +1,14 @@
+package qclib;
+
+/**
+ * Precision of the amplitudes of a dense QubitContainer.
+ * Single precision halves the memory and memory traffic of a state; 
+ *   its rounding error makes the norm drift by about 1e-7 per gate, 
+ *   which QubitRegister.setNormMonitor can watch and correct.
+ */
+public enum Precision {
+	/** Two doubles per amplitude */
+	DOUBLE,
+	/** Two floats per amplitude */
+	FLOAT
+}
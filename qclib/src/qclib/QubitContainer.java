@@ -1,26 +1,50 @@
 package qclib;
 
+import java.io.Closeable;
 import java.text.DecimalFormat;
-import java.util.Set;
 
 import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.complex.ComplexField;
-import org.apache.commons.math3.linear.ArrayFieldVector;
 import org.apache.commons.math3.linear.FieldVector;
-import org.apache.commons.math3.linear.SparseFieldVector;
 
+import qclib.store.AmplitudeStore;
+import qclib.store.BufferAmplitudeStore;
+import qclib.store.ChunkedAmplitudeStore;
+import qclib.store.DoubleAmplitudeStore;
+import qclib.store.FloatAmplitudeStore;
+import qclib.store.MappedAmplitudeStore;
+import qclib.store.OffHeapAmplitudeStore;
+import qclib.store.SparseAmplitudeStore;
+import qclib.util.IndexIterator;
 import qclib.util.QuantumUtil;
+import qclib.util.RandomSource;
+import qclib.util.SplitMix64;
 
 /**
  * 
  *
  */
-@SuppressWarnings("deprecation")
-public class QubitContainer {
+public class QubitContainer implements Closeable {
 	private int numbits;
-	/** Either a dense or sparse vector of data.
+	/** Either a dense (primitive double[]) or sparse store of the amplitudes.
 	 *  Ex. 2 qubits => {|00>, |01>, |10>, |11>} */
-	private FieldVector<Complex> data;
+	private AmplitudeStore data;
+	
+	/** Largest number of bits a merged diagonal or permutation may span before it is applied */
+	public static final int MAX_MERGED_DIAGONAL_BITS = 10;
+	/** Consecutive operators not yet applied to data, to be applied in one pass; reset after each flush */
+	private final FusedBlock pending = new FusedBlock();
+	/** Precision asked for the amplitudes of a dense container */
+	private final Precision precision;
+	/** Where dense stores live and when to switch storage; shared with the register that created this container */
+	private final StoragePolicy storage;
+	/** Sum of the squared amplitudes seen by the last measure, before collapsing */
+	private double lastNormSquared = 1;
+	
+	/** Containers with fewer qubits keep the storage they were created with */
+	public static final int MIN_ADAPTIVE_BITS = 10;
+	/** A dense container counts its non-zero amplitudes after this many flushed gates (and after each measurement) */
+	public static final int DENSITY_CHECK_INTERVAL = 32;
+	private int flushesSinceDensityCheck;
 	
 	/** Create a dense container. */
 	public QubitContainer(int numbits) { 
@@ -29,19 +53,79 @@ public class QubitContainer {
 	
 	/** Qubit container initially contains 1 in the |00...0> amplitude and 0 everywhere else. */
 	public QubitContainer(int numbits, boolean isSparse) {
+		this(numbits, isSparse, Precision.DOUBLE);
+	}
+	
+	/**
+	 * Create a dense container holding its amplitudes with the given precision.
+	 * Precision.FLOAT applies up to FloatAmplitudeStore.MAX_BITS qubits and not to off-heap or mapped containers,
+	 *   which hold doubles.
+	 */
+	public QubitContainer(int numbits, Precision precision) {
+		this(numbits, false, precision);
+	}
+	
+	/** Sparse or dense, with the default storage: on the heap, never switching. */
+	QubitContainer(int numbits, boolean isSparse, Precision precision) {
+		this(numbits, isSparse, precision, new StoragePolicy());
+	}
+	
+	/**
+	 * Sparse or dense; precision applies to the dense store it has or later switches to,
+	 *   and storage decides where that store lives and when to switch (see QubitRegister.setAdaptiveDensity).
+	 */
+	QubitContainer(int numbits, boolean isSparse, Precision precision, StoragePolicy storage) {
 		if (numbits <= 0)
 			throw new IllegalArgumentException("bad number of qubits: "+numbits);
+		if (precision == null)
+			throw new IllegalArgumentException("no precision given");
 		this.numbits = numbits;
-		if (isSparse) {
-			data = new SparseFieldVector<Complex>(ComplexField.getInstance(), 1<<numbits);
-		} else {
-			data = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<numbits);
-		}
-		data.setEntry(0, Complex.ONE);
+		this.precision = precision;
+		this.storage = storage;
+		data = isSparse ? new SparseAmplitudeStore(numbits) : newDenseStore();
+		data.set(0, 1, 0);
+	}
+	
+	/** An all-zero dense store for this container, according to the size, precision and storage settings. */
+	private AmplitudeStore newDenseStore() {
+		if (storesFloats(numbits, precision, storage))
+			return new FloatAmplitudeStore(numbits);
+		if (numbits >= storage.mappedBits)
+			return new MappedAmplitudeStore(numbits, Math.min(numbits, BufferAmplitudeStore.DEFAULT_CHUNK_BITS), storage.scratchDir);
+		if (numbits >= storage.offHeapBits)
+			return new OffHeapAmplitudeStore(numbits);
+		if (numbits > DoubleAmplitudeStore.MAX_BITS)
+			return new ChunkedAmplitudeStore(numbits);
+		return new DoubleAmplitudeStore(numbits);
+	}
+	
+	/**
+	 * True if newDenseStore keeps the amplitudes of numbits qubits as floats:
+	 *   the other stores (off the heap, in a file, or too large for one array) hold doubles whatever the precision.
+	 */
+	private static boolean storesFloats(int numbits, Precision precision, StoragePolicy storage) {
+		return precision == Precision.FLOAT && numbits <= FloatAmplitudeStore.MAX_BITS
+				&& numbits < storage.mappedBits && numbits < storage.offHeapBits;
+	}
+	
+	/** Bytes the dense store of a container of numbits qubits takes, as a double since it may exceed a long. */
+	static double denseBytes(int numbits, Precision precision, StoragePolicy storage) {
+		return (storesFloats(numbits, precision, storage) ? 8 : 16) * Math.pow(2, numbits);
 	}
 	
+	/** True if only the non-zero amplitudes are stored. */
+	public boolean isSparse() { return data instanceof SparseAmplitudeStore; }
+	
 	public int getNumbits() { return numbits; }
 	
+	public Precision getPrecision() { return precision; }
+	
+	/** The live amplitude store; for use by QubitRegister without copying. */
+	AmplitudeStore store() { 
+		flushPending();
+		return data; 
+	}
+	
 	
 	private static final DecimalFormat realFormat = new DecimalFormat(" 0.###;-0.###");
 	private String padToLength(String s, int len) {
@@ -54,20 +138,20 @@ public class QubitContainer {
 	@Override
 	public String toString() {
 		
+		flushPending();
 		StringBuilder sb = new StringBuilder("{ ");
-		for (int i=0; i < (1<<numbits); i++) {
-			Complex c = data.getEntry(i);
+		for (long i=0; i < data.size(); i++) {
 			sb.append('|');
 			// print leading zeros on the index from toBinaryString
-			String idxString = Integer.toBinaryString(i);
+			String idxString = Long.toBinaryString(i);
 			for (int j=numbits - idxString.length(); j > 0; j--)
 				sb.append('0');
 			
 			sb.append(idxString).append(">=(")
-				.append(padToLength(realFormat.format(c.getReal()), 6)).append(',')
-				.append(padToLength(realFormat.format(c.getImaginary()), 6)).append("i)");
+				.append(padToLength(realFormat.format(data.getReal(i)), 6)).append(',')
+				.append(padToLength(realFormat.format(data.getImaginary(i)), 6)).append("i)");
 			
-			if (i == (1<<numbits)-1)
+			if (i == data.size()-1)
 				sb.append(" }\n");
 			else if (i % 4 == 3)			// put long vector on multiple lines
 				sb.append("\n   ");
@@ -84,19 +168,17 @@ public class QubitContainer {
 	 */
 	public void reorderBits(int... neworder) {
 		Operator.checkSetUniquelyK(true, this.getNumbits(), neworder);
+		flushPending();
 		
-		Set<int[]> transet = QuantumUtil.translateIndices(this.getNumbits(), neworder);
-		assert transet.size() == 1;
-		final int[] indices = transet.iterator().next();
-		
-		FieldVector<Complex> remappedVec = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<this.getNumbits());
-		QuantumUtil.indexGet(data, indices, remappedVec);
-		data = remappedVec; // replace data with same data in new order
+		AmplitudeStore remapped = data.reorderBits(neworder);
+		data.close();
+		data = remapped; // replace data with same data in new order
 	}
 	
 	/** Returns a copy of the data vector. */
 	public FieldVector<Complex> getAmps() {
-		return data.copy(); 
+		flushPending();
+		return data.toFieldVector(); 
 	}
 	
 	/** 
@@ -105,22 +187,38 @@ public class QubitContainer {
 	 * @return this
 	 */
 	public QubitContainer setAmps(FieldVector<Complex> amps) {
-		if (amps == null || amps.getDimension() > (1<<numbits))
+		if (amps == null || amps.getDimension() > data.size())
 			throw new IllegalArgumentException("bad number of amps given: "+amps);
-		data = amps.copy();
+		pending.reset(); // overwritten anyway
+		data.setFrom(amps);
 		//checkUnit(); // for safety
 		return this;
 	}
 	
+	/** 
+	 * Primitive version of setAmps; copies the amplitudes from amps.
+	 * @param amps store of the same number of qubits
+	 * @return this
+	 */
+	public QubitContainer setAmps(AmplitudeStore amps) {
+		if (amps == null || amps.getNumbits() != numbits)
+			throw new IllegalArgumentException("bad number of amps given: "+amps);
+		pending.reset(); // overwritten anyway
+		for (long i=0; i < data.size(); i++)
+			data.set(i, amps.getReal(i), amps.getImaginary(i));
+		return this;
+	}
+	
 	/**
 	 * Ensures unit magnitude for sums of squares of amplitudes.
 	 */
 	@SuppressWarnings("unused")
 	private void checkUnit() {
 		//TODO: turn off for performance, along with all the above argument error checking
+		flushPending();
 		double sumSquares = 0.0;
-		for (Complex c : data.toArray())
-			sumSquares += c.abs()*c.abs();
+		for (long i=0; i < data.size(); i++)
+			sumSquares += data.normSquared(i);
 		if (!QuantumUtil.isApproxZero(sumSquares - 1.0))
 			throw new IllegalStateException("Qubit data does not have proper amplitudes (squares of amps sum to "+sumSquares+")");
 	}
@@ -165,91 +263,466 @@ public class QubitContainer {
 		if (op == null || targetbits == null || targetbits.length > numbits 
 				|| op.getArity() != targetbits.length)
 			throw new IllegalArgumentException("bad argument operator targetbits");
+		// checked here, not when the block is applied, so that the error comes from this call
+		long seen = 0;
+		for (int b : targetbits) {
+			if (b < 0 || b >= numbits)
+				throw new IllegalArgumentException("bad target bit: "+b);
+			if ((seen & 1L<<b) != 0)
+				throw new IllegalArgumentException("repeated target bit: "+b);
+			seen |= 1L<<b;
+		}
 
-		op.applyTo(numbits, this.data, targetbits);
+		if (pending.tryAdd(op, targetbits, storage.maxFusedBits, MAX_MERGED_DIAGONAL_BITS))
+			return this;
+		flushPending();
+		pending.tryAdd(op, targetbits, storage.maxFusedBits, MAX_MERGED_DIAGONAL_BITS); // always fits an empty block
 		return this;
 	}
 	
+	/// ----------------------------
+	/// ADAPTIVE DENSE/SPARSE STORAGE
+	/// See QubitRegister.setAdaptiveDensity.
+	/// ----------------------------
 	
+	/**
+	 * Switch storage if the density of the state crossed a threshold.
+	 * @param force count the non-zero amplitudes of a dense store now instead of every DENSITY_CHECK_INTERVAL calls
+	 */
+	private void adapt(boolean force) {
+		if (numbits < MIN_ADAPTIVE_BITS || !storage.isAdaptive())
+			return;
+		if (isSparse()) {
+			long nonZero = data.countNonZero();
+			if (nonZero > storage.denseAbove * data.size())
+				convert(newDenseStore(), nonZero);
+		} else if (force || ++flushesSinceDensityCheck >= DENSITY_CHECK_INTERVAL) {
+			flushesSinceDensityCheck = 0;
+			long nonZero = data.countNonZero();
+			if (nonZero < storage.sparseBelow * data.size())
+				convert(new SparseAmplitudeStore(numbits), nonZero);
+		}
+	}
+	
+	private void convert(AmplitudeStore to, long nonZero) {
+		data.copyTo(to);
+		data.close();
+		data = to;
+		StorageListener l = storage.listener;
+		if (l != null)
+			l.storageChanged(this, isSparse(), nonZero);
+	}
+	
+	/** Sum of the squared amplitudes, 1 up to rounding error. */
+	public double normSquared() {
+		flushPending();
+		return data.marginal(new int[0])[0];
+	}
+	
+	/** Sum of the squared amplitudes seen by the last call to measure, before it collapsed the state. */
+	double getLastNormSquared() { return lastNormSquared; }
+	
+	/** Scale the amplitudes so that their squares sum to 1, removing accumulated rounding error. */
+	public void normalize() {
+		double n = normSquared();
+		if (n == 0)
+			throw new IllegalStateException("cannot normalize an all-zero state");
+		data.scale(0, 0, 1/Math.sqrt(n));
+	}
+	
+	/** Frees the memory or file of the store if it lives off the heap.  The container must not be used afterwards. */
+	@Override
+	public void close() {
+		pending.reset();
+		data.close();
+	}
+	
+	/** Apply the pending operators, if any, in one pass. */
+	private void flushPending() {
+		if (pending.isEmpty())
+			return;
+		try {
+			pending.applyTo(data);
+		} finally {
+			pending.reset();
+		}
+		adapt(false);
+	}
+	
+	
+	
+	/// ----------
+	/// DECOUPLING
+	/// ----------
+	
+	/** Relative size of a 2x2 minor below which the amplitude matrix of a bit counts as rank 1, for amplitudes held as doubles */
+	public static final double SEPARABLE_TOLERANCE = 1e-8;
+	/** SEPARABLE_TOLERANCE for amplitudes held as floats, whose rounding error is about 1e-7 per gate */
+	public static final double SEPARABLE_TOLERANCE_FLOAT = 1e-5;
+	
+	/**
+	 * The bases (index with bit clear) of the pairs of amplitudes (base, base | 2^bit) to look at:
+	 *   every pair for a dense store, the pairs holding a non-zero amplitude for a sparse one.
+	 */
+	private long[] sparseBases(int bit) {
+		long[] ret = data.nonZeroIndices();
+		for (int i=0; i < ret.length; i++)
+			ret[i] &= ~(1L<<bit);
+		return ret;
+	}
+	
+	/**
+	 * Tests whether bit is unentangled from the other bits: whether the 2 x 2^(numbits-1) matrix
+	 *   with rows (amplitudes with bit 0) and (amplitudes with bit 1) has rank 1.
+	 * Two passes over the state: one for the column of largest magnitude, one comparing every column to it.
+	 * The tolerance is SEPARABLE_TOLERANCE, or SEPARABLE_TOLERANCE_FLOAT if the amplitudes are held as floats.
+	 * @return the state of bit, {re_0, im_0, re_1, im_1} of norm 1, if it is separable; else null
+	 */
+	public double[] separableState(int bit) {
+		if (bit < 0 || bit >= numbits || numbits < 2)
+			throw new IllegalArgumentException("bad bit "+bit+" of "+numbits);
+		flushPending();
+		final long tbit = 1L<<bit;
+		long[] bases = isSparse() ? sparseBases(bit) : null;
+		IndexIterator it = bases == null ? new IndexIterator(numbits, bit) : null;
+		// pivot: the column of largest magnitude
+		long pivot = 0;
+		double best = -1;
+		for (int i=0; bases == null ? it.nextBlock() : i < bases.length; i++) {
+			long b = bases == null ? it.base() : bases[i];
+			double m = data.normSquared(b) + data.normSquared(b | tbit);
+			if (m > best) {
+				best = m;
+				pivot = b;
+			}
+		}
+		if (best <= 0) // none, or all zero
+			throw new IllegalStateException("all-zero state");
+		double pr0 = data.getReal(pivot), pi0 = data.getImaginary(pivot),
+				pr1 = data.getReal(pivot | tbit), pi1 = data.getImaginary(pivot | tbit);
+		// every column must be a multiple of the pivot: a0*p1 - a1*p0 == 0
+		final double tol = data instanceof FloatAmplitudeStore ? SEPARABLE_TOLERANCE_FLOAT : SEPARABLE_TOLERANCE;
+		final double tol2 = tol*tol*best;
+		if (it != null)
+			it.reset();
+		for (int i=0; bases == null ? it.nextBlock() : i < bases.length; i++) {
+			long b = bases == null ? it.base() : bases[i];
+			double ar0 = data.getReal(b), ai0 = data.getImaginary(b),
+					ar1 = data.getReal(b | tbit), ai1 = data.getImaginary(b | tbit);
+			double mr = ar0*pr1 - ai0*pi1 - (ar1*pr0 - ai1*pi0), mi = ar0*pi1 + ai0*pr1 - (ar1*pi0 + ai1*pr0);
+			if (mr*mr + mi*mi > tol2 * (ar0*ar0 + ai0*ai0 + ar1*ar1 + ai1*ai1))
+				return null;
+		}
+		double norm = Math.sqrt(best);
+		return new double[] {pr0/norm, pi0/norm, pr1/norm, pi1/norm};
+	}
+	
+	/**
+	 * Returns a new container of numbits-1 qubits with the state of the other bits, 
+	 *   given that bit is unentangled and in state q (from separableState): 
+	 *   amplitude r of the result is conj(q_0)*a_0 + conj(q_1)*a_1 for the pair (a_0, a_1) of this state at r.
+	 * The result has the same storage kind and precision; bits above bit move down by one.
+	 */
+	public QubitContainer factorOut(int bit, double[] q) {
+		if (bit < 0 || bit >= numbits || numbits < 2)
+			throw new IllegalArgumentException("bad bit "+bit+" of "+numbits);
+		flushPending();
+		final long tbit = 1L<<bit, low = tbit-1;
+		QubitContainer ret = new QubitContainer(numbits-1, isSparse(), precision, storage);
+		AmplitudeStore rest = ret.data;
+		rest.set(0, 0, 0);
+		long[] bases = isSparse() ? sparseBases(bit) : null;
+		IndexIterator it = bases == null ? new IndexIterator(numbits, bit) : null;
+		for (int i=0; bases == null ? it.nextBlock() : i < bases.length; i++) {
+			long b = bases == null ? it.base() : bases[i];
+			double ar0 = data.getReal(b), ai0 = data.getImaginary(b),
+					ar1 = data.getReal(b | tbit), ai1 = data.getImaginary(b | tbit);
+			rest.set((b & low) | (b >>> 1 & ~low), 
+					q[0]*ar0 + q[1]*ai0 + q[2]*ar1 + q[3]*ai1,
+					q[0]*ai0 - q[1]*ar0 + q[2]*ai1 - q[3]*ar1);
+		}
+		return ret;
+	}
 	
 	/// ---------------------
 	/// MEASUREMENT FUNCTIONS
 	/// ---------------------
 	
+	/** Measure a single bit, with the random numbers of the calling thread (see SplitMix64.threadLocal). */
+	public boolean measure(int targetbit) {
+		return measure(targetbit, SplitMix64.threadLocal());
+	}
+	
 	/**
 	 * Measure a single bit. Uses probability according to the amplitudes.
 	 * Collapses the container to a state with only the measured bit.
 	 * @param targetbit which bit to measure
+	 * @param random draws the outcome
 	 * @return boolean true for |1> and false for |0>
 	 */
-	public boolean measure(int targetbit) {
+	public boolean measure(int targetbit, RandomSource random) {
 		if (targetbit < 0 || targetbit >= numbits)
 			throw new IllegalArgumentException("bad target measurement bit: "+targetbit);
-		double sumSquaresZero = measureGetSumSquares(targetbit, 0, 0);
-		double sumSquaresOne = measureGetSumSquares(targetbit, 0, 1<<targetbit);
-		assert QuantumUtil.isApproxZero(sumSquaresZero + sumSquaresOne - 1); // sanity check
+		flushPending();
+		final long mask = 1L<<targetbit;
+		double sumSquaresZero = data.sumSquares(mask, 0);
+		double sumSquaresOne = data.sumSquares(mask, mask);
+		lastNormSquared = sumSquaresZero + sumSquaresOne;
+		assert precision != Precision.DOUBLE || QuantumUtil.isApproxZero(lastNormSquared - 1); // sanity check
 		
 		// return 0 with probability sumSquaresZero
 		// return 1 with probability 1-sumSquaresZero == sumSquaresOne
-		boolean result = Math.random() > sumSquaresZero;
+		// (relative to their sum, which is 1 up to rounding error)
+		boolean result = random.nextDouble() * lastNormSquared > sumSquaresZero;
 		// collapse the state via normalization
 		double sumSquaresResult = result ? sumSquaresOne : sumSquaresZero;
 		if (!QuantumUtil.isApproxZero(sumSquaresResult)) {
 			// avoided division by zero if we don't need to normalize!
 			// if measure 0, normalize all the amplitudes with a 0 at targetbit
 			//		and set all the amplitudes with a 1 at targetbit 
-			measureNormalize(targetbit, 0, result ? 1<<targetbit : 0, Math.sqrt(sumSquaresResult));
-			measureSetZero(targetbit, 0, result ? 0 : 1<<targetbit);
+			data.scale(mask, result ? mask : 0, 1/Math.sqrt(sumSquaresResult));
+			data.setZero(mask, result ? 0 : mask);
 		}
+		adapt(true);
 		return result;
 	}
 	
-	/** Helper Recursive method through each bit, skipping the targetbit.
-	 * Sum the squares of each coefficient, holding targetbit constant and varying all other free bits
-	 * @param targetbit the bit to skip (hold constant)
-	 * @param bitnum the current bit considered; ranges 0 -> numbits-1
-	 * @param bitaddr the current address under construction
-	 * @return a probability equal to the sum of the squares of coefficients with targetbit held fixed
-	 */
-	private double measureGetSumSquares(final int targetbit, int bitnum, int bitaddr) {
-		if (bitnum == targetbit)
-			return measureGetSumSquares(targetbit, bitnum+1, bitaddr);
-		if (bitnum >= numbits)
-			return QuantumUtil.square( data.getEntry(bitaddr).abs() );
-		double tmp = measureGetSumSquares(targetbit, bitnum+1, bitaddr);
-		tmp += measureGetSumSquares(targetbit, bitnum+1, bitaddr | (1<<bitnum));
-		return tmp;
-	}
-	
-	/** divide the coefficients of each bit by norm,
-	 * holding targetbit constant and varying the other free bits
-	 * @param targetbit
-	 * @param bitnum
-	 * @param bitaddr
-	 * @param norm the amount to normalize by
-	 */
-	private void measureNormalize(final int targetbit, int bitnum, int bitaddr, final double norm) {
-		if (bitnum == targetbit)
-			measureNormalize(targetbit, bitnum+1, bitaddr, norm);
-		else if (bitnum >= numbits)
-			data.setEntry(bitaddr, data.getEntry(bitaddr).divide(norm));
-		else {
-			measureNormalize(targetbit, bitnum+1, bitaddr, norm);
-			measureNormalize(targetbit, bitnum+1, bitaddr | (1<<bitnum), norm);
+	/** sampleIndex with the random numbers of the calling thread (see SplitMix64.threadLocal). */
+	public long sampleIndex() {
+		return sampleIndex(SplitMix64.threadLocal());
+	}
+	
+	/**
+	 * Draws a basis state with probability |amp|^2, without changing the state: 
+	 *   one pass over the stored amplitudes that stops at the one drawn (half a pass on average).
+	 * A store of doubles is taken to be normalized, as measure does; a store of floats, whose norm drifts,
+	 *   is first summed in another pass (see sampleIndex(RandomSource, double)).
+	 * @param random draws the state
+	 * @return the index of the basis state, bit b giving the value of bit b
+	 */
+	public long sampleIndex(RandomSource random) {
+		flushPending();
+		return sampleIndex(random, data instanceof FloatAmplitudeStore ? normSquared() : 1);
+	}
+	
+	/**
+	 * sampleIndex for a state whose sum of squares is known to be normSquared (ex. from normSquared()),
+	 *   so that every index is drawn in proportion to |amp|^2 / normSquared.
+	 * A shortfall from rounding error is made up by a second pass with the exact sum.
+	 */
+	public long sampleIndex(RandomSource random, double normSquared) {
+		flushPending();
+		long ret = walk(random.nextDouble() * normSquared);
+		if (ret < 0) // the squares summed to less than the number drawn
+			ret = walk(random.nextDouble() * data.marginal(new int[0])[0]);
+		if (ret < 0)
+			throw new IllegalStateException("all-zero state");
+		return ret;
+	}
+
+	/** The first index (in store order) at which the running sum of squares exceeds r, or -1 if none */
+	private long walk(double r) {
+		double sum = 0;
+		if (isSparse()) {
+			for (long idx : data.nonZeroIndices())
+				if ((sum += data.normSquared(idx)) > r)
+					return idx;
+		} else {
+			for (long idx=0; idx < data.size(); idx++)
+				if ((sum += data.normSquared(idx)) > r)
+					return idx;
+		}
+		return -1;
+	}
+
+	/** measureAll with the random numbers of the calling thread (see SplitMix64.threadLocal). */
+	public long measureAll() {
+		return measureAll(SplitMix64.threadLocal());
+	}
+	
+	/**
+	 * Measures every bit at once: draws a basis state (see sampleIndex) and collapses the container to it.
+	 * @param random draws the state
+	 * @return the index of the basis state, bit b giving the value of bit b
+	 */
+	public long measureAll(RandomSource random) {
+		long ret = sampleIndex(random);
+		data.fill(0, 0);
+		data.set(ret, 1, 0);
+		adapt(true);
+		return ret;
+	}
+	
+	/**
+	 * Measures bits together, at most 30 of them: draws their values from their joint distribution 
+	 *   (see marginalProbabilities) in one pass over the state, without changing it; see project for the collapsed state.
+	 * @param random draws the values
+	 * @return the values, bit i giving the value of bits[i]
+	 */
+	public int sampleBits(int[] bits, RandomSource random) {
+		checkBits(bits);
+		flushPending();
+		double[] p = data.marginal(bits);
+		double sum = 0;
+		for (double x : p)
+			sum += x;
+		if (sum == 0)
+			throw new IllegalStateException("all-zero state");
+		lastNormSquared = sum;
+		double r = random.nextDouble() * sum, cumulative = 0;
+		int last = 0;
+		for (int l=0; l < p.length; l++) {
+			if (p[l] == 0)
+				continue;
+			if ((cumulative += p[l]) > r)
+				return l;
+			last = l;
+		}
+		return last; // rounding error
+	}
+	
+	/**
+	 * The state of the other bits once bits are measured as value (bit i of value for bits[i]), normalized:
+	 *   a new container of numbits - bits.length qubits, holding the other bits in order.  This container is unchanged.
+	 * Same storage kind and precision; one pass over the amplitudes kept.
+	 */
+	public QubitContainer project(int[] bits, int value) {
+		checkBits(bits);
+		if (bits.length >= numbits)
+			throw new IllegalArgumentException("no bits left");
+		flushPending();
+		long bmask = 0;
+		for (int b : bits)
+			bmask |= 1L<<b;
+		final long target = QuantumUtil.depositBitsLong(value, bits);
+		int[] rest = new int[numbits - bits.length];
+		for (int b=0, j=0; b < numbits; b++)
+			if ((bmask & 1L<<b) == 0)
+				rest[j++] = b;
+		QubitContainer ret = new QubitContainer(rest.length, isSparse(), precision, storage);
+		AmplitudeStore out = ret.data;
+		if (isSparse()) {
+			out.set(0, 0, 0);
+			for (long idx : data.nonZeroIndices())
+				if ((idx & bmask) == target) {
+					long r = 0;
+					for (int j=0; j < rest.length; j++)
+						r |= (idx >>> rest[j] & 1) << j;
+					out.set(r, data.getReal(idx), data.getImaginary(idx));
+				}
+		} else {
+			IndexIterator it = new IndexIterator(numbits, rest);
+			it.seekBlock(QuantumUtil.extractMask(target, it.getFreeMask()));
+			out.gatherFrom(data, it);
 		}
+		double sum = out.marginal(new int[0])[0];
+		if (sum == 0)
+			throw new IllegalStateException("outcome "+value+" has probability 0");
+		out.scale(0, 0, 1/Math.sqrt(sum));
+		ret.adapt(true);
+		return ret;
 	}
 	
-	/** Set the coefficients of each bit to zero,
-	 * holding targetbit constant and varyign the other free bits */
-	private void measureSetZero(final int targetbit, int bitnum, int bitaddr) {
-		if (bitnum == targetbit)
-			measureSetZero(targetbit, bitnum+1, bitaddr);
-		else if (bitnum >= numbits)
-			data.setEntry(bitaddr, Complex.ZERO);
-		else {
-			measureSetZero(targetbit, bitnum+1, bitaddr);
-			measureSetZero(targetbit, bitnum+1, bitaddr | (1<<bitnum));
+	/** Throws if bits are not at most 30 distinct bits of this container. */
+	private void checkBits(int[] bits) {
+		if (bits == null || bits.length > 30)
+			throw new IllegalArgumentException("bad bits");
+		for (int i=0; i < bits.length; i++) {
+			if (bits[i] < 0 || bits[i] >= numbits)
+				throw new IllegalArgumentException("bad bit: "+bits[i]);
+			for (int j=0; j < i; j++)
+				if (bits[j] == bits[i])
+					throw new IllegalArgumentException("repeated bit: "+bits[i]);
+		}
+	}
+	
+	/// ---------------------------------
+	/// PROBABILITIES, WITHOUT MEASURING
+	/// Each is one read-only pass over the state, split across threads for a large container.
+	/// ---------------------------------
+	
+	/**
+	 * Joint distribution of bits, without changing the state: ret[l] is the probability 
+	 *   of measuring bits[0], bits[1], ... as bits 0, 1, ... of l.
+	 * Normalized by the sum of squares of the state, computed in the same pass.
+	 */
+	public double[] marginalProbabilities(int... bits) {
+		checkBits(bits);
+		flushPending();
+		double[] p = data.marginal(bits);
+		double sum = 0;
+		for (double x : p)
+			sum += x;
+		if (sum == 0)
+			throw new IllegalStateException("all-zero state");
+		for (int l=0; l < p.length; l++)
+			p[l] /= sum;
+		return p;
+	}
+	
+	/** Probability of measuring 1 on bit. */
+	public double probability(int bit) {
+		return marginalProbabilities(bit)[1];
+	}
+	
+	/** Probability of measuring every bit as in index. */
+	public double basisProbability(long index) {
+		if (index < 0 || index >= 1L<<numbits)
+			throw new IllegalArgumentException("bad index: "+index);
+		double sum = normSquared();
+		if (sum == 0)
+			throw new IllegalStateException("all-zero state");
+		return data.normSquared(index) / sum;
+	}
+	
+	/**
+	 * Expectation values <psi|P_t|psi> / <psi|psi> of the Pauli strings P_t = X^xmasks[t] Z^zmasks[t] (up to phase), 
+	 *   without changing the state: bit b of the masks gives X on bit b if only xmasks has it, Z if only zmasks has it, Y if both.
+	 * The strings that flip the same bits (same xmask) are computed together in one pass.
+	 */
+	public double[] pauliExpectations(long[] xmasks, long[] zmasks) {
+		if (xmasks == null || zmasks == null || xmasks.length != zmasks.length)
+			throw new IllegalArgumentException("need an xmask and a zmask per string");
+		final long all = (1L<<numbits)-1;
+		for (int t=0; t < xmasks.length; t++)
+			if ((xmasks[t] & ~all) != 0 || (zmasks[t] & ~all) != 0)
+				throw new IllegalArgumentException("bits outside the container in string "+t);
+		flushPending();
+		double[] ret = new double[xmasks.length];
+		boolean[] done = new boolean[xmasks.length];
+		double norm = data.marginal(new int[0])[0];
+		if (norm == 0)
+			throw new IllegalStateException("all-zero state");
+		for (int t=0; t < xmasks.length; t++) {
+			if (done[t])
+				continue;
+			// every string with the same xmask
+			int count = 0;
+			for (int u=t; u < xmasks.length; u++)
+				if (!done[u] && xmasks[u] == xmasks[t])
+					count++;
+			int[] group = new int[count];
+			long[] signmasks = new long[count];
+			for (int u=t, g=0; u < xmasks.length; u++)
+				if (!done[u] && xmasks[u] == xmasks[t]) {
+					group[g] = u;
+					signmasks[g++] = zmasks[u];
+					done[u] = true;
+				}
+			double[] sums = data.pauliSums(xmasks[t], signmasks);
+			for (int g=0; g < count; g++) {
+				// Y = iXZ: multiply by i^(number of Y) and keep the real part
+				double re = sums[2*g], im = sums[2*g+1], v;
+				switch (Long.bitCount(xmasks[t] & signmasks[g]) & 3) {
+					case 0: v = re; break;
+					case 1: v = -im; break;
+					case 2: v = -re; break;
+					default: v = im; break;
+				}
+				ret[group[g]] = v / norm;
+			}
 		}
+		return ret;
 	}
 	
 }
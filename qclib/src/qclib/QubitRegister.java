@@ -1,137 +1,629 @@
 package qclib;
 
-import java.util.HashSet;
-import java.util.IdentityHashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.complex.ComplexField;
-import org.apache.commons.math3.linear.ArrayFieldVector;
 import org.apache.commons.math3.linear.FieldVector;
 import org.apache.commons.math3.util.Pair;
 
+import qclib.store.AmplitudeStore;
+import qclib.store.DoubleAmplitudeStore;
+import qclib.util.IndexIterator;
+import qclib.util.Parallel;
 import qclib.util.QuantumUtil;
+import qclib.util.RandomSource;
+import qclib.util.SplitMix64;
 
-public class QubitRegister {
+public class QubitRegister implements Closeable {
 	/** Number of qubits in the quantum register */
 	private int numqubits;
 	
-	/** Array index is qubit number; maps to the qubit position in a QubitContainer. */
-	private Pair<Integer,QubitContainer>[] qubitToQC;
-	/** Reverse mapping of QubitContainer back to a list of integers representing the qubits in that container, in order */
-	private Map<QubitContainer,int[]> QCToQubit;
+	/** Which container holds each qubit, at which bit, and the qubits of each container in order */
+	private final ContainerRegistry registry;
+	
+	/** If true, doOp, setAmps and couple are queued until a result is observed. */
+	private boolean deferred = false;
+	/** Work recorded in deferred mode, in order. */
+	private final List<Pending> queue = new ArrayList<Pending>();
+	/** Rewrites each run of queued gates before it is applied; null for none. */
+	private GateOptimizer optimizer;
+	
+	/** Precision of the amplitudes of every container */
+	private final Precision precision;
+	/** Where the dense containers live and when containers switch storage; shared with every container */
+	private final StoragePolicy storage = new StoragePolicy();
+	/** Told the norm of each state by checkNorm and measure; null for none. */
+	private NormMonitor normMonitor;
+	/** checkNorm runs after every normCheckInterval gates; 0 for never */
+	private int normCheckInterval;
+	private int gatesSinceNormCheck;
+	/** decoupleNow runs on the container of the last gate after every decoupleInterval gates; 0 for never */
+	private int decoupleInterval;
+	private int gatesSinceDecouple;
+	/** gateBits[k] holds the container bits of the k qubits of the gate doOpNow applies */
+	private int[][] gateBits = new int[4][];
+	/** Draws the outcomes of measure and sample */
+	private RandomSource random = new SplitMix64();
+	
+	/** A doOp (op != null), setAmps (amps != null) or couple recorded in deferred mode. */
+	private static class Pending {
+		final Operator op;
+		final FieldVector<Complex> amps;
+		final int[] qubits;
+		
+		Pending(Operator op, FieldVector<Complex> amps, int[] qubits) {
+			this.op = op;
+			this.amps = amps;
+			this.qubits = qubits;
+		}
+	}
 	
 	/**
 	 * Initializes each qubit to state |0> inside separate qubit containers of size 1.
 	 * The qubit containers are dense.
 	 * @param numqubits
 	 */
-	@SuppressWarnings("unchecked")
 	public QubitRegister(int numqubits) {
+		this(numqubits, Precision.DOUBLE);
+	}
+	
+	/**
+	 * Initializes each qubit to state |0> inside separate qubit containers of size 1.
+	 * The qubit containers are dense, holding their amplitudes with the given precision.
+	 */
+	public QubitRegister(int numqubits, Precision precision) {
+		if (precision == null)
+			throw new IllegalArgumentException("no precision given");
 		this.numqubits = numqubits;
-		qubitToQC = new Pair[numqubits];
-		QCToQubit = new IdentityHashMap<QubitContainer,int[]>(numqubits); // compare by object identity using ==
+		this.precision = precision;
+		registry = new ContainerRegistry(numqubits);
 		
-		for (int i=0; i<numqubits; i++) {
-			QubitContainer qc = new QubitContainer(1, false);
-			qubitToQC[i] = new Pair<Integer,QubitContainer>(0, qc);
-			QCToQubit.put(qc, new int[] {i});
-		}
+		for (int i=0; i<numqubits; i++)
+			registry.add(newContainer(1, false), new int[] {i});
 			
 		
 	}
 	
+	/** An empty container of this register's precision and storage. */
+	private QubitContainer newContainer(int numbits, boolean isSparse) {
+		return new QubitContainer(numbits, isSparse, precision, storage);
+	}
+	
 	public int getNumqubits() { return numqubits; }
 	
+	public Precision getPrecision() { return precision; }
+	
+	public RandomSource getRandom() { return random; }
+	
+	/**
+	 * Draw measurement outcomes from random.  A register owns its source: give each register 
+	 *   used on its own thread a different one (ex. from split()).
+	 * By default each register gets a SplitMix64 seeded from the clock.
+	 */
+	public void setRandom(RandomSource random) {
+		if (random == null)
+			throw new IllegalArgumentException("null random source");
+		this.random = random;
+	}
+	
+	/** Make the measurement outcomes from now on reproducible: the same seed and the same calls give the same results. */
+	public void setSeed(long seed) {
+		setRandom(new SplitMix64(seed));
+	}
+	
+	/// ----------
+	/// NORM DRIFT
+	/// ----------
+	
+	public NormMonitor getNormMonitor() { return normMonitor; }
+	
+	/**
+	 * Report the norm of the states to monitor: on every measurement (at no extra cost), 
+	 *   on every call to checkNorm, and after every interval gates if interval > 0 
+	 *   (each check is one pass over every container).
+	 * @param monitor null for none
+	 * @param interval number of gates between automatic checks; 0 for none
+	 */
+	public void setNormMonitor(NormMonitor monitor, int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("bad interval: "+interval);
+		this.normMonitor = monitor;
+		this.normCheckInterval = interval;
+		this.gatesSinceNormCheck = 0;
+	}
+	
+	/**
+	 * Computes the norm of the state of every container, tells the monitor if there is one
+	 *   and normalizes the containers that the monitor asks for.
+	 * @return the largest deviation |sum of squared amplitudes - 1| found, before normalizing
+	 */
+	public double checkNorm() {
+		flush();
+		return checkNormNow();
+	}
+	
+	private double checkNormNow() {
+		gatesSinceNormCheck = 0;
+		double worst = 0;
+		for (int id=0; id < registry.capacity(); id++) {
+			QubitContainer qc = registry.get(id);
+			if (qc == null)
+				continue;
+			double n = qc.normSquared();
+			worst = Math.max(worst, Math.abs(n - 1));
+			if (normMonitor != null && normMonitor.normChecked(registry.qubits(id), n))
+				qc.normalize();
+		}
+		return worst;
+	}
+	
+	/// -------
+	/// STORAGE
+	/// -------
+	
+	/** Largest number of bits that consecutive gates on a container are fused over. */
+	public int getMaxFusedBits() { return storage.maxFusedBits; }
+	
+	/**
+	 * Consecutive gates on a container whose bits overlap are buffered and fused into 
+	 *   one dense 2^k x 2^k matrix as long as the union of their bits k is at most maxFusedBits,
+	 *   then applied in a single pass over the state if that is cheaper than applying them one by one.
+	 *   1 fuses only runs of 1-qubit gates on the same bit.
+	 * Runs of diagonal gates, and runs of permutations, are merged regardless, up to QubitContainer.MAX_MERGED_DIAGONAL_BITS.
+	 * The default of 4 is from FusionBenchmark (test/qclib): on 22 qubits it is several times faster 
+	 *   than 1 for long runs of gates on a few bits, and as fast as 1 otherwise.
+	 */
+	public void setMaxFusedBits(int maxFusedBits) {
+		if (maxFusedBits < 1 || maxFusedBits > QubitContainer.MAX_MERGED_DIAGONAL_BITS)
+			throw new IllegalArgumentException("bad number of fused bits: "+maxFusedBits);
+		storage.maxFusedBits = maxFusedBits;
+	}
+	
+	/** Number of qubits from which dense containers are stored off the Java heap. */
+	public int getOffHeapBits() { return storage.offHeapBits; }
+	
+	/**
+	 * Dense containers created from now on with at least offHeapBits qubits use an OffHeapAmplitudeStore,
+	 *   which holds the amplitudes in direct buffers that the garbage collector does not copy or scan.
+	 * Integer.MAX_VALUE (the default) keeps every container on the heap.
+	 * Close the register to free the memory right away.
+	 */
+	public void setOffHeapBits(int offHeapBits) {
+		if (offHeapBits < 1)
+			throw new IllegalArgumentException("bad number of qubits: "+offHeapBits);
+		storage.offHeapBits = offHeapBits;
+	}
+	
+	/** Number of qubits from which dense containers are stored in a memory-mapped file. */
+	public int getMappedBits() { return storage.mappedBits; }
+	
+	/** Directory where mapped containers put their files; null for java.io.tmpdir. */
+	public File getScratchDir() { return storage.scratchDir; }
+	
+	/** Same as setMappedBits(mappedBits, getScratchDir()). */
+	public void setMappedBits(int mappedBits) {
+		setMappedBits(mappedBits, storage.scratchDir);
+	}
+	
+	/**
+	 * Dense containers created from now on with at least mappedBits qubits use a MappedAmplitudeStore,
+	 *   whose amplitudes live in a file in scratchDir and are paged in as needed,
+	 *   so a state may be larger than RAM (at the speed of the disk).  Takes precedence over setOffHeapBits.
+	 * Integer.MAX_VALUE (the default) keeps every container in memory.
+	 * Close the register to delete the files right away.
+	 * @param scratchDir an existing directory; null for java.io.tmpdir
+	 */
+	public void setMappedBits(int mappedBits, File scratchDir) {
+		if (mappedBits < 1)
+			throw new IllegalArgumentException("bad number of qubits: "+mappedBits);
+		if (scratchDir != null && !scratchDir.isDirectory())
+			throw new IllegalArgumentException("not a directory: "+scratchDir);
+		storage.mappedBits = mappedBits;
+		storage.scratchDir = scratchDir;
+	}
+	
+	/** True if containers switch between dense and sparse storage; see setAdaptiveDensity. */
+	public boolean isAdaptive() { return storage.isAdaptive(); }
+	
+	public double getSparseBelow() { return storage.sparseBelow; }
+	public double getDenseAbove() { return storage.denseAbove; }
+	
+	/**
+	 * Containers of at least QubitContainer.MIN_ADAPTIVE_BITS qubits follow the support of their state:
+	 *   a dense container whose fraction of non-zero amplitudes is below sparseBelow becomes sparse,
+	 *   and a sparse one above denseAbove becomes dense.  The gap between the two is the hysteresis
+	 *   that keeps a state near one threshold from switching back and forth.
+	 * couple builds a container sparse right away if the product of the states is below sparseBelow.
+	 * Sparse containers check after every flushed gate (counting is free); dense ones count 
+	 *   after every QubitContainer.DENSITY_CHECK_INTERVAL flushed gates and after each measurement.
+	 * setAdaptiveDensity(0, 1) (the default) turns switching off.
+	 * @param sparseBelow in [0, denseAbove)
+	 * @param denseAbove in (sparseBelow, 1]
+	 */
+	public void setAdaptiveDensity(double sparseBelow, double denseAbove) {
+		if (!(0 <= sparseBelow && sparseBelow < denseAbove && denseAbove <= 1))
+			throw new IllegalArgumentException("need 0 <= sparseBelow < denseAbove <= 1, got "+sparseBelow+" and "+denseAbove);
+		storage.sparseBelow = sparseBelow;
+		storage.denseAbove = denseAbove;
+	}
+	
+	public StorageListener getStorageListener() { return storage.listener; }
+	
+	/** Tell listener of every switch of a container of this register between dense and sparse storage; null for none. */
+	public void setStorageListener(StorageListener listener) {
+		storage.listener = listener;
+	}
+	
+	/// ----------
+	/// DECOUPLING
+	/// ----------
+	
+	public int getDecoupleInterval() { return decoupleInterval; }
+	
+	/**
+	 * After every interval gates, look for qubits of the container of the last gate that are no longer 
+	 *   entangled with the rest of it, and move them back to containers of their own (see decouple).
+	 * Each check costs two passes over the container per qubit.
+	 * @param interval number of gates between automatic checks; 0 for none (the default)
+	 */
+	public void setDecoupleInterval(int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("bad interval: "+interval);
+		this.decoupleInterval = interval;
+		this.gatesSinceDecouple = 0;
+	}
+	
+	/**
+	 * Moves every qubit that is not entangled with the others in its container (see QubitContainer.separableState)
+	 *   to a container of its own, so that later gates on the rest work on a state half the size per qubit split off.
+	 * Only single qubits are split off: a container holding two unentangled groups of several qubits stays whole.
+	 * @return the number of qubits split off
+	 */
+	public int decouple() {
+		flush();
+		// the containers there are now; splitting adds more
+		boolean[] live = new boolean[registry.capacity()];
+		for (int id=0; id < live.length; id++)
+			live[id] = registry.get(id) != null;
+		int count = 0;
+		for (int id=0; id < live.length; id++)
+			if (live[id])
+				count += decoupleNow(id);
+		return count;
+	}
+	
+	private int decoupleNow(int id) {
+		int count = 0;
+		QubitContainer qc = registry.get(id);
+		// splitting off a bit leaves the numbering of the bits below it alone
+		for (int bit = qc.getNumbits()-1; bit >= 0 && qc.getNumbits() > 1; bit--) {
+			double[] q = qc.separableState(bit);
+			if (q == null)
+				continue;
+			QubitContainer qcRemaining = qc.factorOut(bit, q);
+			QubitContainer qcSingle = newContainer(1, false);
+			qcSingle.store().set(0, q[0], q[1]);
+			qcSingle.store().set(1, q[2], q[3]);
+			id = registry.split(id, registry.qubits(id)[bit], qcRemaining, qcSingle);
+			qc.close();
+			qc = qcRemaining;
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Frees the memory or files of the containers that are stored off the Java heap (see setOffHeapBits and setMappedBits).
+	 * Queued work is dropped.  The register must not be used afterwards.
+	 */
+	@Override
+	public void close() {
+		queue.clear();
+		for (int id=0; id < registry.capacity(); id++)
+			if (registry.get(id) != null)
+				registry.get(id).close();
+	}
+	
+	/// -------------
+	/// DEFERRED MODE
+	/// -------------
+	
+	public boolean isDeferred() { return deferred; }
+	
+	/**
+	 * In deferred mode, doOp, setAmps and couple only check their arguments and record the call.
+	 * The recorded calls are carried out in order when a result is observed 
+	 *   (measure, getAmps, printBits, toString) or flush is called; 
+	 *   each run of gates between other calls first goes through the optimizer, if any.
+	 * Errors that depend on the state of the register (ex. setAmps on qubits entangled with others) 
+	 *   are only thrown when the queue is flushed.
+	 * Turning deferred mode off flushes the queue.
+	 */
+	public void setDeferred(boolean deferred) {
+		if (!deferred)
+			flush();
+		this.deferred = deferred;
+	}
+	
+	public GateOptimizer getOptimizer() { return optimizer; }
+	
+	/** Use optimizer on the runs of gates queued in deferred mode; null for none. */
+	public void setOptimizer(GateOptimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+	
+	/** Number of calls recorded in deferred mode and not yet carried out. */
+	public int getQueuedCount() { return queue.size(); }
+	
+	/** Drop every call recorded in deferred mode without carrying it out. */
+	public void discardQueued() {
+		queue.clear();
+	}
+	
+	/** Carry out every call recorded in deferred mode.  No effect if there are none. */
+	public void flush() {
+		if (queue.isEmpty())
+			return;
+		List<Pending> work = new ArrayList<Pending>(queue);
+		queue.clear();
+		List<Pair<Operator,int[]>> run = new ArrayList<Pair<Operator,int[]>>();
+		for (Pending p : work) {
+			if (p.op != null) {
+				run.add(new Pair<Operator,int[]>(p.op, p.qubits));
+				continue;
+			}
+			applyRun(run);
+			run.clear();
+			if (p.amps != null)
+				setAmpsNow(p.amps, p.qubits);
+			else
+				coupleNow(p.qubits);
+		}
+		applyRun(run);
+	}
+	
+	/**
+	 * Optimize a run of gates and apply it.
+	 * The qubits that the run makes interact are coupled up front, one group at a time,
+	 *   instead of pairwise as each gate comes.  Gates that factor across the containers they touch 
+	 *   (see applyFactored) join nothing: doOpNow applies them to each container.
+	 */
+	private void applyRun(List<Pair<Operator,int[]>> run) {
+		if (run.isEmpty())
+			return;
+		if (optimizer != null)
+			run = optimizer.optimize(run);
+		
+		// union-find over the qubits, joining the qubits of each gate
+		int[] parent = new int[numqubits];
+		for (int q=0; q < numqubits; q++)
+			parent[q] = q;
+		for (Pair<Operator,int[]> g : run) {
+			int[] qs = g.getSecond();
+			if (factorsAcross(g.getFirst(), qs))
+				continue;
+			for (int i=1; i < qs.length; i++) {
+				int a = find(parent, qs[0]), b = find(parent, qs[i]);
+				if (a != b)
+					parent[a] = b;
+			}
+		}
+		int[] groupsize = new int[numqubits];
+		for (int q=0; q < numqubits; q++)
+			groupsize[find(parent, q)]++;
+		for (int root=0; root < numqubits; root++) {
+			if (groupsize[root] < 2)
+				continue;
+			int[] group = new int[groupsize[root]];
+			for (int q=0, j=0; q < numqubits; q++)
+				if (find(parent, q) == root)
+					group[j++] = q;
+			coupleNow(group);
+		}
+		
+		for (Pair<Operator,int[]> g : run)
+			doOpNow(g.getFirst(), g.getSecond());
+	}
+	
+	private static int find(int[] parent, int q) {
+		while (parent[q] != q)
+			q = parent[q] = parent[parent[q]];
+		return q;
+	}
+	
 	@Override
 	public String toString() {
+		flush();
 		StringBuilder sb = new StringBuilder("qubitToQC (numqubits="+numqubits+")\n");
 		/*for (int i=0; i<numqubits; i++) {
 			
 		}*/
 		int i=0;
-		for (Map.Entry<QubitContainer, int[]> entry : QCToQubit.entrySet()) {
+		for (int id=0; id < registry.capacity(); id++) {
+			if (registry.get(id) == null)
+				continue;
 			char QCchar = (char)('A'+i);
 			sb.append("\t"+ QCchar +"->{");
-			for (int q : entry.getValue())
+			for (int q : registry.qubits(id))
 				sb.append(q+",");
 			sb.insert(sb.length()-1, '}');
-			sb.append(" "+QCchar+":"+entry.getKey()+'\n');
+			sb.append(" "+QCchar+":"+registry.get(id)+'\n');
 			i++;
 		}
 		return sb.toString();
 	}
 	
-	/** Are all the qubits inside the same container? Also error checks arguments. */
-	private Set<QubitContainer> getContainersHolding(int... qubits) {
-		if (qubits == null || qubits.length == 0 || qubits[0] < 0 || qubits[0] >= numqubits)
+	/**
+	 * Number of containers holding qubits (1 if they are all inside the same container), 
+	 *   whose ids are then in registry.distinctIds().  Also error checks arguments.
+	 */
+	private int containersHolding(int... qubits) {
+		if (qubits == null || qubits.length == 0)
 			throw new IllegalArgumentException("bad qubits");
-		
-		Set<QubitContainer> qcset = new HashSet<QubitContainer>(qubits.length); // max number of containers if each is in a separate one
-		for (int i = 0; i < qubits.length; i++) {
+		for (int i = 0; i < qubits.length; i++)
 			if (qubits[i] < 0 || qubits[i] >= numqubits)
 				throw new IllegalArgumentException("bad qubit: "+qubits[i]);
-			qcset.add(qubitToQC[qubits[i]].getSecond());
-		}
-		return qcset;
+		return registry.distinct(qubits);
+	}
+	
+	/** The containers with ids[0..count), in that order */
+	private List<QubitContainer> containers(int[] ids, int count) {
+		List<QubitContainer> ret = new ArrayList<QubitContainer>(count);
+		for (int j=0; j < count; j++)
+			ret.add(registry.get(ids[j]));
+		return ret;
 	}
 	
 	/**
 	 * Combines qubits into a single, larger (dense) container. 
 	 * Note: if a qubit is in a container with an unspecified qubit, it needs to be included too
-	 * 		(unless they are unentangled -- future todo) 
+	 * 		(decouple splits unentangled qubits back out afterwards)
 	 * Future: accept a BitSet argument, since the order does not matter
 	 * @param qubits The qubits to combine into a single QubitContainer of size qubits.length
 	 */
 	public void couple(int... qubits) { // make private later
+		if (deferred) {
+			containersHolding(qubits); // error checking
+			queue.add(new Pending(null, null, qubits.clone()));
+			return;
+		}
+		coupleNow(qubits);
+	}
+	
+	private void coupleNow(int... qubits) {
 		// see if they are already part of the same container
-		Set<QubitContainer> qcset = getContainersHolding(qubits);
-		if (qcset.size() == 1)
+		int count = containersHolding(qubits);
+		if (count == 1)
 			return;
 		// at least one qubit is in a different container
+		// largest first: its amplitudes are copied into the low bits in contiguous runs, and the smaller ones multiplied in
+		int[] ids = Arrays.copyOf(registry.distinctIds(), count);
+		for (int j=1; j < count; j++)
+			for (int k=j; k > 0 && registry.get(ids[k-1]).getNumbits() < registry.get(ids[k]).getNumbits(); k--) {
+				int t = ids[k];
+				ids[k] = ids[k-1];
+				ids[k-1] = t;
+			}
+		List<QubitContainer> parts = containers(ids, count);
 		// how many total qubits do we need to put in a new container?
 		int numBitsNew = 0;
-		for (QubitContainer qc : qcset) {
-			numBitsNew += QCToQubit.get(qc).length; // invariant: integers are mutually exclusive
-		}
-		QubitContainer qcnew = new QubitContainer(numBitsNew, false); // dense
-		// this is for the qubits that qcnew will map to
-		int[] qubitsForqcnew = new int[numBitsNew];
+		for (QubitContainer qc : parts)
+			numBitsNew += qc.getNumbits();
+		boolean sparse = productIsSparse(parts, numBitsNew);
+		QubitContainer qcnew = newContainer(numBitsNew, sparse);
 		
-		// let's create the vector to set to the new QubitContainer
-		FieldVector<Complex> amps = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<numBitsNew); // dense
-		// initialize to all 1s
-		amps.set(Complex.ONE);
+		// let's create the amplitudes to set to the new QubitContainer
+		AmplitudeStore amps = qcnew.store();
+		if (sparse)
+			setSparseProduct(amps, parts);
 		// now for each QubitContainer we're transferring to the new container
 		int qcnewidx = 0;
-		for (QubitContainer qc : qcset) {
-			int[] qubitsTransferring = QCToQubit.get(qc);
-			int[] qcnewidxarr = QuantumUtil.makeConsecutiveIntArray(qcnewidx, qubitsTransferring.length);
-			
-			for (int[] indices : QuantumUtil.translateIndices(numBitsNew, qcnewidxarr)) {
-				QuantumUtil.indexMultiplyIn(amps, indices, qc.getAmps());	
-			}
-			
-			// update maps
-			for (int i=0; i < qubitsTransferring.length; i++) {
-				qubitToQC[qubitsTransferring[i]] = new Pair<Integer,QubitContainer>(qcnewidx+i, qcnew);
-				qubitsForqcnew[qcnewidx+i] = qubitsTransferring[i]; 
+		for (QubitContainer qc : parts) {
+			if (!sparse) {
+				int[] qcnewidxarr = QuantumUtil.makeConsecutiveIntArray(qcnewidx, qc.getNumbits());
+				IndexIterator it = new IndexIterator(numBitsNew, qcnewidxarr);
+				while (it.nextBlock())
+					if (qcnewidx == 0)
+						amps.scatterFrom(qc.store(), it); // every amplitude is written once here
+					else
+						amps.multiplyIn(it, qc.store());
 			}
-			QCToQubit.remove(qc);
-			
-			qcnewidx += qubitsTransferring.length;
+			qc.close();
+			qcnewidx += qc.getNumbits();
 		}
 		assert qcnewidx == numBitsNew;
-		QCToQubit.put(qcnew, qubitsForqcnew);
-		// All Done xD
-		qcnew.setAmps(amps);
+		registry.union(ids, count, qcnew);
+		// All Done xD -- amps were built in place inside qcnew
+	}
+	
+	/** Whether the container coupling parts, numBitsNew qubits in all, should be sparse (see setAdaptiveDensity). */
+	private boolean productIsSparse(List<QubitContainer> parts, int numBitsNew) {
+		if (!storage.isAdaptive() || numBitsNew < QubitContainer.MIN_ADAPTIVE_BITS)
+			return false;
+		// the number of non-zero amplitudes of the product is the product of theirs
+		return nonZeroProduct(parts) < storage.sparseBelow * Math.pow(2, numBitsNew);
+	}
+	
+	private static double nonZeroProduct(List<QubitContainer> parts) {
+		double nonZero = 1;
+		for (QubitContainer qc : parts)
+			nonZero *= qc.store().countNonZero();
+		return nonZero;
+	}
+	
+	/**
+	 * Estimated bytes of memory (or scratch file) the container coupling qubits together would take: 
+	 *   all the qubits of the containers now holding them, as couple and an entangling doOp make it.
+	 * Lets callers see the cost of a gate before it is made, and stop or use another simulator instead.
+	 * Queued work is flushed first.
+	 * @return the estimate, or 0 if the qubits already share a container
+	 */
+	public long estimateCouplingBytes(int... qubits) {
+		flush();
+		int count = containersHolding(qubits);
+		if (count == 1)
+			return 0;
+		List<QubitContainer> parts = containers(registry.distinctIds(), count);
+		int numBitsNew = 0;
+		for (QubitContainer qc : parts)
+			numBitsNew += qc.getNumbits();
+		if (productIsSparse(parts, numBitsNew)) {
+			// open addressing, at most half full, with a key and two doubles per slot
+			double slots = 16, nonZero = nonZeroProduct(parts);
+			while (slots < 2*nonZero)
+				slots *= 2;
+			return (long)Math.min(slots * 24, Long.MAX_VALUE);
+		}
+		return (long)Math.min(QubitContainer.denseBytes(numBitsNew, precision, storage), Long.MAX_VALUE);
 	}
 	
-	// FUTURE TODO make a decouple method for decoupling unentangled QubitContainers
-	// maybe make a method we can call on QubitContainers called isEntangled?
-	// but need to distinguish which bits are entangled and which are not.
+	/**
+	 * Estimated bytes of the container doOp(op, qubits) would create: 0 if the qubits share a container 
+	 *   or op is a diagonal or permutation that does not entangle their containers (then each gets its share of op), 
+	 *   and estimateCouplingBytes(qubits) otherwise.
+	 */
+	public long estimateOpBytes(Operator op, int... qubits) {
+		flush();
+		if (op == null || op.getArity() != qubits.length)
+			throw new IllegalArgumentException("bad operator "+op+" for "+qubits.length+" qubits");
+		if (containersHolding(qubits) == 1 || factorsAcross(op, qubits))
+			return 0;
+		return estimateCouplingBytes(qubits);
+	}
+	
+	/**
+	 * Writes the tensor product of the states of parts, the first in the lowest bits, into amps
+	 *   by combining only their non-zero amplitudes.
+	 */
+	private static void setSparseProduct(AmplitudeStore amps, List<QubitContainer> parts) {
+		long[] idx = {0};
+		double[] re = {1}, im = {0};
+		int shift = 0;
+		for (QubitContainer qc : parts) {
+			AmplitudeStore part = qc.store();
+			long[] nz = part.nonZeroIndices();
+			long[] idx2 = new long[idx.length * nz.length];
+			double[] re2 = new double[idx2.length], im2 = new double[idx2.length];
+			for (int a=0, n=0; a < idx.length; a++)
+				for (int b=0; b < nz.length; b++, n++) {
+					double br = part.getReal(nz[b]), bi = part.getImaginary(nz[b]);
+					idx2[n] = idx[a] | nz[b] << shift;
+					re2[n] = re[a]*br - im[a]*bi;
+					im2[n] = re[a]*bi + im[a]*br;
+				}
+			idx = idx2;
+			re = re2;
+			im = im2;
+			shift += qc.getNumbits();
+		}
+		amps.set(0, 0, 0);
+		for (int n=0; n < idx.length; n++)
+			amps.set(idx[n], re[n], im[n]);
+	}
 	
 	/**
 	 * Gets the qubit amplitudes from the underlying container.  
@@ -141,43 +633,33 @@ public class QubitRegister {
 	 * @return The amplitudes, in order.
 	 */
 	public FieldVector<Complex> getAmps(int... qubits) {
-		Set<QubitContainer> conts = getContainersHolding(qubits);
+		flush();
+		int count = containersHolding(qubits);
 		QubitContainer qcTarget; 
 		
-		if (conts.size() == 1) {
+		if (count == 1) {
 			// case 1)
-			qcTarget = conts.iterator().next();
-			
-			qcTarget = conts.iterator().next();
+			qcTarget = registry.container(qubits[0]);
 			if (qubits.length != qcTarget.getNumbits()) // need to specify all the qubits in the container
 				throw new IllegalArgumentException("provided "+qubits.length+" qubits but they are in a container of size "+qcTarget.getNumbits());
 			
-			int[] targetbits = new int[qubits.length];
-			for (int i=0; i<qubits.length; i++) {
-				targetbits[i] = qubitToQC[qubits[i]].getFirst(); // the position of qubit[i] in qcTarget
-				assert qubitToQC[i].getSecond() == qcTarget;
-			}
+			int[] targetbits = targetBits(qubits, qcTarget);
 			
 			// translate from indices on qubits in the QR to indices on qubits in the QC
-			Set<int[]> idxset = QuantumUtil.translateIndices(qubits.length, targetbits);
-			assert idxset.size() == 1;
-			int[] indices = idxset.iterator().next();
+			IndexIterator it = new IndexIterator(qubits.length, targetbits);
+			it.nextBlock(); // the only block
 			
-			FieldVector<Complex> amps = qcTarget.getAmps(),
-					reorderedAmps = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<qubits.length);
-			QuantumUtil.indexGet(amps, indices, reorderedAmps);
+			AmplitudeStore reorderedAmps = new DoubleAmplitudeStore(qubits.length);
+			reorderedAmps.gatherFrom(qcTarget.store(), it);
 			
-			return reorderedAmps;
+			return reorderedAmps.toFieldVector();
 			
 			
 		} else {
 			// check for case 2
-			Set<Integer> qubitsSet = QuantumUtil.intArrayToSet(qubits);
-			for (QubitContainer qc : conts) {
-				for (int qInCont : QCToQubit.get(qc))
-					if (!qubitsSet.contains(qInCont))  
-						throw new IllegalStateException("case 3 not supported; qubit "+qInCont+" is not a target of setAmps but is in a container with another target. qubits="+qubitsSet);
-			}
+			int[] ids = Arrays.copyOf(registry.distinctIds(), count);
+			int[] position = positionsIn(qubits);
+			checkOnlyTargets(ids, position, qubits);
 			// we have case 2 -- don't couple the containers together but temporarily put them together, using the order of qubits
 			
 			
@@ -185,19 +667,20 @@ public class QubitRegister {
 			// this is for the qubits that qcnew will map to
 			int[] qubitsForqcnew = new int[qubits.length];
 			
-			// let's create the vector to set to the new QubitContainer
-			FieldVector<Complex> amps = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<qubits.length); // dense
+			// let's create the amplitudes of the temporary tensor product
+			AmplitudeStore amps = new DoubleAmplitudeStore(qubits.length); // dense
 			// initialize to all 1s
-			amps.set(Complex.ONE);
+			amps.fill(1, 0);
 			// now for each QubitContainer we're transferring to the new container
 			int qcnewidx = 0;
-			for (QubitContainer qc : conts) {
-				int[] qubitsTransferring = QCToQubit.get(qc);
+			for (int id : ids) {
+				QubitContainer qc = registry.get(id);
+				int[] qubitsTransferring = registry.qubits(id);
 				int[] qcnewidxarr = QuantumUtil.makeConsecutiveIntArray(qcnewidx, qubitsTransferring.length);
 				
-				for (int[] indices : QuantumUtil.translateIndices(qubits.length, qcnewidxarr)) {
-					QuantumUtil.indexMultiplyIn(amps, indices, qc.getAmps());	
-				}
+				IndexIterator it = new IndexIterator(qubits.length, qcnewidxarr);
+				while (it.nextBlock())
+					amps.multiplyIn(it, qc.store());
 				
 				// no update maps
 				for (int i=0; i < qubitsTransferring.length; i++) {
@@ -213,27 +696,20 @@ public class QubitRegister {
 			
 			// now reorder from order qubitsForqcnew to original qubits order
 			int[] neworder = new int[qubits.length];
-			for (int i=0; i<qubits.length; i++) {   // for each in original order
-				for (int j=0; j<qubits.length; j++) // find index in new order
-					if (qubitsForqcnew[i] == qubits[j]) {
-						neworder[i] = j;
-						break;
-					}
-			}
+			for (int i=0; i<qubits.length; i++)   // for each in original order
+				neworder[i] = position[qubitsForqcnew[i]]; // index in new order
 			
 			// ! change carried over from printBits - reversed order
 			neworder = invertMap(neworder);
 			
-			Set<int[]> idxset = QuantumUtil.translateIndices(qubits.length, neworder);
-			assert idxset.size() == 1;
-			int[] indices = idxset.iterator().next();
+			IndexIterator it = new IndexIterator(qubits.length, neworder);
+			it.nextBlock(); // the only block
 			
-			FieldVector<Complex> 
-					reorderedAmps = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<qubits.length);
-			QuantumUtil.indexGet(amps, indices, reorderedAmps);
+			AmplitudeStore reorderedAmps = new DoubleAmplitudeStore(qubits.length);
+			reorderedAmps.gatherFrom(amps, it);
 			
 			// All Done xD
-			return reorderedAmps;
+			return reorderedAmps.toFieldVector();
 		}
 		
 		
@@ -255,55 +731,72 @@ public class QubitRegister {
 	 * @return this.  Useful for chaining: QubitRegister qr.setAmps(amps1, {3}).setAmps(amps2, {1}).setAmps(...
 	 */
 	public QubitRegister setAmps(FieldVector<Complex> amps, int... qubits) {
-		Set<QubitContainer> conts = getContainersHolding(qubits);
-		QubitContainer qcTarget; // the SINGLE container whose amplitudes we will set 
-		if (conts.size() == 1) {
-			// case 1)
-			qcTarget = conts.iterator().next();
-		} else {
+		if (deferred) {
+			containersHolding(qubits); // error checking
+			if (amps == null || amps.getDimension() != 1<<qubits.length)
+				throw new IllegalArgumentException("bad number of amps given: "+amps);
+			queue.add(new Pending(null, amps.copy(), qubits.clone()));
+			return this;
+		}
+		setAmpsNow(amps, qubits);
+		return this;
+	}
+	
+	private void setAmpsNow(FieldVector<Complex> amps, int... qubits) {
+		int count = containersHolding(qubits);
+		if (count > 1) {
 			// check for case 2
-			Set<Integer> qubitsSet = QuantumUtil.intArrayToSet(qubits);
-			for (QubitContainer qc : conts) {
-				for (int qInCont : QCToQubit.get(qc))
-					if (!qubitsSet.contains(qInCont))  
-						throw new IllegalStateException("case 3 not supported; qubit "+qInCont+" is not a target of setAmps but is in a container with another target. qubits="+qubitsSet);
-			}
+			checkOnlyTargets(Arrays.copyOf(registry.distinctIds(), count), positionsIn(qubits), qubits);
 			// we have case 2 -- couple the containers together and set them, adjusting the indices
-			this.couple(qubits);
-			
-			conts = getContainersHolding(qubits);
-			assert conts.size() == 1;
-			qcTarget = conts.iterator().next();
+			this.coupleNow(qubits);
+			assert containersHolding(qubits) == 1;
 		}
+		QubitContainer qcTarget = registry.container(qubits[0]); // the SINGLE container whose amplitudes we will set 
 		
 		if (qubits.length != qcTarget.getNumbits()) // need to specify all the qubits in the container
 			throw new IllegalArgumentException("provided "+qubits.length+" qubits but they are in a container of size "+qcTarget.getNumbits());
 		
-		int[] targetbits = new int[qubits.length];
-		for (int i=0; i<qubits.length; i++) {
-			targetbits[i] = qubitToQC[qubits[i]].getFirst(); // the position of qubit[i] in qcTarget
-			assert qubitToQC[qubits[i]].getSecond() == qcTarget;
-		}
+		int[] targetbits = targetBits(qubits, qcTarget);
 		
 		// translate from indices on qubits in the QR to indices on qubits in the QC
-		Set<int[]> idxset = QuantumUtil.translateIndices(qubits.length, targetbits);
-		assert idxset.size() == 1;
-		int[] indices = idxset.iterator().next();
+		IndexIterator it = new IndexIterator(qubits.length, targetbits);
+		it.nextBlock(); // the only block
 		
-		FieldVector<Complex> reorderedAmps = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<<qubits.length);
-		QuantumUtil.indexSet(reorderedAmps, indices, amps);
+		AmplitudeStore reorderedAmps = new DoubleAmplitudeStore(qubits.length);
+		reorderedAmps.scatterFrom(AmplitudeStore.fromFieldVector(amps), it);
 		
 		qcTarget.setAmps(reorderedAmps);
-		
-		return this;
 	}
 	
-	/** Returns the first position of num in arr, or -1 if not present. (Sequential linear search) */
-	private int getIndexInArray(int num, int[] arr) {
-		for (int i=0; i<arr.length; i++)
-			if (arr[i] == num)
-				return i;
-		return -1;
+	/** The bit of each of qubits in qc, which holds them all. */
+	private int[] targetBits(int[] qubits, QubitContainer qc) {
+		return targetBits(qubits, qc, new int[qubits.length]);
+	}
+	
+	/** targetBits into targetbits, of length qubits.length. */
+	private int[] targetBits(int[] qubits, QubitContainer qc, int[] targetbits) {
+		for (int i=0; i<qubits.length; i++) {
+			targetbits[i] = registry.bit(qubits[i]); // the position of qubit[i] in qc
+			assert registry.container(qubits[i]) == qc;
+		}
+		return targetbits;
+	}
+	
+	/** Indexed by qubit: its position in qubits, or -1 if not present. */
+	private int[] positionsIn(int[] qubits) {
+		int[] position = new int[numqubits];
+		Arrays.fill(position, -1);
+		for (int i=0; i<qubits.length; i++)
+			position[qubits[i]] = i;
+		return position;
+	}
+	
+	/** Throws if a container of ids holds a qubit that is not one of qubits (case 3 of setAmps).  position is from positionsIn(qubits). */
+	private void checkOnlyTargets(int[] ids, int[] position, int[] qubits) {
+		for (int id : ids)
+			for (int qInCont : registry.qubits(id))
+				if (position[qInCont] == -1)  
+					throw new IllegalStateException("case 3 not supported; qubit "+qInCont+" is not a target of setAmps but is in a container with another target. qubits="+Arrays.toString(qubits));
 	}
 	
 	/**
@@ -313,19 +806,17 @@ public class QubitRegister {
 	 * @return
 	 */
 	public String printBits(int... qubits) {
-		Set<QubitContainer> conts = getContainersHolding(qubits);
-		QubitContainer qcTarget; // the SINGLE container we will print bits from
-		if (conts.size() == 1) {
-			// case 1)
-			qcTarget = conts.iterator().next();
-		}
-		else {
+		flush();
+		int count = containersHolding(qubits);
+		if (count > 1) {
 			// multiple containers; call recursively
 			String s = "";
-			for (QubitContainer qc : conts)
-				s += printBits(QCToQubit.get(qc));
+			for (int id : Arrays.copyOf(registry.distinctIds(), count))
+				s += printBits(registry.qubits(id).clone());
 			return s;
 		}
+		int id = registry.id(qubits[0]);
+		QubitContainer qcTarget = registry.get(id); // the SINGLE container we will print bits from
 		
 		// print the bits in this container
 		// qubits = the bits the caller wants to print
@@ -333,7 +824,8 @@ public class QubitRegister {
 		// map: for each qubit in container, map that qubit's position to the desired position in the new ordering
 		// (new ordering starts with the order specified by user)
 		
-		int[] qubitsInTarget = QCToQubit.get(qcTarget);
+		int[] qubitsInTarget = registry.qubits(id);
+		int[] position = positionsIn(qubits);
 		int[] map = new int[qubitsInTarget.length];
 		int[] neworder = new int[qubitsInTarget.length];
 		
@@ -341,7 +833,7 @@ public class QubitRegister {
 		assert freeidx <= qubitsInTarget.length;
 		for (int i=0; i < qubitsInTarget.length; i++) {
 			int bit = qubitsInTarget[i];
-			int idx = getIndexInArray(bit, qubits); // desired position
+			int idx = position[bit]; // desired position
 			if (idx == -1) {
 				idx = freeidx++;
 				assert freeidx <= qubitsInTarget.length;
@@ -351,12 +843,9 @@ public class QubitRegister {
 		
 		// do the reordering and update the data structures
 		qcTarget.reorderBits(invertMap(map)); // map is inverted for setting
-		for (int i=0; i < qubitsInTarget.length; i++) {
-			int bit = qubitsInTarget[i];
-			qubitToQC[bit] = new Pair<Integer,QubitContainer>(map[i],qcTarget);
+		for (int i=0; i < qubitsInTarget.length; i++)
 			neworder[map[i]] = qubitsInTarget[i];
-		}
-		QCToQubit.put(qcTarget, neworder);
+		registry.setQubits(id, neworder);
 		
 		// finally, print the desired String
 		StringBuilder sb = new StringBuilder("{");
@@ -386,9 +875,13 @@ public class QubitRegister {
 	public boolean measure(int targetbit) {
 		if (targetbit < 0 || targetbit >= numqubits)
 			throw new IllegalArgumentException("bad targetbit");
-		int bitInQC = qubitToQC[targetbit].getFirst();
-		QubitContainer qc = qubitToQC[targetbit].getSecond();
-		boolean meas = qc.measure(bitInQC);
+		flush();
+		int id = registry.id(targetbit);
+		int bitInQC = registry.bit(targetbit);
+		QubitContainer qc = registry.get(id);
+		boolean meas = qc.measure(bitInQC, random);
+		if (normMonitor != null)
+			normMonitor.normChecked(registry.qubits(id), qc.getLastNormSquared());
 		
 		// if we measured a qubit container of size 1, don't need to decouple anything
 		if (qc.getNumbits() == 1)
@@ -396,8 +889,7 @@ public class QubitRegister {
 		
 		// decouple afterward
 		/* algorithm:
-		 * 	get the entries excluding the measured bit, in their current order, with the bit set and without the bit set.
-		 *  Check if the first set of entries is all zero.  If so, use the second.  If not, use the first.
+		 * 	get the entries excluding the measured bit, in their current order, from the half that matches the measurement.
 		 *  Construct a new qubit container containing the remaining entries and map those qubits to the new container.
 		 *  Construct a new qubit container of size 1 and map the one qubit to that container.
 		 *    Put 1.0 amplitude in the |0> if !meas, 1.0 amplitude in the |1> if meas.
@@ -413,86 +905,375 @@ public class QubitRegister {
 		}
 		//System.out.println(Arrays.toString(mask)+" should be an array excluding "+bitInQC);
 		
-		Set<int[]> idxset = QuantumUtil.translateIndices(qc.getNumbits(), mask);
-		assert idxset.size() == 2;
-		int[] indicesA, indicesB;
-		FieldVector<Complex> orig = qc.getAmps( ); // original entries in the original qubit container
-		FieldVector<Complex> vecA = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<< qc.getNumbits()-1), 
-				vecB = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<< qc.getNumbits()-1);
-		{
-			Iterator<int[]> iter = idxset.iterator();
-			indicesA = iter.next();
-			indicesB = iter.next();
-			assert !iter.hasNext();
-			
-			QuantumUtil.indexGet(orig, indicesA, vecA);
-			QuantumUtil.indexGet(orig, indicesB, vecB);
+		// two blocks: the measured bit is the only free bit, so block 1 is the half where it is set
+		IndexIterator it = new IndexIterator(qc.getNumbits(), mask);
+		AmplitudeStore orig = qc.store(); // original entries in the original qubit container
+		QubitContainer qcRemaining, qcMeasured;
+		if (qc.isSparse()) {
+			// move the non-zero entries over, dropping the measured bit from their index
+			qcRemaining = newContainer(qc.getNumbits()-1, true);
+			AmplitudeStore vecResult = qcRemaining.store();
+			vecResult.set(0, 0, 0);
+			long low = (1L<<bitInQC)-1;
+			for (long idx : orig.nonZeroIndices())
+				if ((idx >>> bitInQC & 1) == (meas ? 1 : 0))
+					vecResult.set((idx & low) | (idx >>> (bitInQC+1)) << bitInQC, orig.getReal(idx), orig.getImaginary(idx));
+		} else {
+			qcRemaining = newContainer(qc.getNumbits()-1, false);
+			AmplitudeStore vecResult = qcRemaining.store(); // fill with the entries that came from the appropriate measurement
+			it.seekBlock(meas ? 1 : 0);
+			vecResult.gatherFrom(orig, it);
 		}
-//		System.out.println(QuantumUtil.printVector(vecA));
-//		System.out.println(QuantumUtil.printVector(vecB));
 		
-		FieldVector<Complex> vecResult; // fill with the entries that came from the appropriate measurement
-		{
-			// is vecA the all zero vector?
-			if (vecA.equals(new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<< qc.getNumbits()-1)))
-				vecResult = vecB;
-			else
-				vecResult = vecA;
-		}
+		qcMeasured = newContainer(1, false);
+		// set 0th entry to 1 if measured a 0, set 1st entry to 1 if measured a 1
+		qcMeasured.store().set(0, meas ? 0 : 1, 0);
+		qcMeasured.store().set(1, meas ? 1 : 0, 0);
 		
-		QubitContainer qcRemaining, qcMeasured;
-		qcRemaining = new QubitContainer(qc.getNumbits()-1);
-		qcRemaining.setAmps(vecResult);
+		// change up the maps
+		registry.split(id, targetbit, qcRemaining, qcMeasured);
+		qc.close();
 		
-		qcMeasured = new QubitContainer(1);
-		FieldVector<Complex> vecMeasured = new ArrayFieldVector<Complex>(ComplexField.getInstance(), 1<< 1);
-		vecMeasured.setEntry(meas ? 1 : 0, Complex.ONE); // set 0th entry to 1 if measured a 0, set 1st entry to 1 if measured a 1
-		qcMeasured.setAmps(vecMeasured);
+		return meas;
+	}
+	
+	/// --------
+	/// SAMPLING
+	/// --------
+	
+	/** Most qubits sample takes: the histogram has 2^qubits entries */
+	public static final int MAX_SAMPLE_QUBITS = 24;
+	/** sample splits the shots across threads only up to this many qubits, since each task counts into its own histogram */
+	private static final int MAX_PARALLEL_SAMPLE_QUBITS = 16;
+	
+	/**
+	 * Measures qubits shots times, each time from the same state: the state is not collapsed or changed.
+	 * The distribution of the qubits of each container is computed once (one pass over it); 
+	 *   each shot then draws from every container by binary search in its cumulative distribution.
+	 * The shots are split across threads (see Parallel); shot k always uses the same numbers of a stream 
+	 *   seeded from getRandom(), so the counts do not depend on the threads.
+	 * Unentangled containers are independent, so the joint distribution is their product.
+	 * @param shots number of measurements
+	 * @param qubits at most MAX_SAMPLE_QUBITS distinct qubits
+	 * @return counts[l] is the number of shots that measured qubits[0], qubits[1], ... as bits 0, 1, ... of l
+	 */
+	public long[] sample(int shots, int... qubits) {
+		if (shots < 0)
+			throw new IllegalArgumentException("bad number of shots: "+shots);
+		if (qubits == null || qubits.length > MAX_SAMPLE_QUBITS)
+			throw new IllegalArgumentException("at most "+MAX_SAMPLE_QUBITS+" qubits");
+		flush();
+		List<QubitContainer> parts = new ArrayList<QubitContainer>();
+		int[][] pos = partition(qubits, parts);
+		double[][] cumulative = marginals(qubits, parts, pos);
+		for (double[] c : cumulative)
+			for (int l=1; l < c.length; l++)
+				c[l] += c[l-1];
 		
-		// change up the maps
-		int[] previousBitsInQC = QCToQubit.get(qc);
-		int[] newBitsInRemainingQC = new int[qc.getNumbits()-1]; assert qc.getNumbits() == previousBitsInQC.length;
-		// exclude the measured bit from the remaining bits
-		for (int i=0, j=0; i < qc.getNumbits(); ) {
-			if (previousBitsInQC[i] != targetbit)
-				newBitsInRemainingQC[j++] = previousBitsInQC[i++];
-			else
-				i++;
+		// shot k draws number k*count + j of one stream for container j, whichever thread does it
+		final long seed = random.nextLong();
+		final long[] counts = new long[1<<qubits.length];
+		final int numparts = parts.size();
+		final double[][] cum = cumulative;
+		final int[][] positions = pos;
+		Parallel.Range shotRange = new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				long[] part = counts.length > 1<<MAX_PARALLEL_SAMPLE_QUBITS ? counts : new long[counts.length];
+				for (int shot=from; shot < to; shot++) {
+					int l = 0;
+					for (int j=0; j < numparts; j++) {
+						double[] c = cum[j];
+						double r = SplitMix64.doubleAt(seed, (long)shot*numparts + j) * c[c.length-1];
+						// first x with c[x] > r
+						int lo = 0, hi = c.length-1;
+						while (lo < hi) {
+							int mid = (lo + hi) >>> 1;
+							if (c[mid] > r)
+								hi = mid;
+							else
+								lo = mid+1;
+						}
+						l |= QuantumUtil.depositBits(lo, positions[j]);
+					}
+					part[l]++;
+				}
+				if (part != counts)
+					synchronized (counts) {
+						for (int l=0; l < counts.length; l++)
+							counts[l] += part[l];
+					}
+			}
+		};
+		if (qubits.length > MAX_PARALLEL_SAMPLE_QUBITS)
+			shotRange.run(0, shots);
+		else
+			Parallel.forRange(shots, shotRange);
+		return counts;
+	}
+	
+	/**
+	 * Fills parts with the containers holding qubits, and returns the positions in qubits 
+	 *   of the qubits of each (see positions).  Checks that qubits are distinct.
+	 */
+	private int[][] partition(int[] qubits, List<QubitContainer> parts) {
+		int count = containersHolding(qubits);
+		int[] position = positionsIn(qubits);
+		for (int i=0; i < qubits.length; i++)
+			if (position[qubits[i]] != i)
+				throw new IllegalArgumentException("repeated qubit: "+qubits[i]);
+		parts.addAll(containers(registry.distinctIds(), count));
+		return positions(qubits, parts);
+	}
+	
+	/** The joint distribution of the qubits pos[j] of each container parts.get(j) (see QubitContainer.marginalProbabilities). */
+	private double[][] marginals(int[] qubits, List<QubitContainer> parts, int[][] pos) {
+		double[][] ret = new double[parts.size()][];
+		for (int j=0; j < ret.length; j++) {
+			int[] bits = new int[pos[j].length];
+			for (int r=0; r < bits.length; r++)
+				bits[r] = registry.bit(qubits[pos[j][r]]);
+			ret[j] = parts.get(j).marginalProbabilities(bits);
+		}
+		return ret;
+	}
+	
+	/// --------------------------------
+	/// PROBABILITIES, WITHOUT MEASURING
+	/// --------------------------------
+	
+	/** Probability of measuring 1 on qubit; the state is not changed.  One pass over its container. */
+	public double probability(int qubit) {
+		return marginalProbabilities(qubit)[1];
+	}
+	
+	/**
+	 * Joint distribution of qubits, without changing the state: ret[l] is the probability 
+	 *   of measuring qubits[0], qubits[1], ... as bits 0, 1, ... of l.
+	 * One pass over each container holding some of them; the containers are independent, so ret is the product of their distributions.
+	 * @param qubits at most MAX_SAMPLE_QUBITS distinct qubits
+	 */
+	public double[] marginalProbabilities(int... qubits) {
+		if (qubits == null || qubits.length > MAX_SAMPLE_QUBITS)
+			throw new IllegalArgumentException("at most "+MAX_SAMPLE_QUBITS+" qubits");
+		flush();
+		List<QubitContainer> parts = new ArrayList<QubitContainer>();
+		int[][] pos = partition(qubits, parts);
+		double[][] p = marginals(qubits, parts, pos);
+		double[] ret = new double[1<<qubits.length];
+		for (int l=0; l < ret.length; l++) {
+			double x = 1;
+			for (int j=0; j < p.length; j++)
+				x *= p[j][QuantumUtil.extractBits(l, pos[j])];
+			ret[l] = x;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Probability of measuring every qubit as in index (bit q of index for qubit q), without changing the state.
+	 * One pass over each container.
+	 */
+	public double basisProbability(long index) {
+		if (numqubits > 62 || index < 0 || index >= 1L<<numqubits)
+			throw new IllegalArgumentException("bad index: "+index);
+		flush();
+		double ret = 1;
+		for (int id=0; id < registry.capacity(); id++) {
+			QubitContainer qc = registry.get(id);
+			if (qc == null)
+				continue;
+			int[] qubits = registry.qubits(id);
+			long local = 0;
+			for (int i=0; i < qubits.length; i++)
+				local |= (index >>> qubits[i] & 1) << i;
+			ret *= qc.basisProbability(local);
+		}
+		return ret;
+	}
+	
+	/// ------------------
+	/// PAULI EXPECTATIONS
+	/// ------------------
+	
+	/** Expectation of the Hamiltonian sum(terms); see expectation(List). */
+	public double expectation(PauliString... terms) {
+		return expectation(Arrays.asList(terms));
+	}
+	
+	/**
+	 * Expectation <psi|H|psi> of the Hamiltonian H = sum of terms, without changing or copying the state.
+	 * Containers are unentangled, so each term is the product of the expectations of its parts in each container.
+	 * Each container evaluates all the parts it holds together: one read-only pass per distinct set of 
+	 *   X and Y qubits (the strings measured in the same basis up to Z), split across threads for a large container.
+	 */
+	public double expectation(List<PauliString> terms) {
+		flush();
+		int cap = registry.capacity();
+		// per term: the containers it touches, and the index of its part among the strings of each
+		int[][] termIds = new int[terms.size()][];
+		int[][] termSlots = new int[terms.size()][];
+		// per container: its strings, as X and Z masks (Y sets both)
+		List<List<Long>> xs = new ArrayList<List<Long>>(), zs = new ArrayList<List<Long>>();
+		for (int id=0; id < cap; id++) {
+			xs.add(null);
+			zs.add(null);
+		}
+		long[] x = new long[cap], z = new long[cap];
+		for (int t=0; t < terms.size(); t++) {
+			PauliString term = terms.get(t);
+			int[] qubits = term.getQubits();
+			if (qubits.length == 0) {
+				termIds[t] = new int[0];
+				termSlots[t] = new int[0];
+				continue;
+			}
+			int count = containersHolding(qubits);
+			int[] ids = Arrays.copyOf(registry.distinctIds(), count);
+			for (int id : ids)
+				x[id] = z[id] = 0;
+			for (int i=0; i < qubits.length; i++) {
+				int id = registry.id(qubits[i]);
+				long b = 1L<<registry.bit(qubits[i]);
+				char c = term.pauliAt(i);
+				if (c != 'Z')
+					x[id] |= b;
+				if (c != 'X')
+					z[id] |= b;
+			}
+			termIds[t] = ids;
+			termSlots[t] = new int[count];
+			for (int j=0; j < count; j++) {
+				int id = ids[j];
+				if (xs.get(id) == null) {
+					xs.set(id, new ArrayList<Long>());
+					zs.set(id, new ArrayList<Long>());
+				}
+				termSlots[t][j] = xs.get(id).size();
+				xs.get(id).add(x[id]);
+				zs.get(id).add(z[id]);
+			}
 		}
 		
-		QCToQubit.put(qcRemaining, newBitsInRemainingQC);
-		for (int i=0; i < newBitsInRemainingQC.length; i++)
-			qubitToQC[newBitsInRemainingQC[i]] = new Pair<Integer,QubitContainer>(i, qcRemaining);
-		
-		// now for the measured bit
-		QCToQubit.put(qcMeasured, new int[] {targetbit});
-		qubitToQC[targetbit] = new Pair<Integer,QubitContainer>(0, qcMeasured);
+		// every container evaluates its strings together
+		double[][] values = new double[cap][];
+		for (int id=0; id < cap; id++) {
+			if (xs.get(id) == null)
+				continue;
+			int n = xs.get(id).size();
+			long[] xm = new long[n], zm = new long[n];
+			for (int k=0; k < n; k++) {
+				xm[k] = xs.get(id).get(k);
+				zm[k] = zs.get(id).get(k);
+			}
+			values[id] = registry.get(id).pauliExpectations(xm, zm);
+		}
 		
-		return meas;
+		double sum = 0;
+		for (int t=0; t < terms.size(); t++) {
+			double v = terms.get(t).getCoefficient();
+			for (int j=0; j < termIds[t].length; j++)
+				v *= values[termIds[t][j]][termSlots[t][j]];
+			sum += v;
+		}
+		return sum;
 	}
 	
 	/**
-	 * Measure qubits in the order provided.  Collapses the qubit state after each measurement.
-	 * @param targetbits bits to measure, in order
+	 * Measure qubits.  Collapses the qubit state.
+	 * Each container holding several of the qubits draws them together in a single pass: a basis state 
+	 *   if all its qubits are measured (see QubitContainer.sampleIndex), their joint values otherwise 
+	 *   (see QubitContainer.sampleBits), and is then split once into a container per measured qubit and one for the rest.
+	 * The outcomes have the same distribution as measuring the qubits one at a time in the order provided.
+	 * @param targetbits bits to measure
 	 * @return boolean results, with order matching input
 	 */
 	public boolean[] measure(int... targetbits) {
 		if (targetbits == null)
 			throw new IllegalArgumentException("please no null's");
 		boolean[] ret = new boolean[targetbits.length];
+		if (targetbits.length == 0)
+			return ret;
+		flush();
+		int count = containersHolding(targetbits);
+		int[] position = positionsIn(targetbits);
+		boolean[] measured = new boolean[numqubits], outcome = new boolean[numqubits];
+		for (int id : Arrays.copyOf(registry.distinctIds(), count)) {
+			int[] qubits = registry.qubits(id);
+			int k = 0;
+			for (int q : qubits)
+				if (position[q] >= 0)
+					k++;
+			if (k < 2 || (k > MAX_SAMPLE_QUBITS && k < qubits.length))
+				continue; // measure(int) below
+			QubitContainer qc = registry.get(id);
+			// bits[i] of qc holds the measured qubit mq[i]; rest are the others, in order
+			int[] bits = new int[k], mq = new int[k], rest = new int[qubits.length - k];
+			for (int i=0, j=0, r=0; i < qubits.length; i++)
+				if (position[qubits[i]] >= 0) {
+					bits[j] = i;
+					mq[j++] = qubits[i];
+				} else
+					rest[r++] = qubits[i];
+			long value;
+			QubitContainer qcRest = null;
+			if (k == qubits.length && normMonitor == null)
+				value = qc.sampleIndex(random);
+			else if (k == qubits.length) {
+				double norm = qc.normSquared();
+				normMonitor.normChecked(qubits, norm);
+				value = qc.sampleIndex(random, norm);
+			} else {
+				value = qc.sampleBits(bits, random);
+				if (normMonitor != null)
+					normMonitor.normChecked(qubits, qc.getLastNormSquared());
+				qcRest = qc.project(bits, (int)value);
+			}
+			registry.remove(id);
+			qc.close();
+			if (qcRest != null)
+				registry.add(qcRest, rest);
+			for (int j=0; j < k; j++) {
+				boolean meas = (value >>> j & 1) == 1;
+				QubitContainer qcMeasured = newContainer(1, false);
+				qcMeasured.store().set(0, meas ? 0 : 1, 0);
+				qcMeasured.store().set(1, meas ? 1 : 0, 0);
+				registry.add(qcMeasured, new int[] {mq[j]});
+				measured[mq[j]] = true;
+				outcome[mq[j]] = meas;
+			}
+		}
 		for (int i=0; i < targetbits.length; i++)
-			ret[i] = measure(targetbits[i]);
+			ret[i] = measured[targetbits[i]] ? outcome[targetbits[i]] : measure(targetbits[i]);
 		return ret;
 	}
 	
+	/** Measure every qubit of the register (see measure(int...)); ret[q] is the outcome of qubit q. */
+	public boolean[] measureAll() {
+		return measure(QuantumUtil.makeConsecutiveIntArray(0, numqubits));
+	}
+	
 	/**
 	 * Perform an Operation on the specified qubits.  If they are not coupled, couple them.  
 	 * If they are coupled with other elements, just couple everything together.
+	 * In deferred mode, only records the operation; see setDeferred.
 	 * @param op
 	 * @param qubits
 	 * @return this.  Useful for chaining: QubitRegsiter qr.setAmps(amps1, {2}).doOp(H,2).doOp(Z,2).doOp(...
 	 */
 	public QubitRegister doOp(Operator op, int... qubits) {
+		if (deferred) {
+			containersHolding(qubits); // error checking
+			if (op == null || op.getArity() != qubits.length)
+				throw new IllegalArgumentException("bad operator "+op+" for "+qubits.length+" qubits");
+			queue.add(new Pending(op, null, qubits.clone()));
+			return this;
+		}
+		doOpNow(op, qubits);
+		return this;
+	}
+	
+	private void doOpNow(Operator op, int... qubits) {
 		/*Set<QubitContainer> conts = getContainersHolding(qubits);
 		if (conts.size() > 1) {
 			// need to do some coupling
@@ -509,15 +1290,170 @@ public class QubitRegister {
 		}*/
 		
 		// Change of plans: just couple everything together and do the op, perhaps on a bigger container than necessary
-		couple(qubits); // no effect if already coupled
-		QubitContainer qc = qubitToQC[qubits[0]].getSecond();
-		int[] targetbits = new int[qubits.length];
-		for (int i = 0; i < qubits.length; i++) {
-			targetbits[i] = qubitToQC[qubits[i]].getFirst();
-			assert qubitToQC[qubits[i]].getSecond() == qc;
-		}
-		qc.doOp(op, targetbits);
-		return this;
+		// (unless the op is a product of ops on the containers it touches)
+		if (!applyFactored(op, qubits)) {
+			coupleNow(qubits); // no effect if already coupled
+			int id = registry.id(qubits[0]);
+			QubitContainer qc = registry.get(id);
+			// doOp copies the bits it keeps, so the same array serves every gate of this arity
+			if (qubits.length >= gateBits.length)
+				gateBits = Arrays.copyOf(gateBits, qubits.length+1);
+			if (gateBits[qubits.length] == null)
+				gateBits[qubits.length] = new int[qubits.length];
+			qc.doOp(op, targetBits(qubits, qc, gateBits[qubits.length]));
+			if (decoupleInterval > 0 && ++gatesSinceDecouple >= decoupleInterval) {
+				gatesSinceDecouple = 0;
+				decoupleNow(id);
+			}
+		}
+		if (normCheckInterval > 0 && ++gatesSinceNormCheck >= normCheckInterval)
+			checkNormNow();
+	}
+	
+	/// -----------------------------------
+	/// GATES ACROSS CONTAINERS, UNCOUPLED
+	/// -----------------------------------
+	
+	/** Relative error allowed when factoring a diagonal into a product of diagonals */
+	private static final double FACTOR_TOLERANCE = 1e-12;
+	
+	/**
+	 * If qubits span several containers and op is a diagonal or permutation that does not entangle them 
+	 *   (a tensor product of one diagonal or permutation per container), applies each factor to its own container.
+	 * @return false if nothing was done: op must be applied to the coupled qubits
+	 */
+	private boolean applyFactored(Operator op, int[] qubits) {
+		int count = containersHolding(qubits);
+		if (count == 1)
+			return false;
+		List<QubitContainer> parts = containers(registry.distinctIds(), count);
+		Operator[] factors = factors(op, qubits, parts);
+		if (factors == null)
+			return false;
+		int[][] pos = positions(qubits, parts);
+		for (int j=0; j < pos.length; j++) {
+			int[] targetbits = new int[pos[j].length];
+			for (int r=0; r < targetbits.length; r++)
+				targetbits[r] = registry.bit(qubits[pos[j][r]]);
+			parts.get(j).doOp(factors[j], targetbits);
+		}
+		return true;
+	}
+	
+	/** Whether qubits span several containers and op is a product of one operator per container (see factors). */
+	private boolean factorsAcross(Operator op, int[] qubits) {
+		int count = containersHolding(qubits);
+		return count > 1 && factors(op, qubits, containers(registry.distinctIds(), count)) != null;
+	}
+	
+	/**
+	 * The operators on each of parts, the containers holding qubits, whose tensor product is op; 
+	 *   null if there is a single part or op is not a diagonal or permutation of that form.
+	 */
+	private Operator[] factors(Operator op, int[] qubits, List<QubitContainer> parts) {
+		if (parts.size() == 1)
+			return null;
+		double[] d = op.getDiagonal();
+		if (d != null)
+			return diagonalFactors(d, positions(qubits, parts));
+		int[] p = op.getPermutation();
+		if (p != null)
+			return permutationFactors(p, positions(qubits, parts));
+		return null;
+	}
+	
+	/** ret[j] are the indices into qubits (the bits of an operator's index) of the qubits in container parts.get(j), in order. */
+	private int[][] positions(int[] qubits, List<QubitContainer> parts) {
+		int[][] pos = new int[parts.size()][];
+		for (int j=0; j < pos.length; j++) {
+			int count = 0;
+			for (int q : qubits)
+				if (registry.container(q) == parts.get(j))
+					count++;
+			pos[j] = new int[count];
+			for (int i=0, c=0; i < qubits.length; i++)
+				if (registry.container(qubits[i]) == parts.get(j))
+					pos[j][c++] = i;
+		}
+		return pos;
+	}
+	
+	/**
+	 * Factors the diagonal d into diagonals f_j on the bits pos[j] of its index: d[l] = prod_j f_j[l restricted to pos[j]].
+	 * Each f_j is d along its bits through the entry of largest magnitude, the first one divided by that entry^(parts-1).
+	 * @return the factors, or null if d is not such a product
+	 */
+	private static Operator[] diagonalFactors(double[] d, int[][] pos) {
+		int dim = d.length/2, pivot = 0;
+		double max = 0;
+		for (int l=0; l < dim; l++)
+			if (d[2*l]*d[2*l] + d[2*l+1]*d[2*l+1] > max) {
+				max = d[2*l]*d[2*l] + d[2*l+1]*d[2*l+1];
+				pivot = l;
+			}
+		if (max == 0)
+			return null;
+		double[][] f = new double[pos.length][];
+		for (int j=0; j < pos.length; j++) {
+			f[j] = new double[2<<pos[j].length];
+			int rest = pivot & ~QuantumUtil.depositBits((1<<pos[j].length)-1, pos[j]);
+			for (int x=0; x < 1<<pos[j].length; x++) {
+				int l = rest | QuantumUtil.depositBits(x, pos[j]);
+				f[j][2*x] = d[2*l];
+				f[j][2*x+1] = d[2*l+1];
+			}
+		}
+		// 1/pivot^(parts-1) into the first factor
+		double sr = 1, si = 0, pr = d[2*pivot]/max, pi = -d[2*pivot+1]/max;
+		for (int j=1; j < pos.length; j++) {
+			double t = sr*pr - si*pi;
+			si = sr*pi + si*pr;
+			sr = t;
+		}
+		for (int x=0; x < f[0].length/2; x++) {
+			double re = f[0][2*x], im = f[0][2*x+1];
+			f[0][2*x] = re*sr - im*si;
+			f[0][2*x+1] = re*si + im*sr;
+		}
+		// check every entry
+		for (int l=0; l < dim; l++) {
+			double re = 1, im = 0;
+			for (int j=0; j < pos.length; j++) {
+				int x = QuantumUtil.extractBits(l, pos[j]);
+				double t = re*f[j][2*x] - im*f[j][2*x+1];
+				im = re*f[j][2*x+1] + im*f[j][2*x];
+				re = t;
+			}
+			double er = re - d[2*l], ei = im - d[2*l+1];
+			if (er*er + ei*ei > FACTOR_TOLERANCE*FACTOR_TOLERANCE*max)
+				return null;
+		}
+		Operator[] ret = new Operator[pos.length];
+		for (int j=0; j < pos.length; j++)
+			ret[j] = new DiagonalOperator(pos[j].length, f[j]);
+		return ret;
+	}
+	
+	/**
+	 * Factors the permutation p into permutations p_j of the bits pos[j] of its index, 
+	 *   which holds when the bits pos[j] of p[l] only depend on the bits pos[j] of l.
+	 * @return the factors, or null if p is not such a product
+	 */
+	private static Operator[] permutationFactors(int[] p, int[][] pos) {
+		int[][] f = new int[pos.length][];
+		for (int j=0; j < pos.length; j++) {
+			f[j] = new int[1<<pos[j].length];
+			for (int x=0; x < f[j].length; x++)
+				f[j][x] = QuantumUtil.extractBits(p[QuantumUtil.depositBits(x, pos[j])], pos[j]);
+		}
+		for (int l=0; l < p.length; l++)
+			for (int j=0; j < pos.length; j++)
+				if (QuantumUtil.extractBits(p[l], pos[j]) != f[j][QuantumUtil.extractBits(l, pos[j])])
+					return null;
+		Operator[] ret = new Operator[pos.length];
+		for (int j=0; j < pos.length; j++)
+			ret[j] = new PermutationOperator(pos[j].length, f[j]);
+		return ret;
 	}
 	
 
@@ -0,0 +1,16 @@
+package qclib;
+
+/**
+ * Told when a QubitContainer switches its amplitudes between dense and sparse storage.
+ * See QubitRegister.setAdaptiveDensity.
+ */
+public interface StorageListener {
+	
+	/**
+	 * Called after qc switched storage.
+	 * @param sparse true if qc now stores only its non-zero amplitudes, false if it is now dense
+	 * @param nonZero number of non-zero amplitudes at the time of the switch
+	 */
+	void storageChanged(QubitContainer qc, boolean sparse, long nonZero);
+	
+}
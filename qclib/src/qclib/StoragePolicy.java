@@ -0,0 +1,30 @@
+package qclib;
+
+import java.io.File;
+
+/**
+ * How the containers of one QubitRegister store and update their amplitudes: where dense containers live,
+ *   when containers switch between dense and sparse storage, and how wide a run of gates is fused.
+ * Shared by a register and every container it creates, so that a change applies to all of them
+ *   (the store kinds from the next store created on).  The setters are on QubitRegister, which checks the values.
+ */
+final class StoragePolicy {
+	/** Dense containers of at least this many qubits keep their amplitudes off the Java heap */
+	int offHeapBits = Integer.MAX_VALUE;
+	/** Dense containers of at least this many qubits keep their amplitudes in a file */
+	int mappedBits = Integer.MAX_VALUE;
+	/** Directory for the files of mapped containers; null for java.io.tmpdir */
+	File scratchDir;
+	/** Dense containers whose fraction of non-zero amplitudes falls below this become sparse */
+	double sparseBelow = 0;
+	/** Sparse containers whose fraction of non-zero amplitudes rises above this become dense */
+	double denseAbove = 1;
+	/** Told of every switch between dense and sparse storage; null for none */
+	StorageListener listener;
+	/** Largest number of bits a fused dense block may span */
+	int maxFusedBits = 4;
+
+	/** True if containers switch between dense and sparse storage. */
+	boolean isAdaptive() { return sparseBelow > 0 || denseAbove < 1; }
+
+}
@@ -1,12 +1,8 @@
 package qclib.alg;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.complex.ComplexField;
-import org.apache.commons.math3.linear.ArrayFieldVector;
-import org.apache.commons.math3.linear.FieldVector;
-
-import qclib.Operator;
+import qclib.PermutationOperator;
 import qclib.QubitRegister;
+import qclib.circuit.Circuit;
 import qclib.op.H;
 import qclib.util.QuantumUtil;
 
@@ -25,7 +21,7 @@ public class DeutschJozsa {
 	/**
 	 * Implementing function provided as an operator changing the last qubit y.
 	 */
-	static class SpecialF extends Operator {
+	static class SpecialF extends PermutationOperator {
 
 		private FunctionFilter funct;
 		
@@ -35,21 +31,10 @@ public class DeutschJozsa {
 			this.funct = funct;
 		}
 
+		/** |x,y> ==> |x, y^f(x)>, where y is bit 0 */
 		@Override
-		protected FieldVector<Complex> myApply(FieldVector<Complex> invec) {
-			FieldVector<Complex> outvec = new ArrayFieldVector<Complex>(ComplexField.getInstance(), invec.getDimension());
-			outvec.set(Complex.ZERO);
-			
-			for (int x = 0; x < 1<<(this.getArity()-1); x++)
-				for (int y=0; y <= 1; y++) {
-					
-					int idxin = (x << 1) | y;
-					int idxout = (x << 1) | (y ^ (funct.apply(x) ? 1 : 0));
-					
-					outvec.setEntry( idxout,  outvec.getEntry(idxout).add(invec.getEntry(idxin)) );
-				}
-			
-			return outvec;
+		public int permute(int idx) {
+			return funct.apply(idx >> 1) ? idx ^ 1 : idx;
 		}
 		
 	}
@@ -66,38 +51,32 @@ public class DeutschJozsa {
 	public boolean doDeutschJozsa(int arity, FunctionFilter funct) {
 		assert arity > 1;
 
-		QubitRegister qr = new QubitRegister(arity);
+		Circuit.Builder circuit = new Circuit.Builder(arity);
 		
 		//Build the quantum register with the first bit in state |1> and the rest in state |0>
-		qr.setAmps( QuantumUtil.buildVector(0,1) , 0);
-		for(int i=1;i<qr.getNumqubits();i++){
-			qr.setAmps( QuantumUtil.buildVector(1,0), i);
-		}
+		circuit.x(0);
 		
 		//Apply H gate to every qubit
-		for(int i=0;i<qr.getNumqubits();i++){
-			qr.doOp(new H(), i);
-		}
-		
-		SpecialF special = new SpecialF(funct, arity);
+		circuit.layer(new H(), QuantumUtil.makeConsecutiveIntArray(0, arity));
 		
 		//Performs the evaluation of the function
-		qr.doOp(special, QuantumUtil.makeConsecutiveIntArray(0, arity) );
+		circuit.gate(new SpecialF(funct, arity), QuantumUtil.makeConsecutiveIntArray(0, arity));
 		
 		//Apply H gate to all qubits but first one
-		for(int i=1;i<qr.getNumqubits();i++){
-			qr.doOp(new H(), i);
-		}
+		circuit.layer(new H(), QuantumUtil.makeConsecutiveIntArray(1, arity-1));
 		
 		//Measurement
 		//"If Alice measures all 0s then the function is constant;
 		//otherwise the function is balanced."
-		boolean balanced = false;		
-		for(int i=1;i<qr.getNumqubits();i++){
-			if(qr.measure(i)!=false){
-				balanced = true;
-				break;
-			}
+		for(int i=1;i<arity;i++){
+			circuit.measure(i, i-1);
+		}
+		
+		QubitRegister qr = new QubitRegister(arity);
+		boolean[] result = circuit.build().execute(qr);
+		boolean balanced = false;
+		for (boolean r : result) {
+			balanced |= r;
 		}
 		
 		return balanced;
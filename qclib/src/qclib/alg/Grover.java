@@ -1,12 +1,12 @@
 package qclib.alg;
 
 import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.complex.ComplexField;
-import org.apache.commons.math3.linear.ArrayFieldVector;
 import org.apache.commons.math3.linear.FieldVector;
 
-import qclib.Operator;
+import qclib.DiagonalOperator;
+import qclib.PermutationOperator;
 import qclib.QubitRegister;
+import qclib.circuit.Circuit;
 import qclib.op.H;
 import qclib.util.QuantumUtil;
 import qclib.util.CartesianRepresentation;
@@ -29,7 +29,7 @@ public class Grover {
 	/**
 	 * Implementing function provided as an Oracle.
 	 */
-	static class SpecialF extends Operator {
+	static class SpecialF extends PermutationOperator {
 
 		private FunctionFilter funct;
 		
@@ -40,21 +40,27 @@ public class Grover {
 			this.funct = function;
 		}
 
+		/** |x,y> ==> |x, y^f(x)>, where y is bit 0 */
 		@Override
-		protected FieldVector<Complex> myApply(FieldVector<Complex> invec) {
-			FieldVector<Complex> outvec = new ArrayFieldVector<Complex>(ComplexField.getInstance(), invec.getDimension());
-			outvec.set(Complex.ZERO);
-			
-			for (int x = 0; x < 1<<(this.getArity()-1); x++)
-				for (int y=0; y <= 1; y++) {
-					
-					int idxin = (x << 1) | y;
-					int idxout = (x << 1) | (y ^ (funct.apply(x) ? 1 : 0));
-					
-					outvec.setEntry( idxout,  outvec.getEntry(idxout).add(invec.getEntry(idxin)) );
-				}
-			
-			return outvec;
+		public int permute(int idx) {
+			return funct.apply(idx >> 1) ? idx ^ 1 : idx;
+		}
+		
+	}
+	
+	/**
+	 * Conditional phase shift: negates every basis state except those with the argument bits all |0>.
+	 * Diagonal, so it is applied in one pass over the state without copying it out.
+	 */
+	static class ConditionalPhaseShift extends DiagonalOperator {
+		
+		public ConditionalPhaseShift(int arity) {
+			super(arity);
+		}
+		
+		@Override
+		public double getDiagonalReal(int idx) {
+			return (idx >> 1) == 0 ? 1 : -1;
 		}
 		
 	}
@@ -179,43 +185,40 @@ public class Grover {
 		
 		this.qr = new QubitRegister(arity+1);
 		
+		//Defines the circuits once; they are executed on the register as many times as needed
+		int[] all = QuantumUtil.makeConsecutiveIntArray(0, arity+1);
+		int[] args = QuantumUtil.makeConsecutiveIntArray(1, arity);
+		H h = new H();
+		
 		//Build the quantum register with first bit |1> and then 'arity' bits |0>
-		this.qr.setAmps( QuantumUtil.buildVector(0,1), 0);
-		for(int i=1;i<this.qr.getNumqubits();i++){
-			this.qr.setAmps( QuantumUtil.buildVector(1,0), i);
-		}
+		//and apply H gate to every qubit
+		Circuit prepare = new Circuit.Builder(arity+1).x(0).layer(h, all).build();
+		
+		//Oracle
+		Circuit oracle = new Circuit.Builder(arity+1).gate(new SpecialF(funct, arity+1), all).build();
 		
-		//Apply H gate to every qubit
-		for(int i=0;i<this.qr.getNumqubits();i++){this.qr.doOp(new H(), i);}
+		//H gates, conditional phase shift, H gates
+		Circuit diffusion = new Circuit.Builder(arity+1)
+				.layer(h, args)
+				.gate(new ConditionalPhaseShift(arity+1), all)
+				.layer(h, args)
+				.build();
+		
+		prepare.execute(this.qr);
 		
 		//Updates the state of the visualisation of the algorithm
 		//The argument true indicates that this is the equally weighted superposition to draw the symmetry axis for part of the
 		//Grover's iteration (2|v><v|-I)
 		this.visualiseGrover(true);
 		
-		//Defines the Oracle function
-		SpecialF search = new SpecialF(funct, arity+1);
-		
 		//Perform Grover iterations
 		for(int j=1;j<Math.ceil(Math.PI/4*Math.sqrt((1 << arity)/(double) this.solutions.length));j++){
 			
-			//Oracle
-			this.qr.doOp(search, QuantumUtil.makeConsecutiveIntArray(0, arity+1));
+			oracle.execute(this.qr);
 			
 			this.visualiseGrover(false);
 			
-			//H gates
-			for(int i=1;i<this.qr.getNumqubits();i++){this.qr.doOp(new H(), i);}
-			
-			//Conditional phase shift
-			FieldVector<Complex> temp2 = this.qr.getAmps(QuantumUtil.makeConsecutiveIntArray(0, arity+1));			
-			for(int i=2;i<(1<<arity+1);i++){
-				temp2.setEntry(i, temp2.getEntry(i).negate());
-			}
-			this.qr.setAmps(temp2, QuantumUtil.makeConsecutiveIntArray(0, arity+1));
-			
-			//H gates
-			for(int i=1;i<this.qr.getNumqubits();i++){this.qr.doOp(new H(), i);}
+			diffusion.execute(this.qr);
 			
 			this.visualiseGrover(false);
 		}
@@ -5,12 +5,8 @@ import org.apache.commons.math3.complex.ComplexField;
 import org.apache.commons.math3.linear.ArrayFieldVector;
 import org.apache.commons.math3.linear.FieldVector;
 
-import qclib.Operator;
 import qclib.QubitRegister;
-import qclib.op.CNOT;
-import qclib.op.H;
-import qclib.op.Z;
-import qclib.op.X;
+import qclib.circuit.Circuit;
 import qclib.op.ComboOps;
 import qclib.util.QuantumUtil;
 import qclib.util.CartesianRepresentation;
@@ -117,7 +113,6 @@ public class Grover2qubitWithBasicGates {
 	 * @throws InterruptedException 
 	 * @throws Exception 
 	 */
-	@SuppressWarnings("static-access")
 	public long doGrover() throws IllegalArgumentException, InterruptedException {
 		
 		this.arity=2;
@@ -128,46 +123,27 @@ public class Grover2qubitWithBasicGates {
 		
 		this.qr = new QubitRegister(3);
 		
-		//Defining gates to be used multiple times
-		Operator x, h, z;
-		x = new X();
-		h = new H();
-		z = new Z();
-		
 		//Build the quantum register with first bit |1> and then 'arity' bits |0>
-		this.qr.setAmps( QuantumUtil.buildVector(1,0), 2);
-		this.qr.setAmps( QuantumUtil.buildVector(1,0), 1);
-		this.qr.setAmps( QuantumUtil.buildVector(0,1), 0);
-		
-		//Apply H gate to every qubit
-		this.qr.doOp(h, 2);
-		this.qr.doOp(h, 1);
-		this.qr.doOp(h, 0);
+		//and apply H gate to every qubit
+		Circuit prepare = new Circuit.Builder(3)
+				.x(0)
+				.h(2).h(1).h(0)
+				.build();
 		
-		this.visualiseGrover(true);
+		//Grover iteration
+		Circuit oracle = new Circuit.Builder(3)
+				.gate(ComboOps.toffoli(), 2, 1, 0)
+				.build();
 		
-		//Perform Grover iteration		
-		this.qr.doOp((new ComboOps()).toffoli(), 2, 1, 0);
-			
-		this.visualiseGrover(false);
-			
-		this.qr.doOp(h, 2);
-		this.qr.doOp(h, 1);
+		Circuit.Builder diffusion = new Circuit.Builder(3);
+		diffusion.h(2).h(1);
 		
-
 		//Perform conditional phase shift
-		this.qr.doOp(x, 1);
-		this.qr.doOp(x, 2);
-		
-		this.qr.doOp(h, 1);
-		
-		this.qr.doOp(new CNOT(), 1, 2);
-		
-		
-		this.qr.doOp(h, 1);
-		
-		this.qr.doOp(x, 1);
-		this.qr.doOp(x, 2);
+		diffusion.x(1).x(2)
+			.h(1)
+			.cnot(2, 1)
+			.h(1)
+			.x(1).x(2);
 		
 		/*
 		 * The 4 operations below are basically redundant since the previous operations perform
@@ -175,13 +151,19 @@ public class Grover2qubitWithBasicGates {
 		 * of visualization the 4 operations below were implemented to set the global phase shift
 		 * to 0 so that the visualization would work properly 
 		 */
-		this.qr.doOp(z, 2);
-		this.qr.doOp(x, 2);
-		this.qr.doOp(z, 2);
-		this.qr.doOp(x, 2);
+		diffusion.z(2).x(2).z(2).x(2);
+		
+		diffusion.h(2).h(1);
+		
+		prepare.execute(this.qr);
+		
+		this.visualiseGrover(true);
+		
+		oracle.execute(this.qr);
+			
+		this.visualiseGrover(false);
 		
-		this.qr.doOp(h, 2);
-		this.qr.doOp(h, 1);
+		diffusion.build().execute(this.qr);
 			
 		this.visualiseGrover(false);
 				
@@ -3,60 +3,52 @@ package qclib.alg;
 import org.apache.commons.math3.complex.Complex;
 
 import qclib.QubitRegister;
-import qclib.op.CNOT;
-import qclib.op.H;
-import qclib.op.OpMaker;
+import qclib.circuit.Circuit;
+import qclib.op.X;
 import qclib.op.Z;
 import qclib.util.QuantumUtil;
 
 public class Teleport {
 
+	/**
+	 * The teleportation circuit on three qubits: srcBit, bellBit1, bellBit2.
+	 * Teleports the state of srcBit to bellBit2, which with bellBit1 must start in |00>.
+	 * In the classic example, Alice owns srcBit and bellBit1, the first half of an entangled Bell pair;
+	 * 	Bob owns bellBit2, the second half.
+	 * 	Alice measures srcBit and bellBit1 into classical bits 0 and 1 and sends them to Bob, 
+	 *  who corrects bellBit2 with an X if bit 1 is set and a Z if bit 0 is set.
+	 */
+	public static Circuit circuit(int srcBit, int bellBit1, int bellBit2) {
+		return new Circuit.Builder()
+				.h(bellBit1).cnot(bellBit1, bellBit2)      // bellBits are (|00> + |11>) / sqrt(2)
+				.cnot(srcBit, bellBit1).h(srcBit)          // Alice
+				.measure(srcBit, 0).measure(bellBit1, 1)
+				.gateIf(1, true, new X(), bellBit2)        // Bob
+				.gateIf(0, true, new Z(), bellBit2)
+				.build();
+	}
+
 	/**
 	 * Operates on three qubits in a qr: srcBit, bellBit1, bellBit2.
-	 * Teleports the state of srcBit in qr to bellBit2.
-	 * bellBit1 and bellBit2 should be in the state (|00> + |11>)/sqrt(2).
-	 * In the classic example, Alice owns qubit one and the first half of the entanlged bellBit pair.
-	 * 	Bob owns the second half of the entanlged bellBit pair.
-	 * 	Bob can learn the state of Alice's srcBit (though it will destroy her srcBit) by teleporting it through the entanlgled bellBits. 
-	 *  Alice need only transmit the result of a measurement of her srcBit and the first bellBit1 to Bob via classical means.
+	 * Teleports the state of srcBit in qr to bellBit2 by running circuit(srcBit, bellBit1, bellBit2),
+	 *   after putting bellBit1 and bellBit2 in |00>.
 	 * @param qr QubitRegister
 	 * @param srcBit The qubit to teleport
-	 * @param bellBit1 The 
-	 * @param bellBit2
+	 * @param bellBit1 Alice's half of the Bell pair
+	 * @param bellBit2 Bob's half of the Bell pair, which receives the state
 	 */
 	public static void doTeleport(QubitRegister qr, int srcBit, int bellBit1, int bellBit2) {
-		// put bellBit1 and bellBit2 in a Bell00 state 
-		qr.setAmps( QuantumUtil.buildVector(1,0) , 1) 	// bellBit1 is |0>
-		 .setAmps( QuantumUtil.buildVector(1,0) , 2); 	// bellBit2 is |0>
-		qr.doOp(new H(), 1); 							// bellBit1 is (|0>+|1>) / sqrt(2)
-		qr.doOp(new CNOT(), 2, 1); //control 1, target 2;  bellBits are (|00> + |11>) / sqrt(2)
-		System.out.println("qr before teleport:\n"+qr.printBits(2,1,0));
-		
-		System.out.println("Alice performs CNOT on srcBit and her half of the bellBits, and then H on her half of the bellBits...");
-		qr.doOp(new CNOT(), 1, 0);
-		System.out.println("qr after CNOT01: "+qr.printBits(2,1,0));
-		qr.doOp(new H(), 0);
-		System.out.println("qr after CNOT01 and H:\n"+qr.printBits(2,1,0));
-		
-		boolean m0 = qr.measure(0);
-		boolean m1 = qr.measure(1);
-		System.out.println("Measurement: srcBit="+m0+"; bellBit1="+m1);
-		System.out.println("qr after measurment:\n"+qr.printBits(2,1,0) );
+		qr.setAmps( QuantumUtil.buildVector(1,0) , bellBit1) 	// bellBit1 is |0>
+		 .setAmps( QuantumUtil.buildVector(1,0) , bellBit2); 	// bellBit2 is |0>
+		System.out.println("qr before teleport:\n"+qr.printBits(bellBit2,bellBit1,srcBit));
 		
-		System.out.println("Alice sends result to Bob...");
-		if (m1) {
-			System.out.println("Bob performs X on his bellBit2 since Alice measured bellBit1 == |1>");
-			qr.doOp(OpMaker.makeX(), 2);
-		}
-		if (m0) {
-			System.out.println("Bob performs Z on his bellBit2 since Alice measured srcBit == |1>");
-			qr.doOp(new Z(), 2);
-		}
+		boolean[] m = circuit(srcBit, bellBit1, bellBit2).execute(qr);
+		System.out.println("Measurement: srcBit="+m[0]+"; bellBit1="+m[1]);
+		System.out.println("qr after teleport:\n"+qr.printBits(bellBit2,bellBit1,srcBit) );
 		
 		System.out.println("Bob now has a copy of the original srcBit in bellBit2");
-		int idx = (m0 ? 0b100 : 0) | (m1 ? 0b010 : 0);
-		Complex z0 = qr.getAmps(2,1,0).getEntry(idx);
-		Complex z1 = qr.getAmps(2,1,0).getEntry(idx | 0b001);
+		Complex z0 = qr.getAmps(bellBit2).getEntry(0);
+		Complex z1 = qr.getAmps(bellBit2).getEntry(1);
 		
 		System.out.println("Coefficient of |0>: "+z0);
 		System.out.println("Coefficient of |1>: "+z1);
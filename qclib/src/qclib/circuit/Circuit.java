@@ -0,0 +1,214 @@
+package qclib.circuit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+
+import qclib.GateOptimizer;
+import qclib.Operator;
+import qclib.QubitRegister;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.SWAP;
+import qclib.op.X;
+import qclib.op.Z;
+
+/**
+ * An immutable sequence of Instructions on numqubits qubits and numclbits classical bits.
+ * Build one with a Builder, then run it on a QubitRegister with execute.
+ * Ex. a Bell pair, measured:
+ * 	 Circuit bell = new Circuit.Builder(2).h(0).cnot(0, 1).measure(0, 0).measure(1, 1).build();
+ *   boolean[] result = bell.execute(new QubitRegister(2));
+ */
+public final class Circuit {
+	/** Shared instances of the common gates; operators are immutable. */
+	private static final Operator H_GATE = new H(), X_GATE = new X(), Z_GATE = new Z(),
+			CNOT_GATE = new CNOT(), SWAP_GATE = new SWAP();
+
+	private final int numqubits;
+	private final int numclbits;
+	private final List<Instruction> instructions;
+
+	private Circuit(int numqubits, int numclbits, List<Instruction> instructions) {
+		this.numqubits = numqubits;
+		this.numclbits = numclbits;
+		this.instructions = Collections.unmodifiableList(new ArrayList<Instruction>(instructions));
+	}
+
+	/** Number of qubits the circuit needs: one more than the largest qubit it uses. */
+	public int getNumqubits() { return numqubits; }
+
+	/** Number of classical bits the circuit reads or writes. */
+	public int getNumclbits() { return numclbits; }
+
+	/** The instructions, in order; unmodifiable. */
+	public List<Instruction> getInstructions() { return instructions; }
+
+	public int size() { return instructions.size(); }
+
+	/**
+	 * Run the circuit on qr, starting with every classical bit 0.
+	 * Gates between measurements are queued in qr's deferred mode, so that each run of gates
+	 *   is optimized and applied as a batch; qr's mode is restored afterward.
+	 * Work already queued on qr is carried out first.  If an instruction throws, 
+	 *   the gates queued since the last measurement are dropped, not carried out.
+	 * @param qr register of at least getNumqubits() qubits
+	 * @return the classical bits
+	 */
+	public boolean[] execute(QubitRegister qr) {
+		return execute(qr, new boolean[numclbits]);
+	}
+
+	/**
+	 * Run the circuit on qr with the given classical bits, which measurements update in place.
+	 * @param clbits classical bits, at least getNumclbits() of them
+	 * @return clbits
+	 */
+	public boolean[] execute(QubitRegister qr, boolean[] clbits) {
+		if (qr == null || qr.getNumqubits() < numqubits)
+			throw new IllegalArgumentException("circuit needs "+numqubits+" qubits; register is "+qr);
+		if (clbits == null || clbits.length < numclbits)
+			throw new IllegalArgumentException("circuit needs "+numclbits+" classical bits");
+		boolean wasDeferred = qr.isDeferred();
+		qr.flush(); // so that the queue only ever holds this circuit's gates
+		qr.setDeferred(true);
+		boolean done = false;
+		try {
+			for (Instruction in : instructions) {
+				if (!in.conditionHolds(clbits))
+					continue;
+				if (in.isMeasurement())
+					clbits[in.getClbit()] = qr.measure(in.getTargets()[0]);
+				else
+					qr.doOp(in.getAppliedOperator(), in.getAppliedQubits());
+			}
+			done = true;
+		} finally {
+			if (!done)
+				qr.discardQueued(); // the gates since the last measurement are not carried out
+			qr.setDeferred(wasDeferred);
+		}
+		return clbits;
+	}
+
+	/**
+	 * Returns a circuit with each run of unconditional gates rewritten by optimizer.
+	 * Measurements and conditional gates bound the runs and are kept as they are;
+	 *   the gates of a run become plain gates on their targets and controls.
+	 * @see qclib.PeepholeOptimizer
+	 */
+	public Circuit optimize(GateOptimizer optimizer) {
+		List<Instruction> out = new ArrayList<Instruction>(instructions.size());
+		List<Pair<Operator,int[]>> run = new ArrayList<Pair<Operator,int[]>>();
+		for (Instruction in : instructions) {
+			if (!in.isMeasurement() && !in.isConditional()) {
+				run.add(new Pair<Operator,int[]>(in.getAppliedOperator(), in.getAppliedQubits()));
+				continue;
+			}
+			addRun(out, optimizer, run);
+			out.add(in);
+		}
+		addRun(out, optimizer, run);
+		return new Circuit(numqubits, numclbits, out);
+	}
+
+	/** Append the optimized run of gates to out and clear run. */
+	private static void addRun(List<Instruction> out, GateOptimizer optimizer, List<Pair<Operator,int[]>> run) {
+		if (run.isEmpty())
+			return;
+		for (Pair<Operator,int[]> g : optimizer.optimize(run))
+			out.add(Instruction.gate(g.getFirst(), g.getSecond()));
+		run.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Circuit ("+numqubits+" qubits, "+numclbits+" classical bits)\n");
+		for (Instruction in : instructions)
+			sb.append('\t').append(in).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Fluent builder for a Circuit.
+	 * Each method appends an instruction and returns the builder, so calls chain:
+	 *   new Circuit.Builder(3).h(0).cnot(0, 1).gate(new PhaseGate(0.5), 2).build()
+	 * Gate objects are created once here and shared by every execution of the circuit.
+	 */
+	public static class Builder {
+		private final List<Instruction> instructions = new ArrayList<Instruction>();
+		private int numqubits;
+		private int numclbits;
+
+		public Builder() {
+			this(0);
+		}
+
+		/** @param numqubits minimum number of qubits of the circuit; grows to fit the instructions */
+		public Builder(int numqubits) {
+			if (numqubits < 0)
+				throw new IllegalArgumentException("bad number of qubits: "+numqubits);
+			this.numqubits = numqubits;
+		}
+
+		public Builder add(Instruction in) {
+			if (in == null)
+				throw new IllegalArgumentException("null instruction");
+			instructions.add(in);
+			numqubits = Math.max(numqubits, in.getQubitSpan());
+			numclbits = Math.max(numclbits, in.getClbitSpan());
+			return this;
+		}
+
+		/** Append every instruction of c. */
+		public Builder append(Circuit c) {
+			for (Instruction in : c.getInstructions())
+				add(in);
+			numqubits = Math.max(numqubits, c.getNumqubits());
+			numclbits = Math.max(numclbits, c.getNumclbits());
+			return this;
+		}
+
+		public Builder gate(Operator gate, int... targets) {
+			return add(Instruction.gate(gate, targets));
+		}
+
+		/** Apply gate to targets when every qubit in controls is |1>. */
+		public Builder controlled(Operator gate, int[] controls, int... targets) {
+			return add(Instruction.controlled(gate, controls, targets));
+		}
+
+		/** Apply gate to targets only if classical bit clbit is value. */
+		public Builder gateIf(int clbit, boolean value, Operator gate, int... targets) {
+			return add(Instruction.gate(gate, targets).onlyIf(clbit, value));
+		}
+
+		public Builder measure(int qubit, int clbit) {
+			return add(Instruction.measure(qubit, clbit));
+		}
+
+		/** Apply gate to each of qubits separately. */
+		public Builder layer(Operator gate, int... qubits) {
+			for (int q : qubits)
+				gate(gate, q);
+			return this;
+		}
+
+		public Builder h(int qubit) { return gate(H_GATE, qubit); }
+
+		public Builder x(int qubit) { return gate(X_GATE, qubit); }
+
+		public Builder z(int qubit) { return gate(Z_GATE, qubit); }
+
+		public Builder cnot(int control, int target) { return gate(CNOT_GATE, target, control); }
+
+		public Builder swap(int a, int b) { return gate(SWAP_GATE, a, b); }
+
+		public Circuit build() {
+			return new Circuit(numqubits, numclbits, instructions);
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package qclib.circuit;
+
+import java.util.Arrays;
+
+import qclib.ControlledOperator;
+import qclib.Operator;
+
+/**
+ * One step of a Circuit: either a gate or a measurement.
+ * A gate applies an Operator to target qubits, optionally only when all of its control qubits are |1>.
+ * A measurement measures one qubit into a classical bit of the circuit.
+ * Either kind may carry a classical condition: it is only carried out if the classical bits
+ *   conditionBits read as conditionValue (bit i of conditionValue is conditionBits[i]).
+ *
+ * Immutable.
+ */
+public final class Instruction {
+	/** The gate, or null for a measurement */
+	private final Operator gate;
+	private final int[] targets;
+	private final int[] controls;
+	/** Classical bit a measurement writes to; -1 for a gate */
+	private final int clbit;
+	private final int[] conditionBits;
+	private final int conditionValue;
+	/** The operator passed to QubitRegister.doOp on targets then controls; gate if there are no controls */
+	private final Operator applied;
+
+	private Instruction(Operator gate, int[] targets, int[] controls, int clbit, int[] conditionBits, int conditionValue) {
+		this.gate = gate;
+		this.targets = targets;
+		this.controls = controls;
+		this.clbit = clbit;
+		this.conditionBits = conditionBits;
+		this.conditionValue = conditionValue;
+		if (gate == null || controls.length == 0)
+			this.applied = gate;
+		else {
+			int[] controlpos = new int[controls.length];
+			for (int i=0; i < controls.length; i++)
+				controlpos[i] = targets.length + i;
+			this.applied = new ControlledOperator(gate, controlpos);
+		}
+	}
+
+	/** Apply gate to targets. */
+	public static Instruction gate(Operator gate, int... targets) {
+		return controlled(gate, new int[0], targets);
+	}
+
+	/** Apply gate to targets when every qubit in controls is |1>. */
+	public static Instruction controlled(Operator gate, int[] controls, int... targets) {
+		if (gate == null || targets == null || controls == null || gate.getArity() != targets.length)
+			throw new IllegalArgumentException("gate "+gate+" does not match targets "+Arrays.toString(targets));
+		checkDistinct(targets, controls);
+		return new Instruction(gate, targets.clone(), controls.clone(), -1, new int[0], 0);
+	}
+
+	/** Measure qubit into classical bit clbit. */
+	public static Instruction measure(int qubit, int clbit) {
+		if (clbit < 0)
+			throw new IllegalArgumentException("bad classical bit: "+clbit);
+		checkDistinct(new int[] {qubit}, new int[0]);
+		return new Instruction(null, new int[] {qubit}, new int[0], clbit, new int[0], 0);
+	}
+
+	/**
+	 * Returns a copy of this instruction that is only carried out if the classical bits read as value.
+	 * @param bits classical bits to test; bits[i] is compared to bit i of value
+	 */
+	public Instruction onlyIf(int[] bits, int value) {
+		if (bits == null || bits.length > 31 || (value >>> bits.length) != 0)
+			throw new IllegalArgumentException("bad condition: "+Arrays.toString(bits)+" == "+value);
+		for (int b : bits)
+			if (b < 0)
+				throw new IllegalArgumentException("bad classical bit: "+b);
+		return new Instruction(gate, targets, controls, clbit, bits.clone(), value);
+	}
+
+	/** Returns a copy of this instruction that is only carried out if classical bit clbit is value. */
+	public Instruction onlyIf(int clbit, boolean value) {
+		return onlyIf(new int[] {clbit}, value ? 1 : 0);
+	}
+
+	/** Throws an exception if a qubit is negative or appears twice among targets and controls. */
+	private static void checkDistinct(int[] targets, int[] controls) {
+		int[] all = new int[targets.length + controls.length];
+		System.arraycopy(targets, 0, all, 0, targets.length);
+		System.arraycopy(controls, 0, all, targets.length, controls.length);
+		for (int i=0; i < all.length; i++) {
+			if (all[i] < 0)
+				throw new IllegalArgumentException("bad qubit: "+all[i]);
+			for (int j=0; j < i; j++)
+				if (all[j] == all[i])
+					throw new IllegalArgumentException("qubit "+all[i]+" used twice");
+		}
+	}
+
+	public boolean isMeasurement() { return gate == null; }
+
+	/** The gate, or null for a measurement. */
+	public Operator getGate() { return gate; }
+
+	/** Returns a copy of the target qubits (the measured qubit, for a measurement). */
+	public int[] getTargets() { return targets.clone(); }
+
+	/** Returns a copy of the control qubits. */
+	public int[] getControls() { return controls.clone(); }
+
+	/** Classical bit written by a measurement; -1 for a gate. */
+	public int getClbit() { return clbit; }
+
+	public boolean isConditional() { return conditionBits.length > 0; }
+
+	/** Returns a copy of the classical bits tested by the condition. */
+	public int[] getConditionBits() { return conditionBits.clone(); }
+
+	public int getConditionValue() { return conditionValue; }
+
+	/** Largest qubit index used, plus one. */
+	int getQubitSpan() {
+		int max = -1;
+		for (int q : targets)
+			max = Math.max(max, q);
+		for (int q : controls)
+			max = Math.max(max, q);
+		return max+1;
+	}
+
+	/** Largest classical bit index used, plus one. */
+	int getClbitSpan() {
+		int max = clbit;
+		for (int b : conditionBits)
+			max = Math.max(max, b);
+		return max+1;
+	}
+
+	/** True if the condition holds on the classical bits (always true without a condition). */
+	boolean conditionHolds(boolean[] clbits) {
+		for (int i=0; i < conditionBits.length; i++)
+			if (clbits[conditionBits[i]] != (((conditionValue >>> i) & 1) != 0))
+				return false;
+		return true;
+	}
+
+	/** The operator to pass to QubitRegister.doOp, together with getAppliedQubits. */
+	Operator getAppliedOperator() { return applied; }
+
+	/** The qubits to pass to QubitRegister.doOp: targets, then controls. */
+	int[] getAppliedQubits() {
+		int[] ret = new int[targets.length + controls.length];
+		System.arraycopy(targets, 0, ret, 0, targets.length);
+		System.arraycopy(controls, 0, ret, targets.length, controls.length);
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (isMeasurement())
+			sb.append("measure ").append(targets[0]).append(" -> c").append(clbit);
+		else {
+			sb.append(gate.getClass().getSimpleName()).append(' ').append(Arrays.toString(targets));
+			if (controls.length > 0)
+				sb.append(" ctrl ").append(Arrays.toString(controls));
+		}
+		if (isConditional())
+			sb.append(" if c").append(Arrays.toString(conditionBits)).append(" == ").append(conditionValue);
+		return sb.toString();
+	}
+
+}
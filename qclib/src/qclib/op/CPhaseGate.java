@@ -1,28 +1,17 @@
 package qclib.op;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.linear.FieldVector;
+import qclib.ControlledOperator;
 
-import qclib.Operator;
-
-public class CPhaseGate extends Operator {
-	private double phaseShift;
+public class CPhaseGate extends ControlledOperator {
 	
-	public CPhaseGate(double phaseShift) {
-		super(2);
-		this.phaseShift = phaseShift;
-	}
-
 	/**
 	 *     a|00> + b|01> + c|10> + d|11>
 	 * ==> a|00> + b|01> + c|10> + d*e^(i*phaseShift)|11>
-	 * Creates new vector; does not change original.
+	 * First bit is target bit; second bit is control bit.
+	 * Order of the two qubits does not matter.
 	 */
-	@Override
-	public FieldVector<Complex> myApply(FieldVector<Complex> invec) {
-		FieldVector<Complex> outvec = invec.copy();
-		outvec.setEntry(3, outvec.getEntry(3).multiply(new Complex(0,this.phaseShift).exp()));
-		return outvec;
+	public CPhaseGate(double phaseShift) {
+		super(new PhaseGate(phaseShift), 1);
 	}
 
 }
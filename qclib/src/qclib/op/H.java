@@ -6,6 +6,11 @@ import org.apache.commons.math3.linear.FieldVector;
 import qclib.Operator;
 
 public class H extends Operator {
+	
+	private static final double INV_SQRT2 = 1/Math.sqrt(2);
+	private static final double[] MATRIX = {
+		INV_SQRT2, 0,  INV_SQRT2, 0,
+		INV_SQRT2, 0, -INV_SQRT2, 0 };
 
 	public H() {
 		super(1);
@@ -22,5 +27,10 @@ public class H extends Operator {
 		outvec.setEntry(1, (invec.getEntry(0).subtract(invec.getEntry(1))).divide(Math.sqrt(2)) );
 		return outvec;
 	}
+	
+	@Override
+	protected double[] getSingleQubitMatrix() {
+		return MATRIX;
+	}
 
 }
@@ -8,6 +8,10 @@ import qclib.util.QuantumUtil;
 
 public class OpMaker {
 	
+	private static final double[] X_MATRIX = {
+		0, 0, 1, 0,
+		1, 0, 0, 0 };
+	
 	/**
 	 * Returns an X operator, which switches the |0> and |1> component.
 	 * @return
@@ -21,6 +25,11 @@ public class OpMaker {
 				return outvec;
 			}
 			
+			@Override
+			protected double[] getSingleQubitMatrix() {
+				return X_MATRIX;
+			}
+			
 		};
 	}
 }
@@ -7,10 +7,16 @@ import qclib.Operator;
 
 public class PhaseGate extends Operator {
 	private double phaseShift;
+	private final double[] matrix;
+	private final double[] diagonal;
 	
 	public PhaseGate(double phaseShift) {
 		super(1);
 		this.phaseShift = phaseShift;
+		this.matrix = new double[] {
+				1, 0, 0, 0,
+				0, 0, Math.cos(phaseShift), Math.sin(phaseShift) };
+		this.diagonal = new double[] { 1, 0, Math.cos(phaseShift), Math.sin(phaseShift) };
 	}
 
 	/**
@@ -23,5 +29,15 @@ public class PhaseGate extends Operator {
 		outvec.setEntry(1, outvec.getEntry(1).multiply(new Complex(0,this.phaseShift).exp()));
 		return outvec;
 	}
+	
+	@Override
+	protected double[] getSingleQubitMatrix() {
+		return matrix;
+	}
+	
+	@Override
+	protected double[] getDiagonal() {
+		return diagonal;
+	}
 
 }
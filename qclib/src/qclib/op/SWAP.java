@@ -0,0 +1,18 @@
+package qclib.op;
+
+import qclib.PermutationOperator;
+
+public class SWAP extends PermutationOperator {
+	
+	private static final int[] PERMUTATION = { 0, 2, 1, 3 };
+
+	/**
+	 *     a|00> + b|01> + c|10> + d|11>
+	 * ==> a|00> + c|01> + b|10> + d|11>
+	 * Exchanges the two qubits.  Order of the two qubits does not matter.
+	 */
+	public SWAP() {
+		super(2, PERMUTATION);
+	}
+
+}
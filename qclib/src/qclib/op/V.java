@@ -6,6 +6,11 @@ import org.apache.commons.math3.linear.FieldVector;
 import qclib.Operator;
 
 public class V extends Operator {
+	
+	private static final double[] MATRIX = {
+		1, 0, 0, 0,
+		0, 0, 0, 1 };
+	private static final double[] DIAGONAL = { 1, 0, 0, 1 };
 
 	public V() {
 		super(1);
@@ -21,5 +26,15 @@ public class V extends Operator {
 		outvec.setEntry(1, outvec.getEntry(1).multiply(Complex.I));
 		return outvec;
 	}
+	
+	@Override
+	protected double[] getSingleQubitMatrix() {
+		return MATRIX;
+	}
+	
+	@Override
+	protected double[] getDiagonal() {
+		return DIAGONAL;
+	}
 
 }
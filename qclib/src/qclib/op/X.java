@@ -3,12 +3,18 @@ package qclib.op;
 import org.apache.commons.math3.complex.Complex;
 import org.apache.commons.math3.linear.FieldVector;
 
-import qclib.Operator;
+import qclib.PermutationOperator;
 
-public class X extends Operator {
+public class X extends PermutationOperator {
+	
+	private static final double[] MATRIX = {
+		0, 0, 1, 0,
+		1, 0, 0, 0 };
+	private static final int[] PERMUTATION = { 1, 0 };
 
+	/** Applied as a bit flip: a single swap pass over the state. */
 	public X() {
-		super(1);
+		super(1, PERMUTATION);
 	}
 
 	@Override
@@ -18,5 +24,10 @@ public class X extends Operator {
 		outvec.setEntry(1, invec.getEntry(0));
 		return outvec;
 	}
+	
+	@Override
+	protected double[] getSingleQubitMatrix() {
+		return MATRIX;
+	}
 
 }
@@ -0,0 +1,159 @@
+package qclib.store;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from a basis state (a long >= 0) to a complex amplitude,
+ *   held in primitive arrays: no object per entry.
+ * Linear probing, at most half full; removal shifts the following entries back
+ *   so there are no tombstones.
+ * Iterate with: for (int s=0; s < map.capacity(); s++) if (map.keyAt(s) != AmplitudeMap.EMPTY) ...
+ */
+final class AmplitudeMap {
+	/** Key of an empty slot */
+	static final long EMPTY = -1;
+
+	private long[] keys;
+	/** Interleaved {re, im} of the amplitude of keys[s] at [2*s] and [2*s+1] */
+	private double[] vals;
+	private int count;
+
+	/** Empty, with room for about expected entries before growing. */
+	AmplitudeMap(int expected) {
+		int cap = 16;
+		while (cap < 2*expected)
+			cap <<= 1;
+		keys = new long[cap];
+		Arrays.fill(keys, EMPTY);
+		vals = new double[2*cap];
+	}
+
+	private AmplitudeMap(AmplitudeMap m) {
+		keys = m.keys.clone();
+		vals = m.vals.clone();
+		count = m.count;
+	}
+
+	AmplitudeMap copy() { return new AmplitudeMap(this); }
+
+	/** Number of entries */
+	int size() { return count; }
+
+	int capacity() { return keys.length; }
+
+	/** Key in slot s, or EMPTY */
+	long keyAt(int s) { return keys[s]; }
+	double reAt(int s) { return vals[2*s]; }
+	double imAt(int s) { return vals[2*s+1]; }
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		count = 0;
+	}
+
+	/** Home slot of key: a 64-bit mix, so that keys differing in high bits spread too. */
+	private int home(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key & (keys.length-1);
+	}
+
+	/** Slot of key, or -1 if absent */
+	int find(long key) {
+		final int mask = keys.length-1;
+		for (int s = home(key); ; s = (s+1) & mask) {
+			if (keys[s] == key)
+				return s;
+			if (keys[s] == EMPTY)
+				return -1;
+		}
+	}
+
+	/** Slot of key, which is inserted with amplitude 0 if absent */
+	private int slot(long key) {
+		final int mask = keys.length-1;
+		int s = home(key);
+		for ( ; keys[s] != EMPTY; s = (s+1) & mask)
+			if (keys[s] == key)
+				return s;
+		if (2*(count+1) > keys.length) {
+			grow();
+			return slot(key);
+		}
+		keys[s] = key;
+		vals[2*s] = vals[2*s+1] = 0;
+		count++;
+		return s;
+	}
+
+	private void grow() {
+		long[] oldkeys = keys;
+		double[] oldvals = vals;
+		keys = new long[2*oldkeys.length];
+		Arrays.fill(keys, EMPTY);
+		vals = new double[2*keys.length];
+		count = 0;
+		for (int s=0; s < oldkeys.length; s++)
+			if (oldkeys[s] != EMPTY)
+				put(oldkeys[s], oldvals[2*s], oldvals[2*s+1]);
+	}
+
+	void put(long key, double re, double im) {
+		int s = slot(key);
+		vals[2*s] = re;
+		vals[2*s+1] = im;
+	}
+
+	/** amp[key] += re + i*im */
+	void add(long key, double re, double im) {
+		int s = slot(key);
+		vals[2*s] += re;
+		vals[2*s+1] += im;
+	}
+
+	/** Overwrite the amplitude in slot s, which holds a key. */
+	void setAt(int s, double re, double im) {
+		vals[2*s] = re;
+		vals[2*s+1] = im;
+	}
+
+	void remove(long key) {
+		int s = find(key);
+		if (s >= 0)
+			removeAt(s);
+	}
+
+	/**
+	 * Empties slot s and shifts back the entries of the probe run after it.
+	 * @return true if an entry was moved into slot s (so it must be visited again when iterating)
+	 */
+	boolean removeAt(int s) {
+		final int mask = keys.length-1;
+		boolean moved = false;
+		int hole = s;
+		for (int t = (s+1) & mask; keys[t] != EMPTY; t = (t+1) & mask) {
+			int h = home(keys[t]);
+			// t may fill the hole if its home is not cyclically in (hole, t]
+			if (((t - h) & mask) >= ((t - hole) & mask)) {
+				keys[hole] = keys[t];
+				vals[2*hole] = vals[2*t];
+				vals[2*hole+1] = vals[2*t+1];
+				moved |= hole == s;
+				hole = t;
+			}
+		}
+		keys[hole] = EMPTY;
+		count--;
+		return moved;
+	}
+
+	/** Removes every entry with re^2 + im^2 <= threshold2. */
+	void prune(double threshold2) {
+		for (int s=0; s < keys.length; s++)
+			while (keys[s] != EMPTY && vals[2*s]*vals[2*s] + vals[2*s+1]*vals[2*s+1] <= threshold2)
+				if (!removeAt(s))
+					break;
+	}
+
+}
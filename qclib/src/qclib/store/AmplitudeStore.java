@@ -0,0 +1,567 @@
+package qclib.store;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.complex.ComplexField;
+import org.apache.commons.math3.linear.ArrayFieldVector;
+import org.apache.commons.math3.linear.FieldVector;
+
+import qclib.util.IndexIterator;
+import qclib.util.Parallel;
+import qclib.util.QuantumUtil;
+
+/**
+ * Storage engine for the 2^numbits amplitudes of a QubitContainer.
+ * Amplitudes are read and written as (real, imaginary) pairs of primitive doubles
+ * so that gate application does not need to create a Complex object per amplitude.
+ * Ex. 2 qubits => {|00>, |01>, |10>, |11>}
+ *
+ * Subclasses only need to provide the element accessors; the bulk operations
+ * below are written against them and may be overridden for speed.
+ * A store holding memory outside the Java heap frees it in close().
+ */
+public abstract class AmplitudeStore implements Closeable {
+	private final int numbits;
+
+	protected AmplitudeStore(int numbits) {
+		if (numbits <= 0)
+			throw new IllegalArgumentException("bad number of qubits: "+numbits);
+		this.numbits = numbits;
+	}
+
+	public final int getNumbits() { return numbits; }
+
+	/** Number of amplitudes held: 2^numbits */
+	public final long size() { return 1L<<numbits; }
+
+	public abstract double getReal(long idx);
+	public abstract double getImaginary(long idx);
+	public abstract void set(long idx, double re, double im);
+
+	/** Returns a new, all-zero store of the same kind and size. */
+	public abstract AmplitudeStore newEmpty();
+
+	/** Returns a deep copy. */
+	public AmplitudeStore copy() {
+		AmplitudeStore ret = newEmpty();
+		for (long i=0; i < size(); i++)
+			ret.set(i, getReal(i), getImaginary(i));
+		return ret;
+	}
+
+	/** Releases any memory held outside the Java heap; the store must not be used afterwards.  Does nothing by default. */
+	@Override
+	public void close() {}
+
+	/** |amp_idx|^2 */
+	public double normSquared(long idx) {
+		double re = getReal(idx), im = getImaginary(idx);
+		return re*re + im*im;
+	}
+
+	/** Set every amplitude to re + i*im. */
+	public void fill(double re, double im) {
+		for (long i=0; i < size(); i++)
+			set(i, re, im);
+	}
+
+	/** True if every amplitude is exactly zero. */
+	public boolean isZero() {
+		for (long i=0; i < size(); i++)
+			if (getReal(i) != 0 || getImaginary(i) != 0)
+				return false;
+		return true;
+	}
+
+	/** Number of amplitudes that are not exactly zero. */
+	public long countNonZero() {
+		long n = 0;
+		for (long i=0; i < size(); i++)
+			if (getReal(i) != 0 || getImaginary(i) != 0)
+				n++;
+		return n;
+	}
+
+	/** The indices of the amplitudes that are not exactly zero, in no particular order.  At most 2^31-1 of them. */
+	public long[] nonZeroIndices() {
+		long[] ret = new long[16];
+		int n = 0;
+		for (long i=0; i < size(); i++)
+			if (getReal(i) != 0 || getImaginary(i) != 0) {
+				if (n == ret.length)
+					ret = Arrays.copyOf(ret, 2*n);
+				ret[n++] = i;
+			}
+		return Arrays.copyOf(ret, n);
+	}
+
+	/** Writes the non-zero amplitudes of this store into dst, which has the same size and is all zero. */
+	public void copyTo(AmplitudeStore dst) {
+		if (dst.size() != size())
+			throw new IllegalArgumentException("sizes differ: "+size()+" and "+dst.size());
+		for (long i=0; i < size(); i++) {
+			double re = getReal(i), im = getImaginary(i);
+			if (re != 0 || im != 0)
+				dst.set(i, re, im);
+		}
+	}
+
+	/// -------------
+	/// Gate kernels
+	/// -------------
+
+	/**
+	 * In-place 1-qubit gate on bit target.  Walks the state with stride 2^target,
+	 * updating each pair (idx, idx | 2^target) with idx's target bit clear:
+	 *   a ==> m00*a + m01*b,  b ==> m10*a + m11*b.
+	 * Allocates nothing.
+	 * @param target the bit to operate on
+	 * @param m 2x2 matrix {re00, im00, re01, im01, re10, im10, re11, im11}
+	 */
+	public final void applySingleQubit(int target, final double[] m) {
+		applySingleQubit(target, m, 0);
+	}
+
+	/**
+	 * Controlled version of applySingleQubit: only the pairs whose index has 
+	 * every bit of controlmask set are visited; the rest of the state is not touched at all.
+	 * @param controlmask bits that must all be 1; must not contain target
+	 */
+	public void applySingleQubit(int target, final double[] m, long controlmask) {
+		checkTarget(target, controlmask);
+		final long tbit = 1L<<target;
+		final long free = (size()-1) & ~tbit & ~controlmask;
+		// enumerate the subsets of the free bits in increasing order
+		long sub = 0;
+		do {
+			long i0 = sub | controlmask, i1 = i0 | tbit;
+			double r0 = getReal(i0), a0 = getImaginary(i0),
+					r1 = getReal(i1), a1 = getImaginary(i1);
+			set(i0, m[0]*r0 - m[1]*a0 + m[2]*r1 - m[3]*a1,
+					m[0]*a0 + m[1]*r0 + m[2]*a1 + m[3]*r1);
+			set(i1, m[4]*r0 - m[5]*a0 + m[6]*r1 - m[7]*a1,
+					m[4]*a0 + m[5]*r0 + m[6]*a1 + m[7]*r1);
+			sub = (sub - free) & free;
+		} while (sub != 0);
+	}
+
+	/**
+	 * In-place diagonal operator: a single streaming pass that multiplies every amplitude 
+	 * by the diagonal entry selected by the bits of its index at targetbits.
+	 * Amplitudes whose entry is exactly 1 are only read, never written.
+	 * @param targetbits bits of this store passed to bits {0,1,...,k-1} of the diagonal
+	 * @param diag the 2^k diagonal entries, interleaved {re_0, im_0, re_1, im_1, ...}
+	 * @param controlmask bits that must all be 1; only those amplitudes are visited
+	 */
+	public void applyDiagonal(final int[] targetbits, final double[] diag, long controlmask) {
+		checkTargets(targetbits, diag, controlmask);
+		final long free = (size()-1) & ~controlmask;
+		long sub = 0;
+		do {
+			long idx = sub | controlmask;
+			int l = QuantumUtil.extractBits(idx, targetbits);
+			double dr = diag[2*l], di = diag[2*l+1];
+			if (dr != 1 || di != 0) {
+				double re = getReal(idx), im = getImaginary(idx);
+				set(idx, re*dr - im*di, re*di + im*dr);
+			}
+			sub = (sub - free) & free;
+		} while (sub != 0);
+	}
+
+	/**
+	 * In-place dense k-qubit gate: for every block of 2^k amplitudes that differ only at targetbits,
+	 *   multiply the block by matrix.  Used for fused runs of operators.
+	 * @param targetbits bits of this store passed to bits {0,1,...,k-1} of the matrix
+	 * @param matrix 2^k x 2^k, row-major with interleaved (re,im) entries
+	 * @param controlmask bits that must all be 1; only those blocks are visited
+	 */
+	public void applyMatrix(final int[] targetbits, final double[] matrix, long controlmask) {
+		final long tmask = checkTargets(targetbits, controlmask);
+		final int dim = 1<<targetbits.length;
+		if (matrix.length != 2*dim*dim)
+			throw new IllegalArgumentException("need a "+dim+"x"+dim+" matrix, got "+matrix.length+" coefficients");
+		final long[] offsets = offsets(targetbits);
+		final double[] in = new double[2*dim];
+		final long free = (size()-1) & ~tmask & ~controlmask;
+		long sub = 0;
+		do {
+			long base = sub | controlmask;
+			for (int l=0; l < dim; l++) {
+				in[2*l] = getReal(base | offsets[l]);
+				in[2*l+1] = getImaginary(base | offsets[l]);
+			}
+			for (int r=0; r < dim; r++) {
+				double re = 0, im = 0;
+				for (int c=0, m=2*r*dim; c < dim; c++, m+=2) {
+					re += matrix[m]*in[2*c] - matrix[m+1]*in[2*c+1];
+					im += matrix[m]*in[2*c+1] + matrix[m+1]*in[2*c];
+				}
+				set(base | offsets[r], re, im);
+			}
+			sub = (sub - free) & free;
+		} while (sub != 0);
+	}
+
+	/** offsets[l] is local index l deposited at targetbits, to be ORed onto a block's base index. */
+	protected static long[] offsets(final int[] targetbits) {
+		long[] ret = new long[1<<targetbits.length];
+		for (int l=0; l < ret.length; l++)
+			ret[l] = QuantumUtil.depositBitsLong(l, targetbits);
+		return ret;
+	}
+
+	/**
+	 * In-place permutation of basis states: the amplitude of every idx whose bits at targetbits 
+	 *   are l moves to the same idx with those bits replaced by perm[l].
+	 * Walks each cycle of perm once per block, moving amplitudes without arithmetic.
+	 * A permutation of the form l ==> l ^ mask is handed to applyXor.
+	 * @param targetbits bits of this store passed to bits {0,1,...,k-1} of the permutation
+	 * @param perm the image of each of the 2^k local basis states
+	 * @param controlmask bits that must all be 1; only those amplitudes are visited
+	 */
+	public void applyPermutation(final int[] targetbits, final int[] perm, long controlmask) {
+		final long tmask = checkTargets(targetbits, controlmask);
+		if (perm.length != 1<<targetbits.length)
+			throw new IllegalArgumentException("need "+(1<<targetbits.length)+" entries in the permutation, got "+perm.length);
+		
+		// pure bit flip?
+		final int flip = perm[0];
+		boolean isFlip = true;
+		for (int l=1; l < perm.length && isFlip; l++)
+			isFlip = perm[l] == (l ^ flip);
+		if (isFlip) {
+			if (flip != 0)
+				applyXor(QuantumUtil.depositBitsLong(flip, targetbits), controlmask);
+			return;
+		}
+		
+		applyCycles(cycles(perm, targetbits), tmask, controlmask);
+	}
+
+	/**
+	 * Moves amplitudes around the given cycles in every block whose index has controlmask set.
+	 * Each cycle is stored as its length m followed by its m offsets (see cycles), 
+	 *   where the amplitude at offset c_i moves to c_{i+1} (and c_{m-1} to c_0).
+	 * @param tmask the bits the offsets live in
+	 */
+	protected void applyCycles(final long[] cycles, long tmask, long controlmask) {
+		final long free = (size()-1) & ~tmask & ~controlmask;
+		long sub = 0;
+		do {
+			long base = sub | controlmask;
+			for (int c=0; c < cycles.length; c += (int)cycles[c]+1) {
+				int m = (int)cycles[c];
+				long last = base | cycles[c+m];
+				double re = getReal(last), im = getImaginary(last);
+				for (int i=c+m; i > c+1; i--) {
+					long from = base | cycles[i-1];
+					set(base | cycles[i], getReal(from), getImaginary(from));
+				}
+				set(base | cycles[c+1], re, im);
+			}
+			sub = (sub - free) & free;
+		} while (sub != 0);
+	}
+
+	/**
+	 * Returns the nontrivial cycles of perm, each as its length m followed by its m elements 
+	 *   deposited at targetbits, so that they can be ORed onto a block's base index.
+	 */
+	protected static long[] cycles(final int[] perm, final int[] targetbits) {
+		long[] ret = new long[perm.length + perm.length/2];
+		int n = 0;
+		boolean[] seen = new boolean[perm.length];
+		for (int start=0; start < perm.length; start++) {
+			if (seen[start] || perm[start] == start)
+				continue;
+			int lenpos = n++, m = 0;
+			for (int l=start; !seen[l]; l = perm[l]) {
+				seen[l] = true;
+				ret[n++] = QuantumUtil.depositBitsLong(l, targetbits);
+				m++;
+			}
+			ret[lenpos] = m;
+		}
+		long[] trimmed = new long[n];
+		System.arraycopy(ret, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	/**
+	 * In-place bit flip: swaps the amplitudes of idx and idx ^ flipmask 
+	 *   for every idx with the bits of controlmask set.  One pass, no arithmetic.
+	 * Ex. X on bits 0 and 2 is applyXor(0b101, 0); CNOT with control 1 and target 0 is applyXor(0b01, 0b10).
+	 * @param flipmask bits to flip; disjoint from controlmask
+	 * @param controlmask bits that must all be 1; only those amplitudes are visited
+	 */
+	public void applyXor(long flipmask, long controlmask) {
+		checkXor(flipmask, controlmask);
+		if (flipmask == 0)
+			return;
+		// visit each pair once, from the member with the highest flipped bit clear
+		final long free = (size()-1) & ~controlmask & ~Long.highestOneBit(flipmask);
+		long sub = 0;
+		do {
+			long i0 = sub | controlmask, i1 = i0 ^ flipmask;
+			double r0 = getReal(i0), a0 = getImaginary(i0);
+			set(i0, getReal(i1), getImaginary(i1));
+			set(i1, r0, a0);
+			sub = (sub - free) & free;
+		} while (sub != 0);
+	}
+
+	/** Error checking for applyXor. */
+	protected final void checkXor(long flipmask, long controlmask) {
+		if ((flipmask & ~(size()-1)) != 0 || (controlmask & ~(size()-1)) != 0 || (flipmask & controlmask) != 0)
+			throw new IllegalArgumentException("bad flip mask "+Long.toBinaryString(flipmask)+" or control mask "+Long.toBinaryString(controlmask));
+	}
+
+	/** Error checking for the kernels. */
+	protected final void checkTarget(int target, long controlmask) {
+		if (target < 0 || target >= numbits)
+			throw new IllegalArgumentException("bad target bit: "+target);
+		if ((controlmask & (1L<<target)) != 0 || (controlmask & ~(size()-1)) != 0)
+			throw new IllegalArgumentException("bad control mask "+Long.toBinaryString(controlmask)+" for target "+target);
+	}
+
+	/** Error checking for the multi-bit kernels. */
+	protected final void checkTargets(final int[] targetbits, final double[] coeffs, long controlmask) {
+		checkTargets(targetbits, controlmask);
+		if (coeffs.length < 2<<targetbits.length)
+			throw new IllegalArgumentException("need "+(2<<targetbits.length)+" coefficients, got "+coeffs.length);
+	}
+
+	/** Error checking for the multi-bit kernels; returns the OR of 1<<targetbits[i]. */
+	protected final long checkTargets(final int[] targetbits, long controlmask) {
+		long tmask = 0;
+		for (int tb : targetbits) {
+			if (tb < 0 || tb >= numbits || (tmask & (1L<<tb)) != 0)
+				throw new IllegalArgumentException("bad or repeated target bit: "+tb);
+			tmask |= 1L<<tb;
+		}
+		if ((controlmask & tmask) != 0 || (controlmask & ~(size()-1)) != 0)
+			throw new IllegalArgumentException("bad control mask "+Long.toBinaryString(controlmask));
+		return tmask;
+	}
+
+	/// --------------------------------------------------
+	/// Gather / scatter over the current block of an IndexIterator
+	/// (block i is index i of the block; each call rewinds the block first)
+	/// --------------------------------------------------
+
+	/**
+	 * Copies the amplitudes of the current block of it into buf as interleaved (re,im) pairs.
+	 * @param buf length at least 2*it.blockSize()
+	 */
+	public void gather(final IndexIterator it, double[] buf) {
+		it.rewindBlock();
+		for (int i=0, n=(int)it.blockSize(); i < n; i++) {
+			long idx = it.next();
+			buf[2*i]   = getReal(idx);
+			buf[2*i+1] = getImaginary(idx);
+		}
+	}
+
+	/** Inverse of gather: writes the interleaved pairs in buf to the amplitudes of the current block. */
+	public void scatter(final IndexIterator it, final double[] buf) {
+		it.rewindBlock();
+		for (int i=0, n=(int)it.blockSize(); i < n; i++)
+			set(it.next(), buf[2*i], buf[2*i+1]);
+	}
+
+	/** this[i] = src[block index i] for every i.  Used for reordering bits. */
+	public void gatherFrom(final AmplitudeStore src, final IndexIterator it) {
+		it.rewindBlock();
+		for (long i=0, n=it.blockSize(); i < n; i++) {
+			long idx = it.next();
+			set(i, src.getReal(idx), src.getImaginary(idx));
+		}
+	}
+
+	/** this[block index i] = src[i] for every i. */
+	public void scatterFrom(final AmplitudeStore src, final IndexIterator it) {
+		it.rewindBlock();
+		for (long i=0, n=it.blockSize(); i < n; i++)
+			set(it.next(), src.getReal(i), src.getImaginary(i));
+	}
+
+	/** this[block index i] *= part[i] for every i.  Used for building tensor products. */
+	public void multiplyIn(final IndexIterator it, final AmplitudeStore part) {
+		if (part.size() != it.blockSize())
+			throw new IllegalArgumentException("part.size()="+part.size()+", block size="+it.blockSize());
+		it.rewindBlock();
+		for (long i=0, n=part.size(); i < n; i++) {
+			long idx = it.next();
+			double ar = getReal(idx), ai = getImaginary(idx),
+					br = part.getReal(i), bi = part.getImaginary(i);
+			set(idx, ar*br - ai*bi, ar*bi + ai*br);
+		}
+	}
+
+	/**
+	 * Returns a new store of the same kind with the bits renumbered: 
+	 *   bit j of an index of the new store is bit neworder[j] of the index in this one.
+	 * @param neworder a permutation of [0, numbits)
+	 */
+	public AmplitudeStore reorderBits(final int[] neworder) {
+		// a single block, since every bit is a target
+		IndexIterator it = new IndexIterator(numbits, neworder);
+		it.nextBlock();
+		AmplitudeStore ret = newEmpty();
+		ret.gatherFrom(this, it);
+		return ret;
+	}
+
+	/// ---------------------------------------------
+	/// Masked operations used by measurement.
+	/// Touch every idx with (idx & mask) == value.
+	/// ---------------------------------------------
+
+	/** marginal splits across threads only up to this many bits, since each task sums into its own 2^bits array */
+	private static final int MAX_PARALLEL_MARGINAL_BITS = 16;
+
+	/**
+	 * Sums of |amp_idx|^2 grouped by the value of bits: ret[l] sums over every idx 
+	 *   whose bits bits[0], bits[1], ... are bits 0, 1, ... of l.  No bits gives the total, in ret[0].
+	 * Read only, in one pass; a large store is split across threads (see Parallel).
+	 */
+	public double[] marginal(final int[] bits) {
+		final double[] ret = new double[1<<bits.length];
+		if (bits.length > MAX_PARALLEL_MARGINAL_BITS) {
+			accumulateSquares(bits, 0, size(), ret);
+			return ret;
+		}
+		// counter c covers the indices [c << shift, (c+1) << shift)
+		final int shift = Math.max(0, numbits-30);
+		Parallel.forRange(1<<(numbits-shift), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				double[] part = new double[ret.length];
+				accumulateSquares(bits, (long)from<<shift, (long)to<<shift, part);
+				synchronized (ret) {
+					for (int l=0; l < ret.length; l++)
+						ret[l] += part[l];
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Sums used for the expectation of Pauli strings that flip the same bits: for each s, 
+	 *   ret[2s] + i*ret[2s+1] = sum over idx of (-1)^|idx & signmasks[s]| * conj(amp_(idx ^ flipmask)) * amp_idx.
+	 * Read only, in one pass for all of signmasks; a large store is split across threads (see Parallel).
+	 * @return interleaved {re, im} for each of signmasks
+	 */
+	public double[] pauliSums(final long flipmask, final long[] signmasks) {
+		final double[] ret = new double[2*signmasks.length];
+		// counter c covers the indices [c << shift, (c+1) << shift)
+		final int shift = Math.max(0, numbits-30);
+		Parallel.forRange(1<<(numbits-shift), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				double[] part = new double[ret.length];
+				for (long i=(long)from<<shift, end=(long)to<<shift; i < end; i++) {
+					double ar = getReal(i), ai = getImaginary(i);
+					if (ar == 0 && ai == 0)
+						continue;
+					long j = i ^ flipmask;
+					double br = getReal(j), bi = getImaginary(j);
+					addPauliTerms(i, br*ar + bi*ai, br*ai - bi*ar, signmasks, part);
+				}
+				synchronized (ret) {
+					for (int l=0; l < ret.length; l++)
+						ret[l] += part[l];
+				}
+			}
+		});
+		return ret;
+	}
+
+	/** sums[2s] + i*sums[2s+1] += (-1)^|idx & signmasks[s]| * (wr + i*wi) for each s */
+	protected static void addPauliTerms(long idx, double wr, double wi, long[] signmasks, double[] sums) {
+		for (int s=0; s < signmasks.length; s++)
+			if ((Long.bitCount(idx & signmasks[s]) & 1) == 0) {
+				sums[2*s] += wr;
+				sums[2*s+1] += wi;
+			} else {
+				sums[2*s] -= wr;
+				sums[2*s+1] -= wi;
+			}
+	}
+
+	/** p[value of bits in idx] += |amp_idx|^2 for idx in [from, to) */
+	private void accumulateSquares(int[] bits, long from, long to, double[] p) {
+		for (long i=from; i < to; i++)
+			p[QuantumUtil.extractBits(i, bits)] += normSquared(i);
+	}
+
+	/** Sum of |amp_idx|^2 over every idx with (idx & mask) == value */
+	public double sumSquares(long mask, long value) {
+		double sum = 0.0;
+		for (long i=0; i < size(); i++)
+			if ((i & mask) == value)
+				sum += normSquared(i);
+		return sum;
+	}
+
+	/** Multiply every amp_idx with (idx & mask) == value by factor */
+	public void scale(long mask, long value, double factor) {
+		for (long i=0; i < size(); i++)
+			if ((i & mask) == value)
+				set(i, getReal(i)*factor, getImaginary(i)*factor);
+	}
+
+	/** Zero out every amp_idx with (idx & mask) == value */
+	public void setZero(long mask, long value) {
+		for (long i=0; i < size(); i++)
+			if ((i & mask) == value)
+				set(i, 0, 0);
+	}
+
+	/// ----------
+	/// Conversion
+	/// ----------
+
+	/** Copy the amplitudes out into a new dense vector of Complex.  At most 30 qubits. */
+	public FieldVector<Complex> toFieldVector() {
+		if (numbits > 30)
+			throw new IllegalStateException(numbits+" qubits do not fit in a FieldVector");
+		FieldVector<Complex> v = new ArrayFieldVector<Complex>(ComplexField.getInstance(), (int)size());
+		for (int i=0; i < size(); i++)
+			v.setEntry(i, new Complex(getReal(i), getImaginary(i)));
+		return v;
+	}
+
+	/**
+	 * Copy the amplitudes in from a vector of Complex.
+	 * If v is shorter than this store, the remaining amplitudes are set to zero.
+	 */
+	public void setFrom(FieldVector<Complex> v) {
+		if (v.getDimension() > size())
+			throw new IllegalArgumentException("vector of dimension "+v.getDimension()+" does not fit in "+size()+" amplitudes");
+		for (int i=0; i < v.getDimension(); i++) {
+			Complex c = v.getEntry(i);
+			set(i, c.getReal(), c.getImaginary());
+		}
+		for (long i=v.getDimension(); i < size(); i++)
+			set(i, 0, 0);
+	}
+
+	/** Returns a new dense store holding the entries of v, which must have dimension 2^k. */
+	public static AmplitudeStore fromFieldVector(FieldVector<Complex> v) {
+		AmplitudeStore ret = new DoubleAmplitudeStore(log2Exact(v.getDimension()));
+		ret.setFrom(v);
+		return ret;
+	}
+
+	private static int log2Exact(int n) {
+		if (n < 2 || Integer.bitCount(n) != 1)
+			throw new IllegalArgumentException("dimension "+n+" is not a power of 2 >= 2");
+		return Integer.numberOfTrailingZeros(n);
+	}
+
+}
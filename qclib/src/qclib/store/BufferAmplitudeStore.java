@@ -0,0 +1,321 @@
+package qclib.store;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import qclib.util.Parallel;
+import qclib.util.QuantumUtil;
+
+/**
+ * Dense store keeping the amplitudes in ByteBuffers outside the Java heap.
+ * The layout is the one of ChunkedAmplitudeStore: 2^(numbits-chunkbits) chunks of 2^chunkbits
+ *   interleaved amplitudes, each chunk a buffer in native byte order viewed as a DoubleBuffer
+ *   (a single buffer holds at most 2^31 bytes).
+ * Subclasses provide the buffers (setMemory) and release them (release).
+ *
+ * Every kernel walks the chunks in increasing order and each chunk from its start to its end,
+ *   so a buffer that is paged in from a file is read sequentially.
+ * The store must not be used after close().
+ */
+public abstract class BufferAmplitudeStore extends AmplitudeStore {
+	/** Default number of qubits per chunk: 2^20 amplitudes, 16 MB */
+	public static final int DEFAULT_CHUNK_BITS = 20;
+	/** Most qubits per chunk: 2^26 amplitudes are 1 GB, the largest power of 2 a buffer can hold */
+	public static final int MAX_CHUNK_BITS = 26;
+
+	private final int chunkbits;
+	private final int chunkmask;
+	/** The memory of each chunk, kept to release it in close() */
+	private ByteBuffer[] memory;
+	/** Double views of memory; null once closed */
+	private DoubleBuffer[] chunks;
+
+	/**
+	 * @param chunkbits number of qubits per chunk, at most MAX_CHUNK_BITS and numbits, and at least numbits-30
+	 */
+	protected BufferAmplitudeStore(int numbits, int chunkbits) {
+		super(numbits);
+		if (chunkbits < 1 || chunkbits > numbits || chunkbits > MAX_CHUNK_BITS || numbits - chunkbits > 30)
+			throw new IllegalArgumentException("bad chunk size of "+chunkbits+" qubits for "+numbits+" qubits");
+		this.chunkbits = chunkbits;
+		this.chunkmask = (1<<chunkbits)-1;
+	}
+
+	/** Chunk size used by the constructors that do not take one. */
+	protected static int defaultChunkbits(int numbits) {
+		return Math.min(numbits, DEFAULT_CHUNK_BITS);
+	}
+
+	/** Number of bytes of a chunk: 16 per amplitude */
+	protected final int chunkBytes() { return 16<<chunkbits; }
+
+	/** Number of chunks */
+	protected final int numChunks() { return 1<<(getNumbits()-chunkbits); }
+
+	/** Hands over the chunkBytes() bytes of each of the numChunks() chunks, zeroed; called once by the subclass constructor. */
+	protected final void setMemory(ByteBuffer[] memory) {
+		if (memory.length != numChunks())
+			throw new IllegalArgumentException("need "+numChunks()+" chunks, got "+memory.length);
+		this.memory = memory;
+		chunks = new DoubleBuffer[memory.length];
+		for (int k=0; k < memory.length; k++)
+			chunks[k] = memory[k].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	/** Frees, unmaps or otherwise disposes of the buffers given to setMemory. */
+	protected abstract void release(ByteBuffer[] memory);
+
+	public int getChunkbits() { return chunkbits; }
+
+	public boolean isClosed() { return chunks == null; }
+
+	protected final void checkOpen() {
+		if (chunks == null)
+			throw new IllegalStateException("store is closed");
+	}
+
+	/** Releases the buffers.  Calling it again has no effect. */
+	@Override
+	public void close() {
+		if (chunks == null)
+			return;
+		chunks = null;
+		ByteBuffer[] m = memory;
+		memory = null;
+		release(m);
+	}
+
+	/** sun.misc.Unsafe.theUnsafe and its invokeCleaner(ByteBuffer) (Java 9 and later); null if missing */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+		} catch (Exception e) {
+			// Java 8 and older: free uses the buffer's own cleaner
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	/** Set once free has warned that it cannot free buffers on this JVM */
+	private static volatile boolean warned;
+
+	/**
+	 * Frees a direct or mapped buffer right away: through Unsafe.invokeCleaner on Java 9 and later,
+	 *   through the buffer's cleaner on Java 7 and 8.
+	 * Where neither is allowed, warns once on System.err; the buffer is then freed when collected.
+	 * @return true if the buffer was freed
+	 */
+	protected static boolean free(ByteBuffer b) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, b);
+				return true;
+			}
+			Method cleaner = b.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Object c = cleaner.invoke(b);
+			if (c != null) {
+				c.getClass().getMethod("clean").invoke(c);
+				return true;
+			}
+		} catch (Exception e) {
+			if (!warned) {
+				warned = true;
+				System.err.println("Warning: cannot free direct buffers on this JVM; they are freed when collected ("+e+")");
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public double getReal(long idx) {
+		return chunks[(int)(idx >>> chunkbits)].get(2*((int)idx & chunkmask));
+	}
+
+	@Override
+	public double getImaginary(long idx) {
+		return chunks[(int)(idx >>> chunkbits)].get(2*((int)idx & chunkmask)+1);
+	}
+
+	@Override
+	public void set(long idx, double re, double im) {
+		DoubleBuffer c = chunks[(int)(idx >>> chunkbits)];
+		c.put(2*((int)idx & chunkmask), re);
+		c.put(2*((int)idx & chunkmask)+1, im);
+	}
+
+	@Override
+	public AmplitudeStore copy() {
+		checkOpen();
+		BufferAmplitudeStore ret = (BufferAmplitudeStore)newEmpty();
+		for (int k=0; k < chunks.length; k++) {
+			ByteBuffer src = memory[k].duplicate(), dst = ret.memory[k].duplicate();
+			src.clear();
+			dst.clear();
+			dst.put(src);
+		}
+		return ret;
+	}
+
+	@Override
+	public void fill(double re, double im) {
+		checkOpen();
+		for (DoubleBuffer c : chunks)
+			for (int p=0; p < 2<<chunkbits; p+=2) {
+				c.put(p, re);
+				c.put(p+1, im);
+			}
+	}
+
+	/// ------------
+	/// Gate kernels
+	/// Bits below chunkbits are within a chunk; the rest select the chunk.
+	/// A 1-qubit gate or bit flip works on pairs of amplitudes at offsets p0 and p1
+	///   of chunks b0 and b1, which are the same chunk unless a high bit is involved.
+	/// A dense matrix works on blocks spread over the chunks that differ only at its high bits.
+	/// Other kernels use the element accessors.
+	/// ------------
+
+	/** True if the high bits of chunk k have every high bit of mask set. */
+	private boolean controlled(int k, long controlmask) {
+		long high = controlmask & ~(long)chunkmask;
+		return ((long)k << chunkbits & high) == high;
+	}
+
+	@Override
+	public void applySingleQubit(final int target, final double[] m, long controlmask) {
+		checkTarget(target, controlmask);
+		checkOpen();
+		final int lowcontrol = (int)controlmask & chunkmask;
+		if (target < chunkbits) {
+			for (int k=0; k < chunks.length; k++)
+				if (controlled(k, controlmask))
+					pairs(chunks[k], chunks[k], 1<<target, lowcontrol, m);
+			return;
+		}
+		final int hbit = 1<<(target - chunkbits);
+		for (int k=0; k < chunks.length; k++)
+			if ((k & hbit) == 0 && controlled(k, controlmask))
+				pairs(chunks[k], chunks[k | hbit], 0, lowcontrol, m);
+	}
+
+	/** The 1-qubit gate m on amplitude p0 of b0 and p0 + tbit of b1, for each p0 with lowcontrol set and tbit clear. */
+	private void pairs(final DoubleBuffer b0, final DoubleBuffer b1, final int tbit, final int lowcontrol, final double[] m) {
+		final int free = chunkmask & ~tbit & ~lowcontrol;
+		Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				int sub = QuantumUtil.depositMask(from, free);
+				for (int c=from; c < to; c++) {
+					int p0 = 2*(sub | lowcontrol), p1 = p0 + 2*tbit;
+					double r0 = b0.get(p0), a0 = b0.get(p0+1), r1 = b1.get(p1), a1 = b1.get(p1+1);
+					b0.put(p0,   m[0]*r0 - m[1]*a0 + m[2]*r1 - m[3]*a1);
+					b0.put(p0+1, m[0]*a0 + m[1]*r0 + m[2]*a1 + m[3]*r1);
+					b1.put(p1,   m[4]*r0 - m[5]*a0 + m[6]*r1 - m[7]*a1);
+					b1.put(p1+1, m[4]*a0 + m[5]*r0 + m[6]*a1 + m[7]*r1);
+					sub = (sub - free) & free;
+				}
+			}
+		});
+	}
+
+	@Override
+	public void applyMatrix(final int[] targetbits, final double[] matrix, long controlmask) {
+		final long tmask = checkTargets(targetbits, controlmask);
+		checkOpen();
+		final int dim = 1<<targetbits.length;
+		if (matrix.length != 2*dim*dim)
+			throw new IllegalArgumentException("need a "+dim+"x"+dim+" matrix, got "+matrix.length+" coefficients");
+		// local index l is at offset poff[l] of chunk k | koff[l], for the chunk k of the block's base
+		final int[] koff = new int[dim], poff = new int[dim];
+		for (int l=0; l < dim; l++) {
+			long o = QuantumUtil.depositBitsLong(l, targetbits);
+			koff[l] = (int)(o >>> chunkbits);
+			poff[l] = (int)o & chunkmask;
+		}
+		final int highmask = (int)(tmask >>> chunkbits), lowcontrol = (int)controlmask & chunkmask;
+		final int free = chunkmask & ~(int)tmask & ~lowcontrol;
+		for (int k=0; k < chunks.length; k++) {
+			if ((k & highmask) != 0 || !controlled(k, controlmask))
+				continue;
+			final DoubleBuffer[] c = new DoubleBuffer[dim];
+			for (int l=0; l < dim; l++)
+				c[l] = chunks[k | koff[l]];
+			Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					final double[] in = new double[2*dim];
+					int sub = QuantumUtil.depositMask(from, free);
+					for (int b=from; b < to; b++) {
+						int base = sub | lowcontrol;
+						for (int l=0; l < dim; l++) {
+							int p = 2*(base | poff[l]);
+							in[2*l] = c[l].get(p);
+							in[2*l+1] = c[l].get(p+1);
+						}
+						for (int r=0; r < dim; r++) {
+							double re = 0, im = 0;
+							for (int j=0, m=2*r*dim; j < 2*dim; j+=2, m+=2) {
+								re += matrix[m]*in[j] - matrix[m+1]*in[j+1];
+								im += matrix[m]*in[j+1] + matrix[m+1]*in[j];
+							}
+							int p = 2*(base | poff[r]);
+							c[r].put(p, re);
+							c[r].put(p+1, im);
+						}
+						sub = (sub - free) & free;
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void applyXor(long flipmask, long controlmask) {
+		checkXor(flipmask, controlmask);
+		checkOpen();
+		if (flipmask == 0)
+			return;
+		final int lowflip = (int)flipmask & chunkmask, lowcontrol = (int)controlmask & chunkmask;
+		final int highflip = (int)(flipmask >>> chunkbits);
+		for (int k=0; k < chunks.length; k++) {
+			int k1 = k ^ highflip;
+			if (k1 < k || !controlled(k, controlmask))
+				continue;
+			// within a chunk, visit each pair once, from the member with the highest flipped bit clear
+			int skip = highflip == 0 ? Integer.highestOneBit(lowflip) : 0;
+			swaps(chunks[k], chunks[k1], chunkmask & ~lowcontrol & ~skip, lowcontrol, lowflip);
+		}
+	}
+
+	/** Swaps amplitude i of b0 with i ^ lowflip of b1, for each i = (subset of free) | lowcontrol. */
+	private void swaps(final DoubleBuffer b0, final DoubleBuffer b1, final int free, final int lowcontrol, final int lowflip) {
+		Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				int sub = QuantumUtil.depositMask(from, free);
+				for (int c=from; c < to; c++) {
+					int p0 = 2*(sub | lowcontrol), p1 = 2*((sub | lowcontrol) ^ lowflip);
+					double r = b0.get(p0), a = b0.get(p0+1);
+					b0.put(p0, b1.get(p1));
+					b0.put(p0+1, b1.get(p1+1));
+					b1.put(p1, r);
+					b1.put(p1+1, a);
+					sub = (sub - free) & free;
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,378 @@
+package qclib.store;
+
+import qclib.util.Parallel;
+import qclib.util.QuantumUtil;
+
+/**
+ * Dense store for containers too large for a single double[] (more than DoubleAmplitudeStore.MAX_BITS qubits).
+ * The amplitudes are split into 2^(numbits-chunkbits) chunks of 2^chunkbits amplitudes,
+ *   each interleaved like DoubleAmplitudeStore: amplitude idx lives in chunk idx >>> chunkbits
+ *   at [2*(idx & chunkmask)] and [2*(idx & chunkmask)+1].
+ * A chunk is only allocated once a non-zero amplitude is written to it;
+ *   a missing chunk reads as zeros and the kernels skip it.
+ *
+ * Index bits below chunkbits are "low" (inside a chunk) and the rest are "high" (which chunk).
+ * Kernels on low bits run chunk by chunk through DoubleAmplitudeStore's kernels;
+ *   a 1-qubit gate, bit flip or dense matrix on high bits combines the chunks involved element by element.
+ */
+public class ChunkedAmplitudeStore extends AmplitudeStore {
+	/** Default number of qubits per chunk: 2^20 amplitudes, 16 MB */
+	public static final int DEFAULT_CHUNK_BITS = 20;
+	/** Most qubits this store can hold */
+	public static final int MAX_BITS = DoubleAmplitudeStore.MAX_BITS + 30;
+
+	private final int chunkbits;
+	private final int chunkmask;
+	/** null for a chunk that is all zero */
+	private final double[][] chunks;
+
+	/** Initially all zero, with chunks of DEFAULT_CHUNK_BITS qubits (fewer for a small store). */
+	public ChunkedAmplitudeStore(int numbits) {
+		this(numbits, Math.min(numbits, DEFAULT_CHUNK_BITS));
+	}
+
+	/**
+	 * Initially all zero.
+	 * @param chunkbits number of qubits per chunk, at most DoubleAmplitudeStore.MAX_BITS and numbits,
+	 *   and at least numbits-30
+	 */
+	public ChunkedAmplitudeStore(int numbits, int chunkbits) {
+		super(numbits);
+		if (chunkbits < 1 || chunkbits > numbits || chunkbits > DoubleAmplitudeStore.MAX_BITS || numbits - chunkbits > 30)
+			throw new IllegalArgumentException("bad chunk size of "+chunkbits+" qubits for "+numbits+" qubits");
+		this.chunkbits = chunkbits;
+		this.chunkmask = (1<<chunkbits)-1;
+		this.chunks = new double[1<<(numbits-chunkbits)][];
+	}
+
+	public int getChunkbits() { return chunkbits; }
+
+	/** Number of chunks that are allocated, ie. that may hold a non-zero amplitude. */
+	public int getAllocatedChunks() {
+		int n = 0;
+		for (double[] c : chunks)
+			if (c != null)
+				n++;
+		return n;
+	}
+
+	@Override
+	public double getReal(long idx) {
+		double[] c = chunks[(int)(idx >>> chunkbits)];
+		return c == null ? 0 : c[2*((int)idx & chunkmask)];
+	}
+
+	@Override
+	public double getImaginary(long idx) {
+		double[] c = chunks[(int)(idx >>> chunkbits)];
+		return c == null ? 0 : c[2*((int)idx & chunkmask)+1];
+	}
+
+	@Override
+	public void set(long idx, double re, double im) {
+		int k = (int)(idx >>> chunkbits);
+		double[] c = chunks[k];
+		if (c == null) {
+			if (re == 0 && im == 0)
+				return;
+			c = chunk(k);
+		}
+		c[2*((int)idx & chunkmask)] = re;
+		c[2*((int)idx & chunkmask)+1] = im;
+	}
+
+	/** Chunk k, allocated if need be. */
+	private double[] chunk(int k) {
+		if (chunks[k] == null)
+			chunks[k] = new double[2<<chunkbits];
+		return chunks[k];
+	}
+
+	/** A DoubleAmplitudeStore over chunk k, allocated if need be. */
+	private DoubleAmplitudeStore view(int k) {
+		return new DoubleAmplitudeStore(chunkbits, chunk(k));
+	}
+
+	/** True if chunk k is allocated and its high index bits have every high bit of mask set to value. */
+	private boolean visit(int k, long mask, long value) {
+		return chunks[k] != null && (((long)k << chunkbits) & mask & ~(long)chunkmask) == (value & ~(long)chunkmask);
+	}
+
+	@Override
+	public AmplitudeStore newEmpty() {
+		return new ChunkedAmplitudeStore(getNumbits(), chunkbits);
+	}
+
+	@Override
+	public AmplitudeStore copy() {
+		ChunkedAmplitudeStore ret = new ChunkedAmplitudeStore(getNumbits(), chunkbits);
+		for (int k=0; k < chunks.length; k++)
+			if (chunks[k] != null)
+				ret.chunks[k] = chunks[k].clone();
+		return ret;
+	}
+
+	@Override
+	public void fill(double re, double im) {
+		for (int k=0; k < chunks.length; k++)
+			if (re == 0 && im == 0)
+				chunks[k] = null;
+			else
+				view(k).fill(re, im);
+	}
+
+	@Override
+	public boolean isZero() {
+		for (int k=0; k < chunks.length; k++)
+			if (chunks[k] != null && !view(k).isZero())
+				return false;
+		return true;
+	}
+
+	/// ------------
+	/// Gate kernels
+	/// ------------
+
+	/** True if every target bit is a low bit. */
+	private boolean allLow(final int[] targetbits) {
+		for (int tb : targetbits)
+			if (tb >= chunkbits)
+				return false;
+		return true;
+	}
+
+	@Override
+	public void applySingleQubit(final int target, final double[] m, long controlmask) {
+		checkTarget(target, controlmask);
+		final int lowcontrol = (int)controlmask & chunkmask;
+		if (target < chunkbits) {
+			for (int k=0; k < chunks.length; k++)
+				if (visit(k, controlmask, controlmask))
+					view(k).applySingleQubit(target, m, lowcontrol);
+			return;
+		}
+		// pairs of chunks k0, k1 = k0 | hbit; the pair of amplitudes is at the same place in both
+		final int hbit = 1<<(target - chunkbits);
+		for (int k0=0; k0 < chunks.length; k0++) {
+			final int k1 = k0 | hbit;
+			if (k0 == k1 || (chunks[k0] == null && chunks[k1] == null))
+				continue;
+			if (((long)k0 << chunkbits & controlmask) != (controlmask & ~(long)chunkmask))
+				continue;
+			final double[] c0 = chunk(k0), c1 = chunk(k1);
+			final int free = chunkmask & ~lowcontrol;
+			Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					int sub = QuantumUtil.depositMask(from, free);
+					for (int c=from; c < to; c++) {
+						int p = 2*(sub | lowcontrol);
+						double r0 = c0[p], a0 = c0[p+1], r1 = c1[p], a1 = c1[p+1];
+						c0[p]   = m[0]*r0 - m[1]*a0 + m[2]*r1 - m[3]*a1;
+						c0[p+1] = m[0]*a0 + m[1]*r0 + m[2]*a1 + m[3]*r1;
+						c1[p]   = m[4]*r0 - m[5]*a0 + m[6]*r1 - m[7]*a1;
+						c1[p+1] = m[4]*a0 + m[5]*r0 + m[6]*a1 + m[7]*r1;
+						sub = (sub - free) & free;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Each chunk sees the diagonal restricted to its high target bits:
+	 *   a diagonal on the low target bits only, or a constant if there are none.
+	 */
+	@Override
+	public void applyDiagonal(final int[] targetbits, final double[] diag, long controlmask) {
+		checkTargets(targetbits, diag, controlmask);
+		final int lowcontrol = (int)controlmask & chunkmask;
+		int nlow = 0;
+		for (int tb : targetbits)
+			if (tb < chunkbits)
+				nlow++;
+		// lowbits[i] is the i-th low target bit; lowpos[i] its position in targetbits
+		int[] lowbits = new int[nlow], lowpos = new int[nlow];
+		for (int j=0, i=0; j < targetbits.length; j++)
+			if (targetbits[j] < chunkbits) {
+				lowbits[i] = targetbits[j];
+				lowpos[i++] = j;
+			}
+		// restricted diagonals, by the high target bits in their places in a diagonal index
+		double[][] restricted = new double[1<<targetbits.length][];
+		for (int k=0; k < chunks.length; k++) {
+			if (!visit(k, controlmask, controlmask))
+				continue;
+			int high = 0;
+			for (int j=0; j < targetbits.length; j++)
+				if (targetbits[j] >= chunkbits)
+					high |= ((k >>> (targetbits[j] - chunkbits)) & 1) << j;
+			if (restricted[high] == null) {
+				double[] d = new double[2<<nlow];
+				for (int l=0; l < 1<<nlow; l++) {
+					int full = high | QuantumUtil.depositBits(l, lowpos);
+					d[2*l] = diag[2*full];
+					d[2*l+1] = diag[2*full+1];
+				}
+				restricted[high] = d;
+			}
+			view(k).applyDiagonal(lowbits, restricted[high], lowcontrol);
+		}
+	}
+
+	/**
+	 * On low target bits, chunk by chunk.  With high target bits, each block of amplitudes is spread 
+	 *   over the chunks that differ only at those bits, at the same places in each.
+	 */
+	@Override
+	public void applyMatrix(final int[] targetbits, final double[] matrix, long controlmask) {
+		if (allLow(targetbits)) {
+			checkTargets(targetbits, controlmask);
+			for (int k=0; k < chunks.length; k++)
+				if (visit(k, controlmask, controlmask))
+					view(k).applyMatrix(targetbits, matrix, (int)controlmask & chunkmask);
+			return;
+		}
+		final long tmask = checkTargets(targetbits, controlmask);
+		final int dim = 1<<targetbits.length;
+		if (matrix.length != 2*dim*dim)
+			throw new IllegalArgumentException("need a "+dim+"x"+dim+" matrix, got "+matrix.length+" coefficients");
+		// local index l is at position poff[l] of chunk k | koff[l], for the chunk k of the block's base
+		final int[] koff = new int[dim], poff = new int[dim];
+		for (int l=0; l < dim; l++) {
+			long o = QuantumUtil.depositBitsLong(l, targetbits);
+			koff[l] = (int)(o >>> chunkbits);
+			poff[l] = (int)o & chunkmask;
+		}
+		final int highmask = (int)(tmask >>> chunkbits), lowcontrol = (int)controlmask & chunkmask;
+		final int free = chunkmask & ~(int)tmask & ~lowcontrol;
+		for (int k=0; k < chunks.length; k++) {
+			if ((k & highmask) != 0 || ((long)k << chunkbits & controlmask) != (controlmask & ~(long)chunkmask))
+				continue;
+			boolean zero = true;
+			for (int l=0; l < dim && zero; l++)
+				zero = chunks[k | koff[l]] == null;
+			if (zero)
+				continue;
+			final double[][] c = new double[dim][];
+			for (int l=0; l < dim; l++)
+				c[l] = chunk(k | koff[l]);
+			Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					final double[] in = new double[2*dim];
+					int sub = QuantumUtil.depositMask(from, free);
+					for (int b=from; b < to; b++) {
+						int base = sub | lowcontrol;
+						for (int l=0; l < dim; l++) {
+							int p = 2*(base | poff[l]);
+							in[2*l] = c[l][p];
+							in[2*l+1] = c[l][p+1];
+						}
+						for (int r=0; r < dim; r++) {
+							double re = 0, im = 0;
+							for (int j=0, m=2*r*dim; j < 2*dim; j+=2, m+=2) {
+								re += matrix[m]*in[j] - matrix[m+1]*in[j+1];
+								im += matrix[m]*in[j+1] + matrix[m+1]*in[j];
+							}
+							int p = 2*(base | poff[r]);
+							c[r][p] = re;
+							c[r][p+1] = im;
+						}
+						sub = (sub - free) & free;
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void applyPermutation(final int[] targetbits, final int[] perm, long controlmask) {
+		if (!allLow(targetbits)) {
+			super.applyPermutation(targetbits, perm, controlmask);
+			return;
+		}
+		checkTargets(targetbits, controlmask);
+		for (int k=0; k < chunks.length; k++)
+			if (visit(k, controlmask, controlmask))
+				view(k).applyPermutation(targetbits, perm, (int)controlmask & chunkmask);
+	}
+
+	@Override
+	public void applyXor(long flipmask, long controlmask) {
+		checkXor(flipmask, controlmask);
+		if (flipmask == 0)
+			return;
+		final int lowflip = (int)flipmask & chunkmask, lowcontrol = (int)controlmask & chunkmask;
+		final int highflip = (int)(flipmask >>> chunkbits);
+		if (highflip == 0) {
+			for (int k=0; k < chunks.length; k++)
+				if (visit(k, controlmask, controlmask))
+					view(k).applyXor(lowflip, lowcontrol);
+			return;
+		}
+		// swap chunk k0 with k1 = k0 ^ highflip, flipping the low bits on the way
+		for (int k0=0; k0 < chunks.length; k0++) {
+			int k1 = k0 ^ highflip;
+			if (k1 < k0 || (chunks[k0] == null && chunks[k1] == null))
+				continue;
+			if (((long)k0 << chunkbits & controlmask) != (controlmask & ~(long)chunkmask))
+				continue;
+			if (lowflip == 0 && lowcontrol == 0) {
+				double[] t = chunks[k0];
+				chunks[k0] = chunks[k1];
+				chunks[k1] = t;
+				continue;
+			}
+			final double[] c0 = chunk(k0), c1 = chunk(k1);
+			final int free = chunkmask & ~lowcontrol;
+			Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					int sub = QuantumUtil.depositMask(from, free);
+					for (int c=from; c < to; c++) {
+						int p0 = 2*(sub | lowcontrol), p1 = 2*((sub | lowcontrol) ^ lowflip);
+						double r = c0[p0], a = c0[p0+1];
+						c0[p0]   = c1[p1];
+						c0[p0+1] = c1[p1+1];
+						c1[p1]   = r;
+						c1[p1+1] = a;
+						sub = (sub - free) & free;
+					}
+				}
+			});
+		}
+	}
+
+	/// --------------------------------
+	/// Masked operations, chunk by chunk
+	/// --------------------------------
+
+	@Override
+	public double sumSquares(long mask, long value) {
+		double sum = 0.0;
+		for (int k=0; k < chunks.length; k++)
+			if (visit(k, mask, value))
+				sum += view(k).sumSquares(mask & chunkmask, value & chunkmask);
+		return sum;
+	}
+
+	@Override
+	public void scale(long mask, long value, double factor) {
+		for (int k=0; k < chunks.length; k++)
+			if (visit(k, mask, value))
+				view(k).scale(mask & chunkmask, value & chunkmask, factor);
+	}
+
+	@Override
+	public void setZero(long mask, long value) {
+		for (int k=0; k < chunks.length; k++)
+			if (visit(k, mask, value)) {
+				if ((mask & chunkmask) == 0)
+					chunks[k] = null; // the whole chunk
+				else
+					view(k).setZero(mask & chunkmask, value & chunkmask);
+			}
+	}
+
+}
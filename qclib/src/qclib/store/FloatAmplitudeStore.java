@@ -0,0 +1,163 @@
+package qclib.store;
+
+import java.util.Arrays;
+
+import qclib.util.QuantumUtil;
+
+/**
+ * Single-precision version of DoubleAmplitudeStore: the amplitudes are interleaved floats
+ * {re_0, im_0, re_1, im_1, ...}, half the memory and memory traffic of doubles.
+ * The kernels compute in double and round each result to float once, when it is stored;
+ *   the rounding still makes the norm drift by about 1e-7 per gate (see QubitRegister.setNormMonitor).
+ */
+public class FloatAmplitudeStore extends InterleavedAmplitudeStore {
+	/** Length 2*2^numbits; amplitude idx lives at [2*idx] and [2*idx+1] */
+	private final float[] data;
+
+	/** Initially all zero. */
+	public FloatAmplitudeStore(int numbits) {
+		super(numbits);
+		data = new float[2<<numbits];
+	}
+
+	/** Wraps data, of length 2*2^numbits, without copying it. */
+	FloatAmplitudeStore(int numbits, float[] data) {
+		super(numbits);
+		this.data = data;
+	}
+
+	@Override
+	protected final double load(int p) { return data[p]; }
+
+	@Override
+	protected final void store(int p, double v) { data[p] = (float)v; }
+
+	/// Inner loops of the kernels, over the array (see InterleavedAmplitudeStore)
+
+	@Override
+	protected void singleQubit(int target, final double[] m, int controlmask, int free, int from, int to) {
+		final double m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3],
+				m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+		final int stride = 2<<target; // distance between the pair in the array
+		if (controlmask == 0) {
+			for (int c=from; c < to; ) {
+				int p0 = pairStart(c, target);
+				for (int end = runEnd(c, target, to); c < end; c++, p0 += 2) {
+					int p1 = p0 + stride;
+					double r0 = data[p0], a0 = data[p0+1], r1 = data[p1], a1 = data[p1+1];
+					data[p0]   = (float)(m0*r0 - m1*a0 + m2*r1 - m3*a1);
+					data[p0+1] = (float)(m0*a0 + m1*r0 + m2*a1 + m3*r1);
+					data[p1]   = (float)(m4*r0 - m5*a0 + m6*r1 - m7*a1);
+					data[p1+1] = (float)(m4*a0 + m5*r0 + m6*a1 + m7*r1);
+				}
+			}
+			return;
+		}
+		int sub = QuantumUtil.depositMask(from, free);
+		for (int c=from; c < to; c++) {
+			int p0 = 2*(sub | controlmask), p1 = p0 + stride;
+			double r0 = data[p0], a0 = data[p0+1], r1 = data[p1], a1 = data[p1+1];
+			data[p0]   = (float)(m0*r0 - m1*a0 + m2*r1 - m3*a1);
+			data[p0+1] = (float)(m0*a0 + m1*r0 + m2*a1 + m3*r1);
+			data[p1]   = (float)(m4*r0 - m5*a0 + m6*r1 - m7*a1);
+			data[p1+1] = (float)(m4*a0 + m5*r0 + m6*a1 + m7*r1);
+			sub = (sub - free) & free;
+		}
+	}
+
+	@Override
+	protected void diagonal(final int[] targetbits, final double[] diag, int controlmask, int free, int from, int to) {
+		int sub = QuantumUtil.depositMask(from, free);
+		for (int c=from; c < to; c++) {
+			int idx = sub | controlmask;
+			int l = QuantumUtil.extractBits(idx, targetbits);
+			double dr = diag[2*l], di = diag[2*l+1];
+			if (dr != 1 || di != 0) {
+				double re = data[2*idx], im = data[2*idx+1];
+				data[2*idx]   = (float)(re*dr - im*di);
+				data[2*idx+1] = (float)(re*di + im*dr);
+			}
+			sub = (sub - free) & free;
+		}
+	}
+
+	@Override
+	protected void matrix(final int[] offsets, final double[] matrix, int controlmask, int free, final double[] in, int from, int to) {
+		final int dim = offsets.length;
+		int sub = QuantumUtil.depositMask(from, free);
+		for (int b=from; b < to; b++) {
+			int base = sub | controlmask;
+			for (int l=0; l < dim; l++) {
+				int p = 2*(base | offsets[l]);
+				in[2*l] = data[p];
+				in[2*l+1] = data[p+1];
+			}
+			for (int r=0; r < dim; r++) {
+				double re = 0, im = 0;
+				for (int c=0, m=2*r*dim; c < 2*dim; c+=2, m+=2) {
+					re += matrix[m]*in[c] - matrix[m+1]*in[c+1];
+					im += matrix[m]*in[c+1] + matrix[m+1]*in[c];
+				}
+				int p = 2*(base | offsets[r]);
+				data[p] = (float)re;
+				data[p+1] = (float)im;
+			}
+			sub = (sub - free) & free;
+		}
+	}
+
+	@Override
+	protected void xor(int flipmask, int controlmask, int free, int from, int to) {
+		int sub = QuantumUtil.depositMask(from, free);
+		for (int c=from; c < to; c++) {
+			int p0 = 2*(sub | controlmask), p1 = 2*((sub | controlmask) ^ flipmask);
+			float r = data[p0], a = data[p0+1];
+			data[p0]   = data[p1];
+			data[p0+1] = data[p1+1];
+			data[p1]   = r;
+			data[p1+1] = a;
+			sub = (sub - free) & free;
+		}
+	}
+
+	@Override
+	protected void cycles(final int[] cycles, int controlmask, int free, int from, int to) {
+		int sub = QuantumUtil.depositMask(from, free);
+		for (int b=from; b < to; b++) {
+			int base = sub | controlmask;
+			for (int c=0; c < cycles.length; c += cycles[c]+1) {
+				int m = cycles[c];
+				int last = 2*(base | cycles[c+m]);
+				float re = data[last], im = data[last+1];
+				for (int i=c+m; i > c+1; i--) {
+					int pto = 2*(base | cycles[i]), pfrom = 2*(base | cycles[i-1]);
+					data[pto] = data[pfrom];
+					data[pto+1] = data[pfrom+1];
+				}
+				int first = 2*(base | cycles[c+1]);
+				data[first] = re;
+				data[first+1] = im;
+			}
+			sub = (sub - free) & free;
+		}
+	}
+
+	@Override
+	public AmplitudeStore newEmpty() {
+		return new FloatAmplitudeStore(getNumbits());
+	}
+
+	@Override
+	public AmplitudeStore copy() {
+		return new FloatAmplitudeStore(getNumbits(), data.clone());
+	}
+
+	@Override
+	public void fill(double re, double im) {
+		if (re == 0 && im == 0)
+			Arrays.fill(data, 0f);
+		else
+			super.fill(re, im);
+	}
+
+}
@@ -0,0 +1,258 @@
+package qclib.store;
+
+import qclib.util.IndexIterator;
+import qclib.util.Parallel;
+import qclib.util.QuantumUtil;
+
+/**
+ * Dense store holding the amplitudes interleaved in a single primitive array:
+ * {re_0, im_0, re_1, im_1, ...}.  No object per amplitude.
+ * Subclasses own the array.  The public kernels here check the arguments, work out the index masks
+ *   and split the work across threads; each subclass runs the inner loops over its own array
+ *   (the abstract range methods below), which compute in double and store each result once.
+ * load and store serve the per-amplitude accessors and the less frequent whole-array operations.
+ */
+public abstract class InterleavedAmplitudeStore extends AmplitudeStore {
+	/** Most qubits a single array can hold; use a ChunkedAmplitudeStore beyond that */
+	public static final int MAX_BITS = 29;
+
+	protected InterleavedAmplitudeStore(int numbits) {
+		super(numbits);
+		if (numbits > MAX_BITS)
+			throw new IllegalArgumentException("a single array holds at most "+MAX_BITS+" qubits; asked for "+numbits);
+	}
+
+	/** Element p of the array: the real part of amplitude p/2 if p is even, its imaginary part if odd */
+	protected abstract double load(int p);
+
+	/** Sets element p of the array to v, rounded to the element type */
+	protected abstract void store(int p, double v);
+
+	@Override
+	public double getReal(long idx) { return load(2*(int)idx); }
+
+	@Override
+	public double getImaginary(long idx) { return load(2*(int)idx+1); }
+
+	@Override
+	public void set(long idx, double re, double im) {
+		store(2*(int)idx, re);
+		store(2*(int)idx+1, im);
+	}
+
+	@Override
+	public double normSquared(long idx) {
+		double re = load(2*(int)idx), im = load(2*(int)idx+1);
+		return re*re + im*im;
+	}
+
+	@Override
+	public void fill(double re, double im) {
+		for (int i=0, n=2*(int)size(); i < n; i+=2) {
+			store(i, re);
+			store(i+1, im);
+		}
+	}
+
+	@Override
+	public boolean isZero() {
+		for (int i=0, n=2*(int)size(); i < n; i++)
+			if (load(i) != 0)
+				return false;
+		return true;
+	}
+
+	/// The kernels below loop over a counter c in [0, 2^(number of free bits)),
+	///   each c naming one independent pair / amplitude / block (see QuantumUtil.depositMask),
+	///   so Parallel can split the range across threads.
+	/// An array holds at most MAX_BITS qubits, so indices and masks are narrowed to int once checked.
+
+	@Override
+	public void applySingleQubit(final int target, final double[] m, long longcontrolmask) {
+		checkTarget(target, longcontrolmask);
+		final int controlmask = (int)longcontrolmask;
+		final int count = (int)size() >>> (1 + Integer.bitCount(controlmask));
+		final int free = ((int)size()-1) & ~(1<<target) & ~controlmask;
+		if (!Parallel.isParallel(count)) {
+			singleQubit(target, m, controlmask, free, 0, count);
+			return;
+		}
+		Parallel.forRange(count, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				singleQubit(target, m, controlmask, free, from, to);
+			}
+		});
+	}
+
+	/**
+	 * applySingleQubit on the pairs (i, i | 2^target) numbered from to to.
+	 * With no controls, pair c is c with a 0 inserted at bit target (see pairStart and runEnd);
+	 *   otherwise i is the c-th subset of free, which excludes the target and control bits, or'ed with controlmask.
+	 */
+	protected abstract void singleQubit(int target, double[] m, int controlmask, int free, int from, int to);
+
+	/** Array position of the real part of the first member of uncontrolled pair c: c with a 0 inserted at bit target, times 2 */
+	protected static int pairStart(int c, int target) {
+		return 2*(((c >>> target) << (target+1)) | (c & ((1<<target)-1)));
+	}
+
+	/** End of the run of pairs from c on whose first members are contiguous (at most to) */
+	protected static int runEnd(int c, int target, int to) {
+		return Math.min(to, (c | ((1<<target)-1)) + 1);
+	}
+
+	@Override
+	public void applyDiagonal(final int[] targetbits, final double[] diag, long longcontrolmask) {
+		checkTargets(targetbits, diag, longcontrolmask);
+		final int controlmask = (int)longcontrolmask;
+		final int count = (int)size() >>> Integer.bitCount(controlmask);
+		final int free = ((int)size()-1) & ~controlmask;
+		if (!Parallel.isParallel(count)) {
+			diagonal(targetbits, diag, controlmask, free, 0, count);
+			return;
+		}
+		Parallel.forRange(count, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				diagonal(targetbits, diag, controlmask, free, from, to);
+			}
+		});
+	}
+
+	/** applyDiagonal on the amplitudes numbered from to to: the c-th subset of free or'ed with controlmask */
+	protected abstract void diagonal(int[] targetbits, double[] diag, int controlmask, int free, int from, int to);
+
+	@Override
+	public void applyMatrix(final int[] targetbits, final double[] matrix, long longcontrolmask) {
+		final int tmask = (int)checkTargets(targetbits, longcontrolmask);
+		final int controlmask = (int)longcontrolmask;
+		final int dim = 1<<targetbits.length;
+		if (matrix.length != 2*dim*dim)
+			throw new IllegalArgumentException("need a "+dim+"x"+dim+" matrix, got "+matrix.length+" coefficients");
+		final int[] offsets = intOffsets(targetbits);
+		final int free = ((int)size()-1) & ~tmask & ~controlmask;
+		Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				matrix(offsets, matrix, controlmask, free, new double[2*dim], from, to);
+			}
+		});
+	}
+
+	/**
+	 * applyMatrix on the blocks numbered from to to: block b is base | offsets[l] for each l,
+	 *   where base is the b-th subset of free or'ed with controlmask.
+	 * @param in scratch for the 2*offsets.length parts of the input amplitudes of a block
+	 */
+	protected abstract void matrix(int[] offsets, double[] matrix, int controlmask, int free, double[] in, int from, int to);
+
+	@Override
+	public void applyXor(long longflipmask, long longcontrolmask) {
+		checkXor(longflipmask, longcontrolmask);
+		if (longflipmask == 0)
+			return;
+		final int flipmask = (int)longflipmask, controlmask = (int)longcontrolmask;
+		final int count = (int)size() >>> (1 + Integer.bitCount(controlmask));
+		// visit each pair once, from the member with the highest flipped bit clear
+		final int free = ((int)size()-1) & ~controlmask & ~Integer.highestOneBit(flipmask);
+		if (!Parallel.isParallel(count)) {
+			xor(flipmask, controlmask, free, 0, count);
+			return;
+		}
+		Parallel.forRange(count, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				xor(flipmask, controlmask, free, from, to);
+			}
+		});
+	}
+
+	/**
+	 * applyXor on the pairs numbered from to to: pair c is (i, i ^ flipmask) with i the c-th subset of free,
+	 *   which excludes the control bits and the highest bit of flipmask, or'ed with controlmask.
+	 */
+	protected abstract void xor(int flipmask, int controlmask, int free, int from, int to);
+
+	@Override
+	protected void applyCycles(final long[] longcycles, long tmask, long longcontrolmask) {
+		final int[] cycles = new int[longcycles.length];
+		for (int i=0; i < cycles.length; i++)
+			cycles[i] = (int)longcycles[i];
+		final int controlmask = (int)longcontrolmask;
+		final int free = ((int)size()-1) & ~(int)tmask & ~controlmask;
+		Parallel.forRange(1 << Integer.bitCount(free), new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				cycles(cycles, controlmask, free, from, to);
+			}
+		});
+	}
+
+	/**
+	 * applyCycles on the blocks numbered from to to, with base the b-th subset of free or'ed with controlmask.
+	 * @param cycles as for applyCycles, narrowed to int
+	 */
+	protected abstract void cycles(int[] cycles, int controlmask, int free, int from, int to);
+
+	/** offsets(targetbits) narrowed to int */
+	private static int[] intOffsets(final int[] targetbits) {
+		int[] ret = new int[1<<targetbits.length];
+		for (int l=0; l < ret.length; l++)
+			ret[l] = QuantumUtil.depositBits(l, targetbits);
+		return ret;
+	}
+
+	@Override
+	public void gather(final IndexIterator it, double[] buf) {
+		it.rewindBlock();
+		for (int i=0, n=(int)it.blockSize(); i < n; i++) {
+			int idx = (int)it.next();
+			buf[2*i]   = load(2*idx);
+			buf[2*i+1] = load(2*idx+1);
+		}
+	}
+
+	@Override
+	public void scatter(final IndexIterator it, final double[] buf) {
+		it.rewindBlock();
+		for (int i=0, n=(int)it.blockSize(); i < n; i++) {
+			int idx = (int)it.next();
+			store(2*idx,   buf[2*i]);
+			store(2*idx+1, buf[2*i+1]);
+		}
+	}
+
+	@Override
+	public double sumSquares(long longmask, long longvalue) {
+		final int mask = (int)longmask, value = (int)longvalue;
+		double sum = 0.0;
+		for (int i=0; i < size(); i++)
+			if ((i & mask) == value) {
+				double re = load(2*i), im = load(2*i+1);
+				sum += re*re + im*im;
+			}
+		return sum;
+	}
+
+	@Override
+	public void scale(long longmask, long longvalue, double factor) {
+		final int mask = (int)longmask, value = (int)longvalue;
+		for (int i=0; i < size(); i++)
+			if ((i & mask) == value) {
+				store(2*i, load(2*i)*factor);
+				store(2*i+1, load(2*i+1)*factor);
+			}
+	}
+
+	@Override
+	public void setZero(long longmask, long longvalue) {
+		final int mask = (int)longmask, value = (int)longvalue;
+		for (int i=0; i < size(); i++)
+			if ((i & mask) == value) {
+				store(2*i, 0);
+				store(2*i+1, 0);
+			}
+	}
+
+}
@@ -0,0 +1,92 @@
+package qclib.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dense store for states larger than RAM: the amplitudes live in a scratch file,
+ *   mapped into memory one chunk at a time, and the operating system pages them in and out.
+ * The file is created empty (a sparse file on most file systems, reading as zeros)
+ *   in a scratch directory (java.io.tmpdir unless given); close() unmaps it and deletes it (or, failing that, it is deleted when the JVM exits).
+ * Close every store: the file of a store that is never closed stays behind.
+ * The kernels sweep each chunk from start to end (see BufferAmplitudeStore), so paging is sequential.
+ */
+public class MappedAmplitudeStore extends BufferAmplitudeStore {
+	private final File dir;
+	private File file;
+	private RandomAccessFile raf;
+
+	/** Initially all zero, with chunks of DEFAULT_CHUNK_BITS qubits (fewer for a small store), in java.io.tmpdir. */
+	public MappedAmplitudeStore(int numbits) {
+		this(numbits, defaultChunkbits(numbits));
+	}
+
+	/** Initially all zero, in java.io.tmpdir. */
+	public MappedAmplitudeStore(int numbits, int chunkbits) {
+		this(numbits, chunkbits, null);
+	}
+
+	/**
+	 * Initially all zero.
+	 * @param chunkbits number of qubits per chunk, at most MAX_CHUNK_BITS and numbits, and at least numbits-30
+	 * @param dir where to put the file; null for java.io.tmpdir
+	 * @throws IllegalStateException if the file cannot be created or mapped
+	 */
+	public MappedAmplitudeStore(int numbits, int chunkbits, File dir) {
+		super(numbits, chunkbits);
+		this.dir = dir;
+		ByteBuffer[] memory = new ByteBuffer[numChunks()];
+		try {
+			file = File.createTempFile("qclib", ".amps", dir);
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength((long)numChunks() * chunkBytes());
+			FileChannel ch = raf.getChannel();
+			for (int k=0; k < memory.length; k++)
+				memory[k] = ch.map(FileChannel.MapMode.READ_WRITE, (long)k * chunkBytes(), chunkBytes());
+		} catch (IOException e) {
+			for (ByteBuffer b : memory)
+				if (b != null)
+					free(b);
+			closeFile();
+			throw new IllegalStateException("could not map "+numbits+" qubits to a file in "+dir, e);
+		}
+		setMemory(memory);
+	}
+
+	/** The file holding the amplitudes; null once closed. */
+	public File getFile() { return file; }
+
+	@Override
+	public AmplitudeStore newEmpty() {
+		return new MappedAmplitudeStore(getNumbits(), getChunkbits(), dir);
+	}
+
+	/** Unmaps the chunks, then closes and deletes the file. */
+	@Override
+	protected void release(ByteBuffer[] memory) {
+		for (ByteBuffer b : memory)
+			free(b);
+		closeFile();
+	}
+
+	/** Closes and deletes the file; if it cannot be deleted (ex. a chunk is still mapped on Windows), warns and leaves it to deleteOnExit. */
+	private void closeFile() {
+		try {
+			if (raf != null)
+				raf.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		if (file != null && !file.delete() && file.exists()) {
+			// registered only now: the JVM keeps every path given to deleteOnExit until it exits
+			file.deleteOnExit();
+			System.err.println("Warning: could not delete "+file+"; it is deleted when the JVM exits");
+		}
+		raf = null;
+		file = null;
+	}
+
+}
@@ -0,0 +1,44 @@
+package qclib.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dense store keeping the amplitudes in direct buffers outside the Java heap,
+ *   so that a large state does not weigh on the garbage collector or on -Xmx.
+ * Every chunk is allocated, zeroed, by the constructor.
+ *
+ * The memory is released by close(), or else when the store is garbage collected;
+ *   use try-with-resources or close a QubitContainer / QubitRegister to free it right away.
+ */
+public class OffHeapAmplitudeStore extends BufferAmplitudeStore {
+
+	/** Initially all zero, with chunks of DEFAULT_CHUNK_BITS qubits (fewer for a small store). */
+	public OffHeapAmplitudeStore(int numbits) {
+		this(numbits, defaultChunkbits(numbits));
+	}
+
+	/**
+	 * Initially all zero.
+	 * @param chunkbits number of qubits per chunk, at most MAX_CHUNK_BITS and numbits, and at least numbits-30
+	 */
+	public OffHeapAmplitudeStore(int numbits, int chunkbits) {
+		super(numbits, chunkbits);
+		ByteBuffer[] memory = new ByteBuffer[numChunks()];
+		for (int k=0; k < memory.length; k++)
+			memory[k] = ByteBuffer.allocateDirect(chunkBytes());
+		setMemory(memory);
+	}
+
+	@Override
+	public AmplitudeStore newEmpty() {
+		return new OffHeapAmplitudeStore(getNumbits(), getChunkbits());
+	}
+
+	/** Frees the buffers right away where the JVM allows it. */
+	@Override
+	protected void release(ByteBuffer[] memory) {
+		for (ByteBuffer b : memory)
+			free(b);
+	}
+
+}
@@ -0,0 +1,325 @@
+package qclib.store;
+
+import qclib.util.QuantumUtil;
+
+/**
+ * Sparse store: only the non-zero amplitudes are kept, in a primitive open-addressing hash map
+ *   from basis state to amplitude (see AmplitudeMap), so memory and gate time grow with
+ *   the number of non-zero amplitudes rather than with 2^numbits.
+ * The kernels only visit the stored basis states.  A gate that can spread amplitude
+ *   (1-qubit, dense) builds its result in a second map by accumulation and then drops
+ *   the entries whose magnitude fell to the prune threshold (QuantumUtil.EPSILON by default) or below.
+ * Writing an exact zero with set removes the entry; other values are kept as given.
+ */
+public class SparseAmplitudeStore extends AmplitudeStore {
+	private AmplitudeMap map;
+	/** Result of the last accumulating kernel, kept to reuse its arrays; empty between kernels */
+	private AmplitudeMap spare;
+	/** Entries with |amp| at most this are dropped after a gate */
+	private double pruneThreshold = QuantumUtil.EPSILON;
+
+	/** Initially all zero. */
+	public SparseAmplitudeStore(int numbits) {
+		super(numbits);
+		if (numbits > 62)
+			throw new IllegalArgumentException("at most 62 qubits; asked for "+numbits);
+		map = new AmplitudeMap(16);
+	}
+
+	private SparseAmplitudeStore(SparseAmplitudeStore s) {
+		super(s.getNumbits());
+		map = s.map.copy();
+		pruneThreshold = s.pruneThreshold;
+	}
+
+	/** Number of non-zero amplitudes stored */
+	public int nonZeroCount() { return map.size(); }
+
+	public double getPruneThreshold() { return pruneThreshold; }
+
+	/** After a gate, amplitudes with magnitude at most threshold are dropped; 0 only drops exact zeros. */
+	public void setPruneThreshold(double threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("bad threshold: "+threshold);
+		this.pruneThreshold = threshold;
+	}
+
+	@Override
+	public double getReal(long idx) {
+		int s = map.find(idx);
+		return s < 0 ? 0 : map.reAt(s);
+	}
+
+	@Override
+	public double getImaginary(long idx) {
+		int s = map.find(idx);
+		return s < 0 ? 0 : map.imAt(s);
+	}
+
+	@Override
+	public void set(long idx, double re, double im) {
+		if (re == 0 && im == 0)
+			map.remove(idx);
+		else
+			map.put(idx, re, im);
+	}
+
+	@Override
+	public AmplitudeStore newEmpty() {
+		SparseAmplitudeStore ret = new SparseAmplitudeStore(getNumbits());
+		ret.pruneThreshold = pruneThreshold;
+		return ret;
+	}
+
+	@Override
+	public AmplitudeStore copy() {
+		return new SparseAmplitudeStore(this);
+	}
+
+	@Override
+	public double normSquared(long idx) {
+		int s = map.find(idx);
+		return s < 0 ? 0 : map.reAt(s)*map.reAt(s) + map.imAt(s)*map.imAt(s);
+	}
+
+	/** A non-zero fill stores every one of the 2^numbits amplitudes. */
+	@Override
+	public void fill(double re, double im) {
+		map.clear();
+		if (re != 0 || im != 0)
+			for (long i=0; i < size(); i++)
+				map.put(i, re, im);
+	}
+
+	@Override
+	public boolean isZero() {
+		return map.size() == 0;
+	}
+
+	@Override
+	public long countNonZero() {
+		return map.size();
+	}
+
+	@Override
+	public long[] nonZeroIndices() {
+		long[] ret = new long[map.size()];
+		for (int s=0, n=0; s < map.capacity(); s++)
+			if (map.keyAt(s) != AmplitudeMap.EMPTY)
+				ret[n++] = map.keyAt(s);
+		return ret;
+	}
+
+	@Override
+	public void copyTo(AmplitudeStore dst) {
+		if (dst.size() != size())
+			throw new IllegalArgumentException("sizes differ: "+size()+" and "+dst.size());
+		for (int s=0; s < map.capacity(); s++)
+			if (map.keyAt(s) != AmplitudeMap.EMPTY)
+				dst.set(map.keyAt(s), map.reAt(s), map.imAt(s));
+	}
+
+	/// ------------
+	/// Gate kernels
+	/// ------------
+
+	/** An empty map to accumulate a result in. */
+	private AmplitudeMap target() {
+		AmplitudeMap t = spare;
+		spare = null;
+		if (t == null)
+			return new AmplitudeMap(map.size());
+		t.clear();
+		return t;
+	}
+
+	/** Make t the state, after pruning it. */
+	private void install(AmplitudeMap t) {
+		t.prune(pruneThreshold*pruneThreshold);
+		spare = map;
+		spare.clear();
+		map = t;
+	}
+
+	@Override
+	public void applySingleQubit(int target, final double[] m, long controlmask) {
+		checkTarget(target, controlmask);
+		final long tbit = 1L<<target;
+		AmplitudeMap t = target();
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			double re = map.reAt(s), im = map.imAt(s);
+			if ((k & controlmask) != controlmask) {
+				t.add(k, re, im);
+				continue;
+			}
+			// column c of m, into rows 0 and 1
+			int c = 2*(int)((k >>> target) & 1);
+			long k0 = k & ~tbit, k1 = k | tbit;
+			if (m[c] != 0 || m[c+1] != 0)
+				t.add(k0, m[c]*re - m[c+1]*im, m[c]*im + m[c+1]*re);
+			if (m[4+c] != 0 || m[5+c] != 0)
+				t.add(k1, m[4+c]*re - m[5+c]*im, m[4+c]*im + m[5+c]*re);
+		}
+		install(t);
+	}
+
+	/** In place: only the stored amplitudes are scaled, and a diagonal never creates new ones. */
+	@Override
+	public void applyDiagonal(final int[] targetbits, final double[] diag, long controlmask) {
+		checkTargets(targetbits, diag, controlmask);
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY || (k & controlmask) != controlmask)
+				continue;
+			int l = QuantumUtil.extractBits(k, targetbits);
+			double dr = diag[2*l], di = diag[2*l+1], re = map.reAt(s), im = map.imAt(s);
+			map.setAt(s, re*dr - im*di, re*di + im*dr);
+		}
+	}
+
+	@Override
+	public void applyMatrix(final int[] targetbits, final double[] matrix, long controlmask) {
+		final long tmask = checkTargets(targetbits, controlmask);
+		final int dim = 1<<targetbits.length;
+		if (matrix.length != 2*dim*dim)
+			throw new IllegalArgumentException("need a "+dim+"x"+dim+" matrix, got "+matrix.length+" coefficients");
+		final long[] offsets = offsets(targetbits);
+		AmplitudeMap t = target();
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			double re = map.reAt(s), im = map.imAt(s);
+			if ((k & controlmask) != controlmask) {
+				t.add(k, re, im);
+				continue;
+			}
+			// column l of the matrix, into every row
+			int l = QuantumUtil.extractBits(k, targetbits);
+			long base = k & ~tmask;
+			for (int r=0, e=2*l; r < dim; r++, e += 2*dim)
+				if (matrix[e] != 0 || matrix[e+1] != 0)
+					t.add(base | offsets[r], matrix[e]*re - matrix[e+1]*im, matrix[e]*im + matrix[e+1]*re);
+		}
+		install(t);
+	}
+
+	/** Moves each stored amplitude to its new basis state; nothing to prune. */
+	@Override
+	public void applyPermutation(final int[] targetbits, final int[] perm, long controlmask) {
+		final long tmask = checkTargets(targetbits, controlmask);
+		if (perm.length != 1<<targetbits.length)
+			throw new IllegalArgumentException("need "+(1<<targetbits.length)+" entries in the permutation, got "+perm.length);
+		final long[] offsets = offsets(targetbits);
+		AmplitudeMap t = target();
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			if ((k & controlmask) == controlmask)
+				k = (k & ~tmask) | offsets[perm[QuantumUtil.extractBits(k, targetbits)]];
+			t.put(k, map.reAt(s), map.imAt(s));
+		}
+		spare = map;
+		spare.clear();
+		map = t;
+	}
+
+	@Override
+	public void applyXor(long flipmask, long controlmask) {
+		checkXor(flipmask, controlmask);
+		if (flipmask == 0)
+			return;
+		AmplitudeMap t = target();
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			t.put((k & controlmask) == controlmask ? k ^ flipmask : k, map.reAt(s), map.imAt(s));
+		}
+		spare = map;
+		spare.clear();
+		map = t;
+	}
+
+	/** Renumbers the stored basis states: bit j of a new index is bit neworder[j] of the old one. */
+	@Override
+	public AmplitudeStore reorderBits(final int[] neworder) {
+		SparseAmplitudeStore ret = (SparseAmplitudeStore)newEmpty();
+		ret.map = new AmplitudeMap(map.size());
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			long idx = 0;
+			for (int j=0; j < neworder.length; j++)
+				idx |= ((k >>> neworder[j]) & 1) << j;
+			ret.map.put(idx, map.reAt(s), map.imAt(s));
+		}
+		return ret;
+	}
+
+	/// -----------------------------------------
+	/// Masked operations over the stored entries
+	/// -----------------------------------------
+
+	@Override
+	public double sumSquares(long mask, long value) {
+		double sum = 0.0;
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k != AmplitudeMap.EMPTY && (k & mask) == value)
+				sum += map.reAt(s)*map.reAt(s) + map.imAt(s)*map.imAt(s);
+		}
+		return sum;
+	}
+
+	/** Over the stored entries whose partner idx ^ flipmask is stored too. */
+	@Override
+	public double[] pauliSums(long flipmask, long[] signmasks) {
+		double[] ret = new double[2*signmasks.length];
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k == AmplitudeMap.EMPTY)
+				continue;
+			int t = map.find(k ^ flipmask);
+			if (t < 0)
+				continue;
+			double ar = map.reAt(s), ai = map.imAt(s), br = map.reAt(t), bi = map.imAt(t);
+			addPauliTerms(k, br*ar + bi*ai, br*ai - bi*ar, signmasks, ret);
+		}
+		return ret;
+	}
+
+	@Override
+	public double[] marginal(int[] bits) {
+		double[] ret = new double[1<<bits.length];
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k != AmplitudeMap.EMPTY)
+				ret[QuantumUtil.extractBits(k, bits)] += map.reAt(s)*map.reAt(s) + map.imAt(s)*map.imAt(s);
+		}
+		return ret;
+	}
+
+	@Override
+	public void scale(long mask, long value, double factor) {
+		for (int s=0; s < map.capacity(); s++) {
+			long k = map.keyAt(s);
+			if (k != AmplitudeMap.EMPTY && (k & mask) == value)
+				map.setAt(s, map.reAt(s)*factor, map.imAt(s)*factor);
+		}
+	}
+
+	@Override
+	public void setZero(long mask, long value) {
+		for (int s=0; s < map.capacity(); s++)
+			while (map.keyAt(s) != AmplitudeMap.EMPTY && (map.keyAt(s) & mask) == value)
+				if (!map.removeAt(s))
+					break;
+	}
+
+}
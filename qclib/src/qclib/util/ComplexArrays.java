@@ -0,0 +1,54 @@
+package qclib.util;
+
+/**
+ * Static helpers for square complex matrices stored in primitive arrays,
+ * row-major with interleaved (re,im) entries: entry (r,c) of a dim x dim matrix
+ * lives at [2*(r*dim+c)] and [2*(r*dim+c)+1].
+ */
+public final class ComplexArrays {
+
+	/** Only static methods; don't make an instance. */
+	private ComplexArrays() {}
+
+	/** Returns a new dim x dim identity matrix. */
+	public static double[] identity(int dim) {
+		double[] ret = new double[2*dim*dim];
+		for (int i=0; i < dim; i++)
+			ret[2*(i*dim+i)] = 1;
+		return ret;
+	}
+
+	/**
+	 * Returns the matrix product a*b as a new array.
+	 * As operators, a*b applies b first and then a.
+	 */
+	public static double[] multiply(final double[] a, final double[] b, int dim) {
+		double[] ret = new double[2*dim*dim];
+		for (int r=0; r < dim; r++)
+			for (int c=0; c < dim; c++) {
+				double re = 0, im = 0;
+				for (int k=0; k < dim; k++) {
+					double ar = a[2*(r*dim+k)], ai = a[2*(r*dim+k)+1],
+							br = b[2*(k*dim+c)], bi = b[2*(k*dim+c)+1];
+					re += ar*br - ai*bi;
+					im += ar*bi + ai*br;
+				}
+				ret[2*(r*dim+c)] = re;
+				ret[2*(r*dim+c)+1] = im;
+			}
+		return ret;
+	}
+
+	/** Returns the entrywise product of two interleaved complex vectors of the same length. */
+	public static double[] multiplyElementwise(final double[] a, final double[] b) {
+		if (a.length != b.length)
+			throw new IllegalArgumentException("lengths differ: "+a.length+" vs "+b.length);
+		double[] ret = new double[a.length];
+		for (int i=0; i < a.length; i+=2) {
+			ret[i]   = a[i]*b[i] - a[i+1]*b[i+1];
+			ret[i+1] = a[i]*b[i+1] + a[i+1]*b[i];
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,116 @@
+package qclib.util;
+
+/**
+ * Streams the blocks of indices of QuantumUtil.translateIndices(numbits, targetbits)
+ *   without building a Set or an array per block.
+ * There is one block for each setting of the free bits (the bits not in targetbits).
+ * Index i of a block is its base, which has the target bits clear,
+ *   with bits 0, 1, ... of i deposited at targetbits[0], targetbits[1], ...
+ *
+ * The bases are enumerated with the subset trick base = (base - freemask) & freemask,
+ *   and the indices in a block by flipping the target bits that change when i is incremented,
+ *   so each step is a couple of long operations.
+ * Use like this:
+ * 	 IndexIterator it = new IndexIterator(numbits, targetbits);
+ * 	 while (it.nextBlock())
+ * 	 	 for (long i=0; i < it.blockSize(); i++)
+ * 	 	 	 doSomething(i, it.next());
+ *
+ * Not thread-safe; make one per loop.
+ */
+public final class IndexIterator {
+	private final int numbits;
+	private final long freemask;
+	/** prefix[t] has the bits targetbits[0..t] set: the bits that flip when i+1 has t trailing zeros */
+	private final long[] prefix;
+	private final long blockSize;
+	private boolean started, done;
+	private long base, idx, local;
+
+	/**
+	 * @param numbits number of bits of an index, at most 62
+	 * @param targetbits distinct bits in [0, numbits) whose values are counted within a block
+	 */
+	public IndexIterator(int numbits, final int... targetbits) {
+		if (numbits < 0 || numbits > 62 || targetbits == null || targetbits.length > numbits)
+			throw new IllegalArgumentException("bad numbits="+numbits+" for targetbits "+targetbits);
+		this.numbits = numbits;
+		long tmask = 0;
+		prefix = new long[targetbits.length];
+		for (int j=0; j < targetbits.length; j++) {
+			int tb = targetbits[j];
+			if (tb < 0 || tb >= numbits || (tmask & 1L<<tb) != 0)
+				throw new IllegalArgumentException("target bit "+tb+" is a duplicate or not in [0,"+numbits+")");
+			tmask |= 1L<<tb;
+			prefix[j] = tmask;
+		}
+		freemask = ((1L<<numbits)-1) & ~tmask;
+		blockSize = 1L<<targetbits.length;
+	}
+
+	public int getNumbits() { return numbits; }
+
+	/** The bits that are not target bits. */
+	public long getFreeMask() { return freemask; }
+
+	/** Number of indices in a block: 2^targetbits.length */
+	public long blockSize() { return blockSize; }
+
+	/** Number of blocks: 2^(numbits-targetbits.length) */
+	public long numBlocks() { return 1L<<Long.bitCount(freemask); }
+
+	/**
+	 * Moves to the next block, in increasing order of base; the first call moves to the block with base 0.
+	 * @return false if there are no more blocks
+	 */
+	public boolean nextBlock() {
+		if (done)
+			return false;
+		if (!started)
+			started = true;
+		else {
+			base = (base - freemask) & freemask;
+			if (base == 0) {
+				done = true;
+				return false;
+			}
+		}
+		rewindBlock();
+		return true;
+	}
+
+	/** Moves to block b, the b-th in the order of nextBlock.  nextBlock continues from there. */
+	public void seekBlock(long b) {
+		if (b < 0 || b >= numBlocks())
+			throw new IllegalArgumentException("bad block "+b+" of "+numBlocks());
+		base = QuantumUtil.depositMask(b, freemask);
+		started = true;
+		done = false;
+		rewindBlock();
+	}
+
+	/** Start over from the first block. */
+	public void reset() {
+		started = done = false;
+		base = 0;
+		rewindBlock();
+	}
+
+	/** Base of the current block: the free bits of each index in it, with the target bits clear. */
+	public long base() { return base; }
+
+	/** Restart the current block, so the next call to next() returns index 0 of the block. */
+	public void rewindBlock() {
+		idx = base;
+		local = 0;
+	}
+
+	/** Returns index i of the current block and moves on to index i+1.  Call at most blockSize() times per block. */
+	public long next() {
+		long ret = idx;
+		if (++local < blockSize)
+			idx ^= prefix[Long.numberOfTrailingZeros(local)];
+		return ret;
+	}
+
+}
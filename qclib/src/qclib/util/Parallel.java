@@ -0,0 +1,104 @@
+package qclib.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over the counter range [0, count) on a ForkJoinPool by splitting it into independent blocks.
+ * Used by the AmplitudeStore kernels: each counter value names one pair / block of amplitudes
+ *   that no other counter value touches, so the blocks need no synchronization.
+ * Loops shorter than the threshold run on the calling thread, so small containers stay single-threaded.
+ */
+public final class Parallel {
+
+	/** Loops with fewer iterations than this run on the calling thread.  Default 2^16 (a 17-qubit 1-qubit gate). */
+	private static volatile int threshold = 1<<16;
+	/** Smallest block handed to one task */
+	private static final int MIN_GRAIN = 1<<12;
+	/** Created on first use unless set */
+	private static volatile ForkJoinPool pool;
+
+	/** Only static methods; don't make an instance. */
+	private Parallel() {}
+
+	/** The body of a loop over a range of counters. */
+	public static abstract class Range {
+		/** Do the iterations from (inclusive) to to (exclusive). */
+		public abstract void run(int from, int to);
+	}
+
+	public static int getThreshold() { return threshold; }
+
+	/**
+	 * Set the number of iterations at which loops start running in parallel.
+	 * Integer.MAX_VALUE turns parallel execution off.
+	 */
+	public static void setThreshold(int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("bad threshold: "+threshold);
+		Parallel.threshold = threshold;
+	}
+
+	/** The pool used for parallel loops; by default one thread per core. */
+	public static ForkJoinPool getPool() {
+		ForkJoinPool p = pool;
+		if (p == null)
+			synchronized (Parallel.class) {
+				if (pool == null)
+					pool = new ForkJoinPool();
+				p = pool;
+			}
+		return p;
+	}
+
+	/** Use the given pool for parallel loops, ex. to limit the number of threads. */
+	public static void setPool(ForkJoinPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException("null pool");
+		Parallel.pool = pool;
+	}
+
+	/** True if a loop of count iterations would be split across threads. */
+	public static boolean isParallel(int count) {
+		return count >= threshold && getPool().getParallelism() > 1;
+	}
+
+	/**
+	 * Runs body over [0, count), in parallel blocks if count is at least the threshold.
+	 * Returns when every block is done.
+	 */
+	public static void forRange(int count, Range body) {
+		if (!isParallel(count)) {
+			body.run(0, count);
+			return;
+		}
+		ForkJoinPool p = getPool();
+		int grain = Math.max(MIN_GRAIN, count / (4*p.getParallelism()));
+		p.invoke(new RangeTask(body, 0, count, grain));
+	}
+
+	/** Splits its range in half until it is no bigger than grain. */
+	@SuppressWarnings("serial")
+	private static class RangeTask extends RecursiveAction {
+		private final Range body;
+		private final int from, to, grain;
+
+		RangeTask(Range body, int from, int to, int grain) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				body.run(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+		}
+	}
+
+}
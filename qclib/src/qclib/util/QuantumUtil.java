@@ -152,9 +152,11 @@ public final class QuantumUtil {
 	 * 
 	 * 
 	 * </pre>
+	 * Builds an array per block; loops should stream the indices with an IndexIterator instead.
 	 * @param v1loglen log2(length of v1)
 	 * @param targetbits the bits, in order, we want v2 to map to
 	 * @return Set of indices in the original v1
+	 * @see IndexIterator
 	 */
 	public static Set<int[]> translateIndices(int v1loglen, final int... targetbits) {
 		if (v1loglen < 1 || targetbits == null || targetbits.length > v1loglen)
@@ -165,60 +167,15 @@ public final class QuantumUtil {
 			else 
 				throw new IllegalArgumentException("bad v1loglen="+v1loglen+", targetbits "+targetbits+(targetbits==null?"":" with length "+targetbits));
 
-		// running example: v1 = {000,001,010,011,100,101,110,111}, v1loglen = 3, targetbits = {2,0}, targetbits.length = 2
-		//int[][] ret = new int[1<<(v1loglen-targetbits.length)][1<<(targetbits.length)];
-	//	Set<int[]> ret = new HashSet<int[]>(1<<(v1loglen-targetbits.length));
-		// ret is a (2^1)x(2^2) = 2x4 array
-		// expected result:	{{000, 100, 001, 101},
-		//					 {010, 110, 011, 111}} // order of the two arrays doesn't matter
-		final BitSet freebitmask = new BitSet(v1loglen);
-		freebitmask.set(0, v1loglen);
-		// freebitmask starts at 111
-		// now change it to 010, since bit 1 is free and bits 2, 0 are fixed, meaning not specified in targetbits
-		for (int tb : targetbits) {
-			if (tb < 0 || tb >= v1loglen) // error check
-				throw new IllegalArgumentException("bad v1loglen="+v1loglen+", targetbits "+targetbits);
-			freebitmask.clear(tb); 
+		// streams the same blocks; this only materializes them
+		IndexIterator it = new IndexIterator(v1loglen, targetbits);
+		Set<int[]> result = new HashSet<int[]>((int)it.numBlocks()*2);
+		while (it.nextBlock()) {
+			int[] arr = new int[(int)it.blockSize()];
+			for (int i=0; i < arr.length; i++)
+				arr[i] = (int)it.next();
+			result.add(arr);
 		}
-		
-		// Do this operation on each free bit:
-		BitSetCallback<int[]> callback = new BitSetCallback<int[]>() {
-			@Override
-			public int[] doWithFreeBitsSet(BitSet freebitset) {
-				int[] arr = new int[1<<(targetbits.length)]; // size 2^(targetbits.length)
-				
-				// turn freebitset into an int -- later TODO change everything to work with BitSets
-				// init each element of arr to have the free bits set  
-				long[] freebits = freebitset.toLongArray();
-				assert freebits.length<=1 : "using more than 64 bits not currently supported";
-				if (freebits.length == 1) { // if the length is 0, then initialize arr to all 0s (the default)
-					assert freebits[0] >>> 32 == 0 : "using more than 32 bits not currently supported";
-					for (int i=0; i < arr.length; i++)
-						arr[i] = (int)freebits[0];
-				}
-				
-				// now change the elements of arr to conform to the targetbits
-				for (int i = 0; i < targetbits.length; i++) {
-					int arridx = 0;			// index into arr
-					int setlen = 1<<i;		// period of this target; double with each targetbit
-					int k = 0;				// counting to period
-					boolean setOne = false; // setting 0 or 1
-					while (arridx < arr.length) {
-						if (setOne)
-							arr[arridx] |= 1<<targetbits[i]; // set targetbit at arridx
-						arridx++;
-						k++;
-						if (k == setlen) {		// period elapsed; switch setOne
-							setOne = !setOne;
-							k = 0;
-						}
-					}
-				}
-				return arr;
-			}
-		}; // end callback function
-		
-		Set<int[]> result = doForEachFreeBitSet(freebitmask, callback);
 		assert result.size() == 1<<(v1loglen-targetbits.length);
 		return result;
 	}
@@ -251,6 +208,22 @@ public final class QuantumUtil {
 			v1.setEntry(indices[i], v1part.getEntry(i));
 	}
 	
+	/** Like indexGet, with the indices of the current block of it. */
+	public static void indexGet(final FieldVector<Complex> v1, final IndexIterator it, FieldVector<Complex> v1part) {
+		it.rewindBlock();
+		for (int i=0; i < it.blockSize(); i++)
+			v1part.setEntry(i, v1.getEntry((int)it.next()));
+	}
+	
+	/** Like indexSet, with the indices of the current block of it. */
+	public static void indexSet(FieldVector<Complex> v1, final IndexIterator it, final FieldVector<Complex> v1part) {
+		if (v1part.getDimension() < it.blockSize())
+			throw new IllegalArgumentException("v1part.getDimension()="+v1part.getDimension()+", block size="+it.blockSize());
+		it.rewindBlock();
+		for (int i=0; i < it.blockSize(); i++)
+			v1.setEntry((int)it.next(), v1part.getEntry(i));
+	}
+	
 	/**
 	 * Similar to indexSet(), but multiplies in the values of v1part into v1, in the places specified by indices.
 	 * @param v1 with some of the entries multiplied by those from v1part
@@ -264,6 +237,70 @@ public final class QuantumUtil {
 			v1.setEntry( indices[i], v1.getEntry(indices[i]).multiply(v1part.getEntry(i)) );
 	}
 
+	/**
+	 * Gathers the bits of idx at positions bits[0], bits[1], ... into bits 0, 1, ... of the result.
+	 * Ex. extractBits(0b0110, {2,0}) == 0b01 
+	 */
+	public static int extractBits(int idx, final int[] bits) {
+		return extractBits((long)idx, bits);
+	}
+	
+	/** Same as extractBits(int, int[]) for an index of more than 31 bits. */
+	public static int extractBits(long idx, final int[] bits) {
+		int ret = 0;
+		for (int j=0; j < bits.length; j++)
+			ret |= (int)((idx >>> bits[j]) & 1) << j;
+		return ret;
+	}
+	
+	/**
+	 * Inverse of extractBits: scatters bits 0, 1, ... of local to positions bits[0], bits[1], ...
+	 * Ex. depositBits(0b01, {2,0}) == 0b0100 
+	 */
+	public static int depositBits(int local, final int[] bits) {
+		return (int)depositBitsLong(local, bits);
+	}
+
+	/** Same as depositBits, for positions up to 62. */
+	public static long depositBitsLong(int local, final int[] bits) {
+		long ret = 0;
+		for (int j=0; j < bits.length; j++)
+			ret |= (long)((local >>> j) & 1) << bits[j];
+		return ret;
+	}
+
+	/**
+	 * Deposits bits 0, 1, ... of local into the set bits of mask, lowest first.
+	 * Gives the c-th subset of mask in increasing order, so a loop over a counter range 
+	 *   can start in the middle of the enumeration sub = (sub - mask) & mask.
+	 * Ex. depositMask(0b11, 0b1010) == 0b1010, depositMask(0b10, 0b1010) == 0b1000 
+	 */
+	public static int depositMask(int local, int mask) {
+		return (int)depositMask(Integer.toUnsignedLong(local), Integer.toUnsignedLong(mask));
+	}
+
+	/** Same as depositMask(int, int), for masks of more than 31 bits (pdep). */
+	public static long depositMask(long local, long mask) {
+		long ret = 0;
+		for (long m = mask; m != 0 && local != 0; m &= m-1, local >>>= 1)
+			if ((local & 1) != 0)
+				ret |= m & -m;
+		return ret;
+	}
+
+	/**
+	 * Inverse of depositMask: gathers the bits of idx at the set bits of mask into bits 0, 1, ... (pext).
+	 * Ex. extractMask(0b1000, 0b1010) == 0b10
+	 */
+	public static long extractMask(long idx, long mask) {
+		long ret = 0;
+		int j = 0;
+		for (long m = mask; m != 0; m &= m-1, j++)
+			if ((idx & m & -m) != 0)
+				ret |= 1L<<j;
+		return ret;
+	}
+
 	/** log base 2 of a positive number */
 	public static int log2(int num) {
 		if (num <= 0)
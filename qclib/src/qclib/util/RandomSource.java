@@ -0,0 +1,22 @@
+package qclib.util;
+
+/**
+ * Source of the random numbers that decide measurement outcomes.
+ * Not required to be thread-safe: give each thread its own, from split().
+ * See SplitMix64 for the default, seedable one.
+ */
+public interface RandomSource {
+
+	/** Uniform over all 2^64 values */
+	long nextLong();
+
+	/** Uniform in [0, 1) */
+	double nextDouble();
+
+	/**
+	 * A new, independent source, derived deterministically from the state of this one (which advances):
+	 *   the same sequence of calls on a source seeded the same way gives the same split sources.
+	 */
+	RandomSource split();
+
+}
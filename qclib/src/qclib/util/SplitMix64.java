@@ -0,0 +1,95 @@
+package qclib.util;
+
+/**
+ * The SplitMix64 generator: a 64-bit counter advanced by an odd gamma, put through a mixing function.
+ * Fast, seedable and splittable; not for cryptography.
+ * Since the n-th output only depends on seed + n*gamma, outputs can also be computed directly 
+ *   from a counter (doubleAt), which lets threads draw from one stream in any order and still get the same numbers.
+ * Not thread-safe; use threadLocal() or split() for sources that are not shared.
+ */
+public final class SplitMix64 implements RandomSource {
+	/** 2^64 / golden ratio, odd */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	/** 2^-53 */
+	private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+	/** Seeds the thread-local sources and the unseeded constructor */
+	private static final SplitMix64 seeder = new SplitMix64(mix(System.currentTimeMillis()) ^ mix(System.nanoTime()));
+	private static final ThreadLocal<SplitMix64> local = new ThreadLocal<SplitMix64>() {
+		@Override
+		protected SplitMix64 initialValue() {
+			return new SplitMix64();
+		}
+	};
+
+	private long state;
+	private final long gamma;
+
+	/** Seeded from the clock: a different sequence each time. */
+	public SplitMix64() {
+		this(nextSeed());
+	}
+
+	/** Gives the same sequence for the same seed. */
+	public SplitMix64(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private SplitMix64(long seed, long gamma) {
+		this.state = seed;
+		this.gamma = gamma;
+	}
+
+	private static long nextSeed() {
+		synchronized (seeder) {
+			return seeder.nextLong();
+		}
+	}
+
+	/** A source for the calling thread only, seeded from the clock on first use: draws from it never wait on other threads. */
+	public static SplitMix64 threadLocal() {
+		return local.get();
+	}
+
+	/** The mixing function (the finalizer of MurmurHash3, variant 13) */
+	public static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** Uniform in [0, 1) from the 53 high bits of x */
+	public static double toDouble(long x) {
+		return (x >>> 11) * DOUBLE_UNIT;
+	}
+
+	/**
+	 * The counter-th double of the stream of new SplitMix64(seed) (counting from 0), 
+	 *   without generating the ones before it.
+	 */
+	public static double doubleAt(long seed, long counter) {
+		return toDouble(mix(seed + (counter+1) * GOLDEN_GAMMA));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix(state += gamma);
+	}
+
+	@Override
+	public double nextDouble() {
+		return toDouble(nextLong());
+	}
+
+	/** The child gets its own seed and (odd) gamma from the next two outputs of this one. */
+	@Override
+	public SplitMix64 split() {
+		long seed = nextLong();
+		long g = mix(state += gamma) | 1;
+		// a gamma with too few bit changes gives a weak stream; flip to one with more
+		if (Long.bitCount(g ^ (g >>> 1)) < 24)
+			g ^= 0xaaaaaaaaaaaaaaaaL;
+		return new SplitMix64(seed, g);
+	}
+
+}
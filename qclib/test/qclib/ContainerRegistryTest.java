@@ -0,0 +1,48 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ContainerRegistryTest {
+
+	/** Lookups follow union and split, and ids are reused. */
+	@Test
+	public final void testUnionSplit() {
+		ContainerRegistry r = new ContainerRegistry(4);
+		QubitContainer[] single = new QubitContainer[4];
+		for (int q=0; q < 4; q++)
+			assertEquals(q, r.add(single[q] = new QubitContainer(1), new int[] {q}));
+		
+		assertEquals(2, r.distinct(new int[] {3, 1, 3}));
+		assertArrayEquals(new int[] {3, 1}, Arrays.copyOf(r.distinctIds(), 2));
+		QubitContainer c31 = new QubitContainer(2);
+		int id = r.union(r.distinctIds(), 2, c31);
+		assertSame(c31, r.container(1));
+		assertEquals(0, r.bit(3));
+		assertEquals(1, r.bit(1));
+		assertEquals(1, r.distinct(new int[] {1, 3}));
+		assertNull(r.get(r.id(1) == 3 ? 1 : 3)); // one of the old ids is free
+		
+		QubitContainer c301 = new QubitContainer(3);
+		id = r.union(new int[] {id, r.id(0)}, 2, c301);
+		assertArrayEquals(new int[] {3, 1, 0}, r.qubits(id));
+		assertEquals(2, r.bit(0));
+		
+		QubitContainer rest = new QubitContainer(2), one = new QubitContainer(1);
+		id = r.split(id, 1, rest, one);
+		assertArrayEquals(new int[] {3, 0}, r.qubits(id));
+		assertEquals(1, r.bit(0));
+		assertSame(one, r.container(1));
+		assertEquals(0, r.bit(1));
+		assertEquals(3, r.distinct(new int[] {0, 1, 2, 3}));
+		int live = 0;
+		for (int k=0; k < r.capacity(); k++)
+			if (r.get(k) != null)
+				live++;
+		assertEquals(3, live);
+	}
+
+}
@@ -0,0 +1,55 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+import org.junit.Test;
+
+import qclib.op.CNOT;
+import qclib.op.CPhaseGate;
+import qclib.op.ComboOps;
+import qclib.op.H;
+import qclib.op.X;
+import qclib.util.QuantumUtil;
+
+public class ControlledOperatorTest {
+
+	/** The controlled-subspace kernel must agree with the boxed path for every placement of the bits. */
+	@Test
+	public final void testKernelMatchesBoxed() {
+		Operator[] ops = new Operator[] {
+				new CNOT(), new CPhaseGate(0.7), ComboOps.toffoli(),
+				new ControlledOperator(new H(), 1, 2),
+				new ControlledOperator(new CNOT(), 0),           // nested controls
+				new ControlledOperator(new CNOT().extend(2, 1, 0), 1) };
+		int[][][] targets = new int[][][] {
+				{{0,1}, {1,0}, {3,1}},
+				{{0,1}, {2,3}},
+				{{0,1,2}, {2,1,0}, {3,0,1}},
+				{{0,1,2}, {3,2,0}},
+				{{0,1,2}, {1,3,0}},
+				{{2,0,3}, {0,1,2}} };
+		KernelAssert.assertKernelMatchesBoxed(ops, targets);
+	}
+
+	@Test
+	public final void testToffoliInRegister() {
+		for (int in=0; in < 8; in++) {
+			QubitRegister qr = new QubitRegister(3);
+			// basis state |in> on qubits {2,1,0}
+			FieldVector<Complex> v = QuantumUtil.buildVector(new double[8]);
+			v.setEntry(in, Complex.ONE);
+			qr.setAmps(v, 0, 1, 2);
+			qr.doOp(ComboOps.toffoli(), 0, 1, 2); // controls 0,1; target 2
+			int out = (in & 0b011) == 0b011 ? in ^ 0b100 : in;
+			assertEquals(Complex.ONE, qr.getAmps(0, 1, 2).getEntry(out));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void testNoControls() {
+		new ControlledOperator(new X());
+	}
+
+}
@@ -0,0 +1,78 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+import org.junit.Test;
+
+import qclib.op.CPhaseGate;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.Z;
+import qclib.store.AmplitudeStore;
+import qclib.util.QuantumUtil;
+
+public class DiagonalOperatorTest {
+
+	/** Negates every basis state with an odd number of 1s. */
+	private static class Parity extends DiagonalOperator {
+		public Parity(int arity) {
+			super(arity);
+		}
+
+		@Override
+		public double getDiagonalReal(int idx) {
+			return Integer.bitCount(idx) % 2 == 0 ? 1 : -1;
+		}
+	}
+
+	/** The streaming diagonal kernel must agree with the boxed path. */
+	@Test
+	public final void testKernelMatchesBoxed() {
+		Operator[] ops = new Operator[] {
+				new DiagonalOperator(2, new double[] {1,0, 0,1, -1,0, 0.6,0.8}),
+				new Parity(3), new CPhaseGate(0.4),
+				new ControlledOperator(new Z(), 0, 2),
+				new PhaseGate(0.3).extend(3, 2) };
+		int[][][] targets = new int[][][] {
+				{{0,1}, {3,1}},
+				{{0,1,2}, {3,0,2}},
+				{{0,1}, {2,0}},
+				{{0,1,2}, {1,3,2}},
+				{{0,1,2}, {2,3,1}} };
+		for (int o=0; o < ops.length; o++)
+			assertNotNull("op "+o, ops[o].getDiagonal());
+		KernelAssert.assertKernelMatchesBoxed(ops, targets);
+	}
+
+	@Test
+	public final void testCurryBefore() {
+		Operator op = new PhaseGate(0.5).curryBefore(new Z());
+		assertNotNull(op.getDiagonal());
+		FieldVector<Complex> v = KernelAssert.sampleVector(1);
+		assertTrue(QuantumUtil.isApproxEqualVector(new Z().apply(new PhaseGate(0.5).apply(v)), op.apply(v)));
+	}
+
+	/** Runs of diagonal operators merged in the container must give the same state as applying them one by one. */
+	@Test
+	public final void testContainerMerge() {
+		QubitContainer merged = new QubitContainer(5, false);
+		AmplitudeStore expected = AmplitudeStore.fromFieldVector(KernelAssert.sampleVector(5));
+		merged.setAmps(expected);
+		Operator[] ops = new Operator[] { new Z(), new CPhaseGate(0.9), new Parity(3), new H(), new PhaseGate(0.2), new Z() };
+		int[][] targets = new int[][] { {0}, {1,3}, {4,0,2}, {2}, {4}, {4} };
+		for (int i=0; i < ops.length; i++) {
+			merged.doOp(ops[i], targets[i]);
+			ops[i].applyTo(expected, targets[i]);
+		}
+		assertTrue("result ="+QuantumUtil.printVector(merged.getAmps())+"\nexpected="+QuantumUtil.printVector(expected.toFieldVector()),
+				QuantumUtil.isApproxEqualVector(expected.toFieldVector(), merged.getAmps()));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void testBadLength() {
+		new DiagonalOperator(2, new double[] {1,0, 1,0});
+	}
+
+}
@@ -0,0 +1,127 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+import org.junit.Test;
+
+import qclib.op.CNOT;
+import qclib.op.CPhaseGate;
+import qclib.op.ComboOps;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.SWAP;
+import qclib.op.V;
+import qclib.op.X;
+import qclib.op.Z;
+import qclib.store.AmplitudeStore;
+import qclib.util.QuantumUtil;
+
+public class FusedBlockTest {
+
+	private static final Operator[] OPS = new Operator[] {
+		new H(), new CNOT(), new Z(), new H(), new V(), new CPhaseGate(0.3), new X(), new H(),
+		ComboOps.toffoli(), new SWAP(), new PhaseGate(1.2), new H(), new CNOT(), new Z(), new Z() };
+	private static final int[][] TARGETS = new int[][] {
+		{0}, {1,0}, {1}, {1}, {2}, {2,1}, {0}, {4},
+		{0,1,3}, {3,4}, {4}, {2}, {3,2}, {0}, {4} };
+
+	/** Fused runs of operators must give the same state as applying each one to the store, for any fusion width. */
+	@Test
+	public final void testFusionMatchesUnfused() {
+		for (int k=1; k <= 5; k++) {
+			StoragePolicy storage = new StoragePolicy();
+			storage.maxFusedBits = k;
+			QubitContainer qc = new QubitContainer(5, false, Precision.DOUBLE, storage);
+			AmplitudeStore expected = AmplitudeStore.fromFieldVector(qc.getAmps());
+			for (int i=0; i < OPS.length; i++) {
+				qc.doOp(OPS[i], TARGETS[i]);
+				OPS[i].applyTo(expected, TARGETS[i]);
+			}
+			assertTrue("k="+k+"\nresult ="+QuantumUtil.printVector(qc.getAmps())+"\nexpected="+QuantumUtil.printVector(expected.toFieldVector()),
+					QuantumUtil.isApproxEqualVector(expected.toFieldVector(), qc.getAmps()));
+		}
+		
+		// the width belongs to the register
+		QubitRegister narrow = new QubitRegister(2), wide = new QubitRegister(2);
+		narrow.setMaxFusedBits(1);
+		assertEquals(1, narrow.getMaxFusedBits());
+		assertEquals(4, wide.getMaxFusedBits());
+	}
+
+	/** A bad target bit is reported by the doOp that passes it, not when the block is applied. */
+	@Test
+	public final void testBadBitsFailEarly() {
+		QubitContainer qc = new QubitContainer(3);
+		qc.doOp(new H(), 0);
+		try {
+			qc.doOp(new H(), 5);
+			fail("bit out of range");
+		} catch (IllegalArgumentException e) {}
+		try {
+			qc.doOp(new CNOT(), 1, 1);
+			fail("repeated bit");
+		} catch (IllegalArgumentException e) {}
+		assertTrue(QuantumUtil.isApproxEqualVector(new H().extend(3, 0).apply(QuantumUtil.buildVector(1, 0, 0, 0, 0, 0, 0, 0)),
+				qc.getAmps()));
+	}
+
+	@Test
+	public final void testBlockMatrix() {
+		FusedBlock b = new FusedBlock(new H(), new int[] {3});
+		assertTrue(b.tryAdd(new CNOT(), new int[] {1,3}, 2, 2));
+		assertFalse(b.tryAdd(new H(), new int[] {0}, 2, 2));     // does not overlap
+		assertFalse(b.tryAdd(new CNOT(), new int[] {0,1}, 2, 2)); // too wide
+		assertEquals(2, b.size());
+		assertArrayEquals(new int[] {3, 1}, b.getBits());
+
+		// H on local bit 0, then CNOT with control 0 and target 1
+		FieldVector<Complex> v = QuantumUtil.buildVector(1, 0, 0, 0);
+		v = new CNOT().extend(2, 1, 0).apply(new H().extend(2, 0).apply(v));
+		AmplitudeStore s = AmplitudeStore.fromFieldVector(QuantumUtil.buildVector(1, 0, 0, 0));
+		s.applyMatrix(new int[] {0, 1}, b.getMatrix(), 0);
+		assertTrue(QuantumUtil.isApproxEqualVector(v, s.toFieldVector()));
+	}
+
+	@Test
+	public final void testPermutationBlock() {
+		FusedBlock b = new FusedBlock(new CNOT(), new int[] {1,0});
+		assertTrue(b.tryAdd(new X(), new int[] {5}, 1, 3)); // permutations need not overlap
+		assertTrue(b.tryAdd(new SWAP(), new int[] {0,5}, 1, 3));
+		assertFalse(b.tryAdd(new X(), new int[] {6}, 1, 3));
+		assertFalse(b.tryAdd(new H(), new int[] {0}, 1, 3));
+		assertArrayEquals(new int[] {1, 0, 5}, b.getBits());
+		// local bits (1,0,5): CNOT flips local 0 if local 1, X flips local 2, SWAP exchanges locals 1 and 2
+		int[] p = b.getPermutation();
+		for (int l=0; l < 8; l++) {
+			int x = (l & 2) != 0 ? l ^ 1 : l;
+			x ^= 4;
+			x = (x & 1) | (x & 2) << 1 | (x & 4) >> 1;
+			assertEquals(x, p[l]);
+		}
+	}
+
+	/** A reset block starts over with whatever operator comes next, of any arity. */
+	@Test
+	public final void testReset() {
+		FusedBlock b = new FusedBlock(new Z(), new int[] {0});
+		assertTrue(b.tryAdd(new CPhaseGate(0.5), new int[] {4,2}, 1, 3));
+		b.reset();
+		assertTrue(b.isEmpty());
+		assertTrue(b.tryAdd(new H(), new int[] {6}, 1, 3)); // an empty block takes anything
+		assertTrue(b.tryAdd(new V(), new int[] {6}, 1, 3));
+		assertFalse(b.tryAdd(new Z(), new int[] {0}, 1, 3));
+		assertEquals(2, b.size());
+		assertArrayEquals(new int[] {6}, b.getBits());
+	}
+
+	@Test
+	public final void testDiagonalBlock() {
+		FusedBlock b = new FusedBlock(new Z(), new int[] {0});
+		assertTrue(b.tryAdd(new CPhaseGate(0.5), new int[] {4,2}, 1, 3)); // diagonals need not overlap
+		assertArrayEquals(new int[] {0, 4, 2}, b.getBits());
+		assertFalse(b.tryAdd(new Z(), new int[] {5}, 1, 3));
+	}
+
+}
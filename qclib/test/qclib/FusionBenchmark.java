@@ -0,0 +1,70 @@
+package qclib;
+
+import java.util.Random;
+
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.V;
+
+/**
+ * Times runs of gates on one large container for each fusion width (QubitRegister.setMaxFusedBits),
+ *   to choose the default: the best of 3 runs after a warm-up.  Not a unit test: run its main.
+ * Each run is numgates gates in windows of 4 consecutive bits, gatesPerWindow gates per window.
+ * Usage: FusionBenchmark [numbits [numgates [gatesPerWindow]]]
+ */
+public class FusionBenchmark {
+
+	private static final String[] WORKLOADS = {"CNOT", "H/CNOT", "1-qubit", "mixed"};
+
+	public static void main(String[] args) {
+		int numbits = args.length > 0 ? Integer.parseInt(args[0]) : 22;
+		int numgates = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		int perWindow = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		System.out.println(numbits+" qubits, "+numgates+" gates, "+perWindow+" per window of 4 bits; ms by maxFusedBits");
+		System.out.print("workload");
+		for (int k=1; k <= 5; k++)
+			System.out.print("\t"+k);
+		System.out.println();
+		for (int w=0; w < WORKLOADS.length; w++) {
+			System.out.print(WORKLOADS[w]);
+			for (int k=1; k <= 5; k++) {
+				run(w, k, numbits, numgates, perWindow); // warm up
+				long best = Long.MAX_VALUE;
+				for (int r=0; r < 3; r++) {
+					long start = System.nanoTime();
+					run(w, k, numbits, numgates, perWindow);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.print("\t"+best/1000000);
+			}
+			System.out.println();
+		}
+	}
+
+	private static void run(int workload, int maxFusedBits, int numbits, int numgates, int perWindow) {
+		Random rnd = new Random(1);
+		Operator h = new H(), v = new V(), cnot = new CNOT(), phase = new PhaseGate(0.3);
+		StoragePolicy storage = new StoragePolicy();
+		storage.maxFusedBits = maxFusedBits;
+		try (QubitContainer qc = new QubitContainer(numbits, false, Precision.DOUBLE, storage)) {
+			for (int g=0; g < numgates; g++) {
+				int low = (g / perWindow * 3) % (numbits - 3);
+				int a = low + rnd.nextInt(4), b = low + (a - low + 1 + rnd.nextInt(3)) % 4;
+				boolean two;
+				switch (workload) {
+				case 0: two = true; break;
+				case 1: two = g % 2 == 1; break;
+				case 2: two = false; break;
+				default: two = rnd.nextInt(3) == 0;
+				}
+				if (two)
+					qc.doOp(cnot, a, b);
+				else
+					qc.doOp(workload == 3 && rnd.nextBoolean() ? (rnd.nextBoolean() ? v : phase) : h, a);
+			}
+			qc.normSquared(); // applies what is still buffered
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+
+import qclib.store.AmplitudeStore;
+import qclib.util.QuantumUtil;
+
+/**
+ * Checks shared by the operator tests: the primitive kernel of an operator against its boxed path.
+ */
+final class KernelAssert {
+
+	private KernelAssert() {}
+
+	/** A normalized state on numbits qubits with distinct, mostly complex amplitudes. */
+	static FieldVector<Complex> sampleVector(int numbits) {
+		FieldVector<Complex> v = QuantumUtil.buildVector(new double[1<<numbits]);
+		for (int i=0; i < v.getDimension(); i++)
+			v.setEntry(i, new Complex(i+1, (i % 3) - 1));
+		return QuantumUtil.normalizeVector(v);
+	}
+
+	/**
+	 * Applies ops[o] to a 4-qubit sampleVector on each of targets[o], once through the AmplitudeStore kernel
+	 *   and once through the boxed FieldVector path, and asserts the results agree.
+	 */
+	static void assertKernelMatchesBoxed(Operator[] ops, int[][][] targets) {
+		assertEquals("a target table per op", ops.length, targets.length);
+		for (int o=0; o < ops.length; o++)
+			for (int[] tbs : targets[o]) {
+				FieldVector<Complex> v = sampleVector(4);
+				AmplitudeStore s = AmplitudeStore.fromFieldVector(v);
+				ops[o].applyTo(4, v, tbs);
+				ops[o].applyTo(s, tbs);
+				assertTrue("op "+o+"\nresult ="+QuantumUtil.printVector(s.toFieldVector())+"\nexpected="+QuantumUtil.printVector(v),
+						QuantumUtil.isApproxEqualVector(v, s.toFieldVector()));
+			}
+	}
+
+}
@@ -0,0 +1,99 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+import org.junit.Test;
+
+import qclib.circuit.Circuit;
+import qclib.op.CNOT;
+import qclib.op.CPhaseGate;
+import qclib.op.CZ;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.V;
+import qclib.op.X;
+import qclib.op.Z;
+import qclib.util.QuantumUtil;
+
+public class PeepholeOptimizerTest {
+
+	private static List<Pair<Operator,int[]>> gates(Object... opsAndQubits) {
+		List<Pair<Operator,int[]>> ret = new ArrayList<Pair<Operator,int[]>>();
+		for (int i=0; i < opsAndQubits.length; i += 2)
+			ret.add(new Pair<Operator,int[]>((Operator)opsAndQubits[i], (int[])opsAndQubits[i+1]));
+		return ret;
+	}
+
+	private static int[] q(int... qubits) { return qubits; }
+
+	@Test
+	public final void testCancel() {
+		PeepholeOptimizer opt = new PeepholeOptimizer();
+		assertTrue(opt.optimize(gates(new H(), q(0), new H(), q(0))).isEmpty());
+		assertEquals(2, opt.getLastRemoved());
+		assertTrue(opt.optimize(gates(new X(), q(1), new H(), q(0), new X(), q(1))).size() == 1);
+		assertTrue(opt.optimize(gates(new CNOT(), q(1, 0), new CNOT(), q(1, 0))).isEmpty());
+		// a CNOT does not cancel one with control and target swapped
+		assertEquals(1, opt.optimize(gates(new CNOT(), q(1, 0), new CNOT(), q(0, 1))).size());
+		// nested pairs cancel from the inside out
+		assertTrue(opt.optimize(gates(new H(), q(2), new CNOT(), q(2, 0), new CNOT(), q(2, 0), new H(), q(2))).isEmpty());
+		assertEquals(2+2+2+1+4, opt.getTotalRemoved());
+	}
+
+	@Test
+	public final void testMergePhases() {
+		PeepholeOptimizer opt = new PeepholeOptimizer();
+		// Z, CZ and phases are diagonal and commute with each other: the phases merge into a Z, the Zs cancel
+		List<Pair<Operator,int[]>> out = opt.optimize(gates(new PhaseGate(0.5), q(0), new CZ(), q(0, 1), new Z(), q(1),
+				new PhaseGate(Math.PI-0.5), q(0), new Z(), q(1)));
+		assertEquals(2, out.size());
+		assertEquals(3, opt.getLastRemoved());
+		assertArrayEquals(q(0), out.get(0).getSecond());
+		assertArrayEquals(new double[] {1, 0, -1, 0}, out.get(0).getFirst().getDiagonal(), QuantumUtil.EPSILON);
+		// V.V = X
+		out = opt.optimize(gates(new V(), q(0), new V(), q(0)));
+		assertEquals(1, out.size());
+		// a run of gates on one qubit becomes one gate, but a phase is not moved past a CNOT
+		assertEquals(1, opt.optimize(gates(new Z(), q(0), new H(), q(0), new Z(), q(0))).size());
+		assertEquals(3, opt.optimize(gates(new Z(), q(0), new CNOT(), q(1, 0), new Z(), q(0))).size());
+	}
+
+	/** The optimized run has the same effect on the register. */
+	@Test
+	public final void testEquivalent() {
+		List<Pair<Operator,int[]>> run = gates(
+				new H(), q(0), new H(), q(1), new H(), q(2), new CPhaseGate(0.3), q(0, 1), new PhaseGate(0.2), q(1),
+				new CNOT(), q(2, 1), new CPhaseGate(0.4), q(1, 0), new CNOT(), q(2, 1), new H(), q(2), new V(), q(1),
+				new ControlledOperator(new X(), 0, 1), q(0, 1, 2), new ControlledOperator(new X(), 0, 1), q(0, 2, 1),
+				new V(), q(1), new H(), q(0), new Z(), q(3));
+		QubitRegister expected = new QubitRegister(4);
+		for (Pair<Operator,int[]> g : run)
+			expected.doOp(g.getFirst(), g.getSecond());
+
+		PeepholeOptimizer opt = new PeepholeOptimizer();
+		QubitRegister qr = new QubitRegister(4);
+		qr.setOptimizer(opt);
+		qr.setDeferred(true);
+		for (Pair<Operator,int[]> g : run)
+			qr.doOp(g.getFirst(), g.getSecond());
+		assertTrue(QuantumUtil.isApproxEqualVector(expected.getAmps(0, 1, 2, 3), qr.getAmps(0, 1, 2, 3)));
+		assertTrue(opt.getLastRemoved() > 0);
+	}
+
+	@Test
+	public final void testCircuit() {
+		Circuit c = new Circuit.Builder().h(0).h(0).x(1).measure(1, 0).x(1).cnot(0, 1).cnot(0, 1).x(1).build();
+		Circuit opt = c.optimize(new PeepholeOptimizer());
+		// the measurement is a barrier: the X before it stays, everything after it cancels
+		assertEquals(2, opt.size());
+		assertTrue(opt.getInstructions().get(1).isMeasurement());
+		QubitRegister qr = new QubitRegister(2);
+		assertTrue(opt.execute(qr)[0]);
+		assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(0, 1), qr.getAmps(1)));
+	}
+
+}
@@ -0,0 +1,73 @@
+package qclib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import qclib.op.CNOT;
+import qclib.op.ComboOps;
+import qclib.op.H;
+import qclib.op.SWAP;
+import qclib.op.X;
+import qclib.store.AmplitudeStore;
+import qclib.util.QuantumUtil;
+
+public class PermutationOperatorTest {
+
+	/** |x,y> ==> |x, y^(x is odd)> */
+	private static class OddOracle extends PermutationOperator {
+		public OddOracle(int arity) {
+			super(arity);
+		}
+
+		@Override
+		public int permute(int idx) {
+			return (idx & 0b10) != 0 ? idx ^ 1 : idx;
+		}
+	}
+
+	/** The cycle-walk and XOR kernels must agree with the boxed path. */
+	@Test
+	public final void testKernelMatchesBoxed() {
+		Operator[] ops = new Operator[] {
+				new X(), new CNOT(), new SWAP(), ComboOps.toffoli(),
+				PermutationOperator.flip(3, 0b101),
+				new PermutationOperator(3, new int[] {3, 0, 1, 2, 5, 4, 6, 7}), // a 4-cycle and a 2-cycle
+				new OddOracle(3),
+				new SWAP().extend(3, 2, 0),
+				new X().curryBefore(new H()) };
+		int[][][] targets = new int[][][] {
+				{{0}, {3}},
+				{{0,1}, {1,0}, {3,1}},
+				{{0,1}, {2,3}},
+				{{0,1,2}, {3,0,1}},
+				{{0,1,2}, {1,3,2}},
+				{{0,1,2}, {3,1,0}},
+				{{0,1,2}, {2,3,1}},
+				{{0,1,2}, {1,3,0}},
+				{{2}} };
+		KernelAssert.assertKernelMatchesBoxed(ops, targets);
+	}
+
+	@Test
+	public final void testComposition() {
+		assertNotNull(new CNOT().getPermutation());
+		Operator op = new SWAP().curryBefore(new CNOT());
+		assertTrue(op instanceof PermutationOperator);
+		// |01> -SWAP-> |10> -CNOT-> |11>
+		assertEquals(3, ((PermutationOperator)op).permute(1));
+	}
+
+	@Test
+	public final void testApplyXor() {
+		AmplitudeStore s = AmplitudeStore.fromFieldVector(QuantumUtil.buildVector(1, 2, 3, 4, 5, 6, 7, 8));
+		s.applyXor(0b011, 0b100); // flip bits 0 and 1 where bit 2 is set
+		assertEquals(QuantumUtil.buildVector(1, 2, 3, 4, 8, 7, 6, 5), s.toFieldVector());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void testNotBijection() {
+		new PermutationOperator(1, new int[] {0, 0});
+	}
+
+}
@@ -5,11 +5,24 @@ package qclib;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.commons.math3.complex.Complex;
 import org.apache.commons.math3.linear.FieldVector;
+import org.apache.commons.math3.util.Pair;
 import org.junit.Test;
 
+import qclib.op.CNOT;
+import qclib.op.CZ;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.X;
+import qclib.store.FloatAmplitudeStore;
+import qclib.util.Parallel;
 import qclib.util.QuantumUtil;
+import qclib.util.SplitMix64;
 
 /**
  * @author dhutchis
@@ -63,5 +76,422 @@ public class QubitRegisterTest {
 		
 		// Todo?: Measure more complicated vectors many times (say 10000), and test if average is close to what it should be.		
 	}
+	
+	/**
+	 * Test method for {@link qclib.QubitRegister#setDeferred(boolean)}.
+	 */
+	@Test
+	public final void testDeferred() {
+		QubitRegister now = new QubitRegister(4), later = new QubitRegister(4);
+		final int[] runs = new int[1];
+		later.setOptimizer(new GateOptimizer() {
+			@Override
+			public List<Pair<Operator, int[]>> optimize(List<Pair<Operator, int[]>> gates) {
+				runs[0]++;
+				return gates;
+			}
+		});
+		later.setDeferred(true);
+		for (QubitRegister qr : new QubitRegister[] {now, later}) {
+			qr.setAmps(QuantumUtil.buildVector(3.0/5, 4.0/5), 2);
+			qr.doOp(new H(), 0).doOp(new CNOT(), 1, 0).doOp(new PhaseGate(0.4), 1).doOp(new X(), 3);
+			qr.setAmps(QuantumUtil.buildVector(0, 1), 3);
+			qr.doOp(new CNOT(), 2, 3);
+		}
+		assertEquals(7, later.getQueuedCount());
+		assertEquals(0, runs[0]);
+		
+		FieldVector<Complex> e = now.getAmps(0, 1), v = later.getAmps(0, 1);
+		assertEquals(0, later.getQueuedCount());
+		assertEquals(2, runs[0]); // two runs of gates, split by setAmps
+		assertTrue("result="+QuantumUtil.printVector(v)+"\nexpected="+QuantumUtil.printVector(e),
+				QuantumUtil.isApproxEqualVector(e, v));
+		e = now.getAmps(2, 3);
+		v = later.getAmps(2, 3);
+		assertTrue("result="+QuantumUtil.printVector(v)+"\nexpected="+QuantumUtil.printVector(e),
+				QuantumUtil.isApproxEqualVector(e, v));
+		
+		// still deferred: measurement flushes
+		later.doOp(new X(), 0).doOp(new X(), 1);
+		assertEquals(2, later.getQueuedCount());
+		later.measure(0);
+		assertEquals(0, later.getQueuedCount());
+	}
+
+	/** Single precision follows double precision closely; the monitor sees the drift. */
+	@Test
+	public final void testFloatPrecision() {
+		QubitRegister d = new QubitRegister(3), f = new QubitRegister(3, Precision.FLOAT);
+		final int[] calls = new int[1];
+		f.setNormMonitor(new NormMonitor() {
+			@Override
+			public boolean normChecked(int[] qubits, double normSquared) {
+				calls[0]++;
+				assertEquals(1, normSquared, 1e-5);
+				return true;
+			}
+		}, 10);
+		for (int i=0; i < 20; i++)
+			for (QubitRegister qr : new QubitRegister[] {d, f})
+				qr.doOp(new H(), i % 3).doOp(new PhaseGate(0.1*i), (i+1) % 3).doOp(new CNOT(), (i+2) % 3, i % 3);
+		assertEquals(Precision.FLOAT, f.getPrecision());
+		assertTrue(calls[0] >= 6);
+		assertTrue(QuantumUtil.isApproxEqualVector(d.getAmps(0, 1, 2), f.getAmps(0, 1, 2)));
+		assertTrue(f.checkNorm() < 1e-5);
+		assertEquals(0, d.checkNorm(), 1e-12);
+		f.measure(1);
+		assertTrue(calls[0] >= 8);
+	}
+
+	/** A container follows the support of its state between sparse and dense storage. */
+	@Test
+	public final void testAdaptiveStorage() {
+		final int n = 12;
+		int[] all = QuantumUtil.makeConsecutiveIntArray(0, n);
+		QubitRegister fixed = new QubitRegister(n);
+		fixed.doOp(new X(), 3).doOp(new CNOT(), 5, 3);
+		for (int q=0; q < n; q++)
+			fixed.doOp(new H(), q);
+		FieldVector<Complex> spread = fixed.getAmps(all);
+		
+		final List<Boolean> switches = new ArrayList<Boolean>();
+		QubitRegister qr = new QubitRegister(n);
+		qr.setAdaptiveDensity(0.01, 0.25);
+		qr.setStorageListener(new StorageListener() {
+			@Override
+			public void storageChanged(QubitContainer qc, boolean sparse, long nonZero) {
+				switches.add(sparse);
+			}
+		});
+		qr.doOp(new X(), 3);
+		qr.couple(all); // one non-zero amplitude out of 4096: built sparse
+		qr.doOp(new CNOT(), 5, 3);
+		assertTrue(switches.isEmpty());
+		for (int q=0; q < n; q++)
+			qr.doOp(new H(), q);
+		assertTrue(QuantumUtil.isApproxEqualVector(spread, qr.getAmps(all)));
+		assertEquals(Arrays.asList(false), switches); // became dense
+		for (int q=0; q < n; q++)
+			qr.doOp(new H(), q);
+		assertTrue(qr.measure(5));
+		assertEquals(Arrays.asList(false, true), switches); // back to sparse
+		boolean[] r = qr.measure(all);
+		for (int q=0; q < n; q++)
+			assertEquals(q == 3 || q == 5, r[q]);
+	}
+
+	/** A sparse container of a FLOAT register that turns dense holds floats. */
+	@Test
+	public final void testAdaptiveFloat() {
+		final int n = 12;
+		final List<QubitContainer> switched = new ArrayList<QubitContainer>();
+		QubitRegister qr = new QubitRegister(n, Precision.FLOAT);
+		qr.setAdaptiveDensity(0.01, 0.25);
+		qr.setStorageListener(new StorageListener() {
+			@Override
+			public void storageChanged(QubitContainer qc, boolean sparse, long nonZero) {
+				switched.add(qc);
+			}
+		});
+		qr.couple(QuantumUtil.makeConsecutiveIntArray(0, n)); // built sparse
+		assertTrue(switched.isEmpty());
+		for (int q=0; q < n; q++)
+			qr.doOp(new H(), q);
+		assertEquals(1, switched.size());
+		QubitContainer qc = switched.get(0);
+		assertFalse(qc.isSparse());
+		assertEquals(Precision.FLOAT, qc.getPrecision());
+		assertTrue(qc.store() instanceof FloatAmplitudeStore);
+		
+		// the policy belongs to the register: another register would couple the same state dense
+		QubitRegister sparse = new QubitRegister(n, Precision.FLOAT), dense = new QubitRegister(n, Precision.FLOAT);
+		sparse.setAdaptiveDensity(0.01, 0.25);
+		int[] all = QuantumUtil.makeConsecutiveIntArray(0, n);
+		assertTrue(sparse.estimateCouplingBytes(all) < 1000);
+		assertEquals(8L << n, dense.estimateCouplingBytes(all));
+	}
+
+	/** The estimate follows the store a coupled container would get, which holds doubles past 29 qubits or off the heap. */
+	@Test
+	public final void testEstimateFloatBytes() {
+		QubitRegister qr = new QubitRegister(31, Precision.FLOAT);
+		assertEquals(8L << 29, qr.estimateCouplingBytes(QuantumUtil.makeConsecutiveIntArray(0, 29)));
+		assertEquals(16L << 30, qr.estimateCouplingBytes(QuantumUtil.makeConsecutiveIntArray(0, 30)));
+		qr.setOffHeapBits(2);
+		assertEquals(16L << 2, qr.estimateCouplingBytes(0, 1));
+		qr.setOffHeapBits(Integer.MAX_VALUE);
+		qr.setMappedBits(2);
+		assertEquals(16L << 2, qr.estimateCouplingBytes(0, 1));
+	}
+
+	/** Unentangled qubits are split back out of a coupled container without changing the state. */
+	@Test
+	public final void testDecouple() {
+		QubitRegister qr = new QubitRegister(3);
+		qr.doOp(new H(), 0);
+		qr.doOp(new H(), 2);
+		qr.doOp(new PhaseGate(0.7), 2);
+		qr.couple(0, 1, 2);
+		qr.doOp(new CNOT(), 1, 0);
+		FieldVector<Complex> before = qr.getAmps(0, 1, 2);
+		assertEquals(1, qr.decouple()); // qubit 2; 0 and 1 are a Bell pair
+		assertTrue(QuantumUtil.isApproxEqualVector(before, qr.getAmps(0, 1, 2)));
+		assertTrue(QuantumUtil.isApproxEqualVector(new PhaseGate(0.7).apply(new H().apply(QuantumUtil.buildVector(1, 0))),
+				qr.getAmps(2)));
+		assertEquals(0, qr.decouple());
+		
+		// undoing the CNOT disentangles 0 and 1, found after the gate
+		qr.setDecoupleInterval(1);
+		qr.doOp(new CNOT(), 1, 0);
+		assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(1, 0), qr.getAmps(1)));
+		assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(Math.sqrt(0.5), Math.sqrt(0.5)), qr.getAmps(0)));
+		assertEquals(0, qr.decouple());
+		
+		// sparse containers too
+		QubitContainer qc = new QubitContainer(20, true);
+		qc.doOp(new H(), 19);
+		qc.doOp(new CNOT(), 3, 19);
+		assertNull(qc.separableState(3));
+		double[] q = qc.separableState(7);
+		assertArrayEquals(new double[] {1, 0, 0, 0}, q, QuantumUtil.EPSILON);
+		QubitContainer rest = qc.factorOut(7, q);
+		assertEquals(19, rest.getNumbits());
+		assertEquals(Math.sqrt(0.5), rest.store().getReal(1L<<18 | 1L<<3), QuantumUtil.EPSILON);
+		
+		// an all-zero state has no state of a bit
+		qc.store().fill(0, 0);
+		try {
+			qc.separableState(0);
+			fail("all-zero state");
+		} catch (IllegalStateException e) {}
+	}
+	
+	/** Float rounding does not keep decouple from finding unentangled qubits. */
+	@Test
+	public final void testDecoupleFloat() {
+		for (Precision precision : Precision.values()) {
+			QubitRegister qr = new QubitRegister(4, precision);
+			for (int q=0; q < 4; q++) {
+				qr.doOp(new H(), q);
+				qr.doOp(new PhaseGate(0.3 + q), q);
+				qr.doOp(new H(), q);
+			}
+			for (int q=1; q < 4; q++)
+				qr.doOp(new CNOT(), q, q-1);
+			for (int q=3; q > 0; q--)
+				qr.doOp(new CNOT(), q, q-1);
+			assertEquals(precision.toString(), 3, qr.decouple());
+			for (int q=1; q < 4; q++)
+				assertEquals((precision == Precision.FLOAT ? 8L : 16L) << 2, qr.estimateCouplingBytes(0, q)); // still apart
+		}
+	}
+
+	/** Gates that are products over the containers they touch are applied without coupling; the others couple. */
+	@Test
+	public final void testGatesAcrossContainers() {
+		Operator zz = new DiagonalOperator(2, new double[] {0, 1, 0, -1, 0, -1, 0, 1}); // i*(Z x Z)
+		Operator xx = new PermutationOperator(2, new int[] {3, 2, 1, 0});
+		Operator cz = new CZ();
+		QubitRegister qr = new QubitRegister(6), ref = new QubitRegister(6);
+		int[] all = QuantumUtil.makeConsecutiveIntArray(0, 6);
+		ref.couple(all);
+		for (QubitRegister r : new QubitRegister[] {qr, ref}) {
+			for (int q=0; q < 6; q++)
+				r.doOp(new H(), q);
+			r.doOp(new PhaseGate(0.3), 4);
+			r.doOp(new CNOT(), 0, 1);
+			r.doOp(new CNOT(), 2, 0);
+			r.doOp(new CNOT(), 4, 3);
+			r.doOp(new CNOT(), 5, 4);
+		}
+		assertEquals(0, qr.estimateOpBytes(zz, 1, 3));
+		assertEquals(0, qr.estimateOpBytes(xx, 5, 2));
+		assertEquals(16L<<6, qr.estimateOpBytes(cz, 1, 3));
+		assertEquals(16L<<6, qr.estimateCouplingBytes(0, 5));
+		for (QubitRegister r : new QubitRegister[] {qr, ref}) {
+			r.doOp(zz, 1, 3);
+			r.doOp(xx, 5, 2);
+		}
+		assertEquals(16L<<6, qr.estimateCouplingBytes(0, 5)); // still apart
+		assertTrue(QuantumUtil.isApproxEqualVector(ref.getAmps(all), qr.getAmps(all)));
+		qr.doOp(cz, 1, 3);
+		ref.doOp(cz, 1, 3);
+		assertEquals(0, qr.estimateCouplingBytes(0, 5));
+		assertTrue(QuantumUtil.isApproxEqualVector(ref.getAmps(all), qr.getAmps(all)));
+	}
+
+	/** Shots follow the joint distribution across containers and leave the state alone. */
+	@Test
+	public final void testSample() {
+		QubitRegister qr = new QubitRegister(4);
+		qr.doOp(new H(), 0);
+		qr.doOp(new CNOT(), 1, 0);
+		qr.doOp(new X(), 3);
+		qr.doOp(new H(), 2);
+		qr.doOp(new PhaseGate(0.4), 2);
+		FieldVector<Complex> bell = qr.getAmps(0, 1);
+		final int shots = 20000;
+		long[] counts = qr.sample(shots, 3, 0, 2, 1);
+		assertEquals(16, counts.length);
+		long total = 0;
+		for (int l=0; l < 16; l++) {
+			total += counts[l];
+			boolean possible = (l & 1) == 1 && ((l >> 1) & 1) == ((l >> 3) & 1);
+			if (possible)
+				assertEquals(shots/4, counts[l], shots/20);
+			else
+				assertEquals(0, counts[l]);
+		}
+		assertEquals(shots, total);
+		assertTrue(QuantumUtil.isApproxEqualVector(bell, qr.getAmps(0, 1)));
+		assertArrayEquals(new long[] {0, 0}, qr.sample(0, 2));
+	}
+
+	/** Probabilities without measuring, across containers, leaving the state alone. */
+	@Test
+	public final void testProbabilities() {
+		QubitRegister qr = new QubitRegister(3);
+		qr.doOp(new H(), 0);
+		qr.doOp(new CNOT(), 1, 0);
+		qr.setAmps(QuantumUtil.buildVector(0.6, 0.8), 2);
+		FieldVector<Complex> bell = qr.getAmps(0, 1);
+		assertEquals(0.5, qr.probability(1), QuantumUtil.EPSILON);
+		assertEquals(0.64, qr.probability(2), QuantumUtil.EPSILON);
+		assertArrayEquals(new double[] {0.5*0.36, 0, 0, 0.5*0.36, 0.5*0.64, 0, 0, 0.5*0.64}, 
+				qr.marginalProbabilities(0, 1, 2), QuantumUtil.EPSILON);
+		assertArrayEquals(new double[] {0.18, 0.32, 0.18, 0.32}, qr.marginalProbabilities(2, 1), QuantumUtil.EPSILON);
+		assertEquals(0.5*0.64, qr.basisProbability(0b111), QuantumUtil.EPSILON);
+		assertEquals(0, qr.basisProbability(0b101), QuantumUtil.EPSILON);
+		assertTrue(QuantumUtil.isApproxEqualVector(bell, qr.getAmps(0, 1)));
+	}
+
+	/** Expectations of Pauli strings on a Bell pair and a separate qubit, without changing the state. */
+	@Test
+	public final void testExpectation() {
+		QubitRegister qr = new QubitRegister(3);
+		qr.doOp(new H(), 0);
+		qr.doOp(new CNOT(), 1, 0);
+		qr.setAmps(QuantumUtil.buildVector(0.6, 0.8), 2);
+		qr.doOp(new PhaseGate(Math.PI/2), 2); // 0.6|0> + 0.8i|1>
+		FieldVector<Complex> bell = qr.getAmps(0, 1);
+		
+		assertEquals(1, qr.expectation(new PauliString(1, "Z0 Z1"), new PauliString(0.5, "X2")), QuantumUtil.EPSILON);
+		assertEquals(1, qr.expectation(new PauliString(1, "X1 X0")), QuantumUtil.EPSILON);
+		assertEquals(-1, qr.expectation(new PauliString(1, "Y0 Y1")), QuantumUtil.EPSILON);
+		assertEquals(0, qr.expectation(new PauliString(1, "Y0 X1")), QuantumUtil.EPSILON);
+		assertEquals(-0.28, qr.expectation(new PauliString(1, "Z2")), QuantumUtil.EPSILON);
+		assertEquals(0.96, qr.expectation(new PauliString(1, "Y2")), QuantumUtil.EPSILON);
+		assertEquals(0, qr.expectation(new PauliString(1, "Z0 Y2")), QuantumUtil.EPSILON);
+		assertEquals(2 - 0.96 - 0.5*0.96, qr.expectation(new PauliString(2, "I"), new PauliString(-1, "X0 X1 Y2"),
+				new PauliString(0.5, "Y0 Y1 Y2")), QuantumUtil.EPSILON);
+		assertTrue(QuantumUtil.isApproxEqualVector(bell, qr.getAmps(0, 1)));
+		
+		// a sparse container: 20-qubit GHZ state
+		QubitContainer ghz = new QubitContainer(20, true);
+		ghz.doOp(new H(), 0);
+		for (int b=1; b < 20; b++)
+			ghz.doOp(new CNOT(), b, 0);
+		long all = (1L<<20)-1;
+		assertArrayEquals(new double[] {1, 1, 0, -1}, // the last is Y0 Y1 X2 ... X19
+				ghz.pauliExpectations(new long[] {all, 0, 0, all}, new long[] {0, 1 | 1L<<19, 1, 0b11}), QuantumUtil.EPSILON);
+	}
+
+	/** Whole containers are measured in one draw, partly measured ones bit by bit; outcomes stay correlated. */
+	@Test
+	public final void testMeasureAll() {
+		int ones = 0;
+		for (int run=0; run < 200; run++) {
+			QubitRegister qr = new QubitRegister(6);
+			qr.doOp(new H(), 0);
+			for (int q=1; q < 4; q++)
+				qr.doOp(new CNOT(), q, 0);
+			qr.doOp(new H(), 4);
+			qr.doOp(new CNOT(), 5, 4);
+			boolean[] m = qr.measure(5, 0, 1, 2, 3);
+			assertEquals(m[1], m[2]);
+			assertEquals(m[1], m[3]);
+			assertEquals(m[1], m[4]);
+			assertEquals(m[0], qr.measure(4)); // 4 was left for measure(int), which collapsed it with 5
+			for (int q=0; q < 4; q++)
+				assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(m[1] ? 0 : 1, m[1] ? 1 : 0), qr.getAmps(q)));
+			boolean[] all = qr.measureAll();
+			assertEquals(m[1], all[2]);
+			assertEquals(m[0], all[5]);
+			if (m[1])
+				ones++;
+		}
+		assertEquals(100, ones, 30);
+		
+		QubitContainer qc = new QubitContainer(3);
+		qc.doOp(new X(), 2);
+		qc.doOp(new H(), 0);
+		long idx = qc.measureAll();
+		assertEquals(4, idx & ~1L);
+		assertEquals(1, qc.basisProbability(idx), QuantumUtil.EPSILON);
+	}
+
+	/** Some qubits of a container are drawn together, and the rest stay in one container; draws follow the actual norm. */
+	@Test
+	public final void testMeasureSome() {
+		int ones = 0;
+		double h = Math.sqrt(0.5);
+		for (int run=0; run < 200; run++) {
+			QubitRegister qr = new QubitRegister(5);
+			qr.doOp(new H(), 0);
+			for (int q=1; q < 4; q++)
+				qr.doOp(new CNOT(), q, 0);
+			qr.doOp(new H(), 4);
+			qr.couple(0, 1, 2, 3, 4);
+			boolean[] m = qr.measure(2, 0);
+			assertEquals(m[0], m[1]);
+			assertEquals(0, qr.estimateCouplingBytes(1, 3, 4)); // one container
+			assertTrue(qr.estimateCouplingBytes(0, 2) > 0);
+			int base = m[0] ? 3 : 0;
+			double[] expected = new double[8];
+			expected[base] = expected[base | 4] = h;
+			assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(expected), qr.getAmps(1, 3, 4)));
+			if (m[0])
+				ones++;
+		}
+		assertEquals(100, ones, 30);
+		
+		QubitContainer f = new QubitContainer(1, Precision.FLOAT);
+		f.store().set(0, 1, 0);
+		f.store().set(1, 1, 0); // norm^2 = 2
+		SplitMix64 rnd = new SplitMix64(7);
+		int hits = 0;
+		for (int i=0; i < 1000; i++)
+			hits += f.sampleIndex(rnd);
+		assertEquals(500, hits, 80);
+	}
+
+	/** The same seed gives the same outcomes, and sample counts do not depend on the threads. */
+	@Test
+	public final void testSeed() {
+		boolean[][] results = new boolean[2][];
+		long[][] counts = new long[3][];
+		for (int run=0; run < 3; run++) {
+			QubitRegister qr = new QubitRegister(8);
+			qr.setSeed(1234);
+			for (int q=0; q < 8; q++)
+				qr.doOp(new H(), q);
+			qr.doOp(new CNOT(), 1, 0);
+			qr.doOp(new PhaseGate(0.3), 1);
+			qr.doOp(new H(), 1);
+			int oldThreshold = Parallel.getThreshold();
+			try {
+				if (run == 2)
+					Parallel.setThreshold(1);
+				counts[run] = qr.sample(5000, 0, 1, 2, 7);
+			} finally {
+				Parallel.setThreshold(oldThreshold);
+			}
+			if (run < 2)
+				results[run] = qr.measureAll();
+		}
+		assertArrayEquals(results[0], results[1]);
+		assertArrayEquals(counts[0], counts[1]);
+		assertArrayEquals(counts[0], counts[2]);
+	}
 
 }
@@ -0,0 +1,129 @@
+package qclib.circuit;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+import org.junit.Test;
+
+import qclib.ControlledOperator;
+import qclib.DiagonalOperator;
+import qclib.Operator;
+import qclib.PermutationOperator;
+import qclib.QubitRegister;
+import qclib.alg.Teleport;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.SWAP;
+import qclib.op.X;
+import qclib.op.Z;
+import qclib.util.QuantumUtil;
+
+public class CircuitTest {
+
+	@Test
+	public final void testBuilder() {
+		Circuit c = new Circuit.Builder(2).h(0).cnot(0, 3).controlled(new X(), new int[] {0, 1}, 2)
+				.measure(2, 1).gateIf(1, true, new Z(), 0).build();
+		assertEquals(4, c.getNumqubits());
+		assertEquals(2, c.getNumclbits());
+		assertEquals(5, c.size());
+
+		Instruction in = c.getInstructions().get(2);
+		assertArrayEquals(new int[] {2}, in.getTargets());
+		assertArrayEquals(new int[] {0, 1}, in.getControls());
+		assertFalse(in.isConditional());
+		assertTrue(c.getInstructions().get(3).isMeasurement());
+		assertTrue(c.getInstructions().get(4).isConditional());
+
+		try {
+			c.getInstructions().clear();
+			fail("instructions should be unmodifiable");
+		} catch (UnsupportedOperationException e) {}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void testRepeatedQubit() {
+		Instruction.controlled(new X(), new int[] {1}, 1);
+	}
+
+	/** A Bell pair always measures equal bits. */
+	@Test
+	public final void testBell() {
+		Circuit bell = new Circuit.Builder().h(0).cnot(0, 1).measure(0, 0).measure(1, 1).build();
+		for (int i=0; i < 10; i++) {
+			boolean[] m = bell.execute(new QubitRegister(2));
+			assertEquals(m[0], m[1]);
+		}
+	}
+
+	/** Teleportation, with Bob's corrections conditioned on Alice's measurements. */
+	@Test
+	public final void testTeleport() {
+		FieldVector<Complex> src = QuantumUtil.buildVector(3.0/5, 4.0/5);
+		new PhaseGate(0.7).apply(src);
+		int[][] bits = { {0, 1, 2}, {2, 0, 1} };
+		for (int[] b : bits) {
+			Circuit teleport = Teleport.circuit(b[0], b[1], b[2]);
+			for (int i=0; i < 10; i++) {
+				QubitRegister qr = new QubitRegister(3);
+				qr.setAmps(src, b[0]);
+				teleport.execute(qr);
+				assertFalse(qr.isDeferred());
+				assertTrue(QuantumUtil.isApproxEqualVector(src, qr.getAmps(b[2])));
+			}
+		}
+	}
+
+	/** A failure inside execute leaves the register as it was, out of deferred mode, with the original exception. */
+	@Test
+	public final void testFailedExecute() {
+		Circuit c = new Circuit.Builder().h(0).x(1).cnot(0, 1).build();
+		QubitRegister qr = new QubitRegister(2) {
+			@Override
+			public QubitRegister doOp(Operator op, int... qubits) {
+				if (getQueuedCount() == 2)
+					throw new IllegalStateException("third gate");
+				return super.doOp(op, qubits);
+			}
+		};
+		try {
+			c.execute(qr);
+			fail("should have thrown");
+		} catch (IllegalStateException e) {
+			assertEquals("third gate", e.getMessage());
+		}
+		assertFalse(qr.isDeferred());
+		assertEquals(0, qr.getQueuedCount());
+		assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(1, 0, 0, 0), qr.getAmps(0, 1)));
+	}
+
+	/** Executing a circuit is the same as calling doOp for each gate. */
+	@Test
+	public final void testMatchesDoOp() {
+		Circuit c = new Circuit.Builder().h(0).h(1).cnot(1, 2).gate(new PhaseGate(0.3), 2).swap(0, 2)
+				.controlled(new H(), new int[] {2}, 1).build();
+		QubitRegister expected = new QubitRegister(3), qr = new QubitRegister(3);
+		expected.doOp(new H(), 0).doOp(new H(), 1).doOp(new CNOT(), 2, 1).doOp(new PhaseGate(0.3), 2)
+				.doOp(new SWAP(), 0, 2).doOp(new ControlledOperator(new H(), 1), 1, 2);
+		c.execute(qr);
+		assertTrue(QuantumUtil.isApproxEqualVector(expected.getAmps(0, 1, 2), qr.getAmps(0, 1, 2)));
+	}
+
+	/** Diagonal and permutation gates that factor across containers do not couple them when run as a circuit either. */
+	@Test
+	public final void testFactoredGatesStayApart() {
+		DiagonalOperator zz = new DiagonalOperator(2, new double[] {1, 0, -1, 0, -1, 0, 1, 0});
+		PermutationOperator xx = new PermutationOperator(2, new int[] {3, 2, 1, 0});
+		Circuit c = new Circuit.Builder(3).h(0).h(1).gate(new PhaseGate(0.3), 1).gate(zz, 0, 1).gate(xx, 1, 2).build();
+		QubitRegister expected = new QubitRegister(3), qr = new QubitRegister(3);
+		expected.doOp(new H(), 0).doOp(new H(), 1).doOp(new PhaseGate(0.3), 1).doOp(zz, 0, 1).doOp(xx, 1, 2);
+		c.execute(qr);
+		assertEquals(16L<<2, qr.estimateCouplingBytes(0, 1));
+		assertEquals(16L<<2, qr.estimateCouplingBytes(1, 2));
+		assertEquals(expected.estimateCouplingBytes(0, 1), qr.estimateCouplingBytes(0, 1));
+		assertTrue(QuantumUtil.isApproxEqualVector(expected.getAmps(0, 1, 2), qr.getAmps(0, 1, 2)));
+	}
+
+}
@@ -0,0 +1,195 @@
+package qclib.store;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.linear.FieldVector;
+import org.junit.Test;
+
+import qclib.ControlledOperator;
+import qclib.Operator;
+import qclib.PermutationOperator;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.V;
+import qclib.op.X;
+import qclib.op.Z;
+import qclib.util.Parallel;
+import qclib.util.QuantumUtil;
+
+public class AmplitudeStoreTest {
+
+	@Test
+	public final void testRoundTrip() {
+		FieldVector<Complex> v = QuantumUtil.buildVector(new Complex(1,2), new Complex(3,4), new Complex(5,6), new Complex(7,8));
+		AmplitudeStore s = AmplitudeStore.fromFieldVector(v);
+		assertEquals(2, s.getNumbits());
+		assertEquals(7, s.getReal(3), 0);
+		assertEquals(8, s.getImaginary(3), 0);
+		assertEquals(v, s.toFieldVector());
+		assertEquals(v, s.copy().toFieldVector());
+		assertFalse(s.isZero());
+		assertTrue(s.newEmpty().isZero());
+	}
+
+	/** The primitive applyTo should agree with the boxed FieldVector version. */
+	@Test
+	public final void testApplyToMatchesBoxed() {
+		FieldVector<Complex> v = QuantumUtil.normalizeVector(QuantumUtil.buildVector(1, 2, 3, 4, 5, 6, 7, 8));
+		AmplitudeStore s = AmplitudeStore.fromFieldVector(v);
+
+		new H().applyTo(3, v, 1);
+		new H().applyTo(s, 1);
+		new CNOT().applyTo(3, v, 2, 0);
+		new CNOT().applyTo(s, 2, 0);
+
+		assertTrue("result ="+QuantumUtil.printVector(s.toFieldVector())+"\nexpected="+QuantumUtil.printVector(v),
+				QuantumUtil.isApproxEqualVector(v, s.toFieldVector()));
+	}
+
+	/** The in-place 1-qubit kernel on each target bit should agree with the boxed path. */
+	@Test
+	public final void testApplySingleQubit() {
+		Operator[] ops = new Operator[] {new H(), new X(), new Z(), new V(), new PhaseGate(0.3), new H().curryBefore(new PhaseGate(1.1))};
+		for (Operator op : ops)
+			for (int target=0; target < 3; target++) {
+				FieldVector<Complex> v = QuantumUtil.normalizeVector(QuantumUtil.buildVector(
+						new Complex(1,-1), new Complex(2,0), new Complex(3,1), new Complex(0,4),
+						new Complex(5,0), new Complex(-6,2), new Complex(7,0), new Complex(8,-3)));
+				AmplitudeStore s = AmplitudeStore.fromFieldVector(v);
+				op.applyTo(3, v, target);
+				op.applyTo(s, target);
+				assertTrue("target "+target+"\nresult ="+QuantumUtil.printVector(s.toFieldVector())+"\nexpected="+QuantumUtil.printVector(v),
+						QuantumUtil.isApproxEqualVector(v, s.toFieldVector()));
+			}
+	}
+
+	/** Marginal sums agree with a direct sum, on one thread or several, dense or sparse. */
+	@Test
+	public final void testMarginal() {
+		final int n = 14;
+		int[] bits = {9, 2, 13};
+		AmplitudeStore d = new DoubleAmplitudeStore(n);
+		SparseAmplitudeStore s = new SparseAmplitudeStore(n);
+		double[] expected = new double[8];
+		for (int i=0; i < d.size(); i++) {
+			d.set(i, i % 7, -(i % 3));
+			s.set(i, i % 7, -(i % 3));
+			expected[(i >> 9 & 1) | (i >> 2 & 1) << 1 | (i >> 13 & 1) << 2] += d.normSquared(i);
+		}
+		assertArrayEquals(expected, d.marginal(bits), 1e-9);
+		assertArrayEquals(expected, s.marginal(bits), 1e-9);
+		assertEquals(d.sumSquares(0, 0), d.marginal(new int[0])[0], 1e-9);
+		
+		int oldThreshold = Parallel.getThreshold();
+		ForkJoinPool oldPool = Parallel.getPool();
+		try {
+			Parallel.setThreshold(1);
+			Parallel.setPool(new ForkJoinPool(4));
+			assertArrayEquals(expected, d.marginal(bits), 1e-9);
+		} finally {
+			Parallel.setThreshold(oldThreshold);
+			Parallel.setPool(oldPool);
+		}
+	}
+	
+	/** Pauli sums agree on one thread or several, dense or sparse. */
+	@Test
+	public final void testPauliSums() {
+		final int n = 14;
+		AmplitudeStore d = new DoubleAmplitudeStore(n);
+		SparseAmplitudeStore s = new SparseAmplitudeStore(n);
+		for (int i=0; i < d.size(); i++) {
+			d.set(i, i % 7, -(i % 3));
+			s.set(i, i % 7, -(i % 3));
+		}
+		long[] signmasks = {0, 0b101, 1L<<13 | 1};
+		double[] serial = d.pauliSums(0b1000100, signmasks);
+		assertArrayEquals(serial, s.pauliSums(0b1000100, signmasks), 1e-6);
+		assertEquals(d.sumSquares(0, 0), d.pauliSums(0, new long[] {0})[0], 1e-6);
+		
+		int oldThreshold = Parallel.getThreshold();
+		ForkJoinPool oldPool = Parallel.getPool();
+		try {
+			Parallel.setThreshold(1);
+			Parallel.setPool(new ForkJoinPool(4));
+			assertArrayEquals(serial, d.pauliSums(0b1000100, signmasks), 1e-6);
+		} finally {
+			Parallel.setThreshold(oldThreshold);
+			Parallel.setPool(oldPool);
+		}
+	}
+	
+	/** Kernels split across threads must give exactly the same state as on one thread. */
+	@Test
+	public final void testParallelMatchesSerial() {
+		final int n = 15;
+		Operator[] ops = new Operator[] {new H(), new PhaseGate(0.3), new CNOT(), new ControlledOperator(new H(), 0, 2),
+				PermutationOperator.flip(2, 0b11), new PermutationOperator(2, new int[] {1, 2, 0, 3})};
+		int[][] targets = new int[][] { {3}, {14}, {0,13}, {12,1,7}, {2,9}, {5,0} };
+		AmplitudeStore serial = new DoubleAmplitudeStore(n), parallel;
+		for (int i=0; i < serial.size(); i++)
+			serial.set(i, i % 7, i % 3);
+		parallel = serial.copy();
+		
+		int oldThreshold = Parallel.getThreshold();
+		ForkJoinPool oldPool = Parallel.getPool();
+		for (int o=0; o < ops.length; o++)
+			ops[o].applyTo(serial, targets[o]);
+		try {
+			Parallel.setThreshold(1);
+			Parallel.setPool(new ForkJoinPool(4));
+			for (int o=0; o < ops.length; o++)
+				ops[o].applyTo(parallel, targets[o]);
+		} finally {
+			Parallel.setThreshold(oldThreshold);
+			Parallel.setPool(oldPool);
+		}
+		for (int i=0; i < serial.size(); i++) {
+			assertEquals(serial.getReal(i), parallel.getReal(i), 0);
+			assertEquals(serial.getImaginary(i), parallel.getImaginary(i), 0);
+		}
+	}
+
+	@Test
+	public final void testMaskedOps() {
+		AmplitudeStore s = AmplitudeStore.fromFieldVector(QuantumUtil.buildVector(1, 2, 3, 4));
+		assertEquals(1 + 9, s.sumSquares(0b01, 0), QuantumUtil.EPSILON);
+		assertEquals(4 + 16, s.sumSquares(0b01, 0b01), QuantumUtil.EPSILON);
+		s.scale(0b10, 0b10, 0.5);
+		s.setZero(0b01, 0);
+		assertEquals(QuantumUtil.buildVector(0, 2, 0, 2), s.toFieldVector());
+	}
+
+	/** The float kernels agree with the double ones to single precision. */
+	@Test
+	public final void testFloatStore() {
+		AmplitudeStore d = new DoubleAmplitudeStore(5), f = new FloatAmplitudeStore(5);
+		for (int i=0; i < 32; i++) {
+			d.set(i, Math.sin(i), Math.cos(3*i));
+			f.set(i, Math.sin(i), Math.cos(3*i));
+		}
+		Operator[] ops = new Operator[] {new H(), new V(), new PhaseGate(0.3), new CNOT(),
+				new ControlledOperator(new X(), 0, 1), new PermutationOperator(2, new int[] {1, 2, 0, 3})};
+		for (AmplitudeStore s : new AmplitudeStore[] {d, f})
+			for (int k=0; k < 5; k++)
+				for (Operator op : ops) {
+					int[] targets = new int[op.getArity()];
+					for (int j=0; j < targets.length; j++)
+						targets[j] = (k + 2*j) % 5;
+					op.applyTo(s, targets);
+				}
+		for (int i=0; i < 32; i++) {
+			assertEquals(d.getReal(i), f.getReal(i), 1e-5);
+			assertEquals(d.getImaginary(i), f.getImaginary(i), 1e-5);
+		}
+		assertEquals(d.sumSquares(0b100, 0b100), f.sumSquares(0b100, 0b100), 1e-5);
+		f.scale(0, 0, 2);
+		f.setZero(0b1, 0);
+		assertEquals(4*d.sumSquares(0b1, 0b1), f.sumSquares(0, 0), 1e-4);
+	}
+
+}
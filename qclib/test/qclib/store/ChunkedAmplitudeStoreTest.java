@@ -0,0 +1,109 @@
+package qclib.store;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import qclib.util.QuantumUtil;
+
+public class ChunkedAmplitudeStoreTest {
+
+	private static final double[] H = {Math.sqrt(0.5), 0, Math.sqrt(0.5), 0, Math.sqrt(0.5), 0, -Math.sqrt(0.5), 0};
+	private static final double[] W = {0.6, 0, 0, 0.8, 0, 0.8, 0.6, 0}; // unitary with complex entries
+
+	/** Same starting amplitudes in a dense store and a store with 2^chunkbits per chunk; the upper half is zero. */
+	private static AmplitudeStore[] pair(int numbits, int chunkbits) {
+		AmplitudeStore d = new DoubleAmplitudeStore(numbits), c = new ChunkedAmplitudeStore(numbits, chunkbits);
+		for (long i=0; i < d.size()/2; i++) {
+			d.set(i, (i % 7) - 3, (i % 5) - 2);
+			c.set(i, (i % 7) - 3, (i % 5) - 2);
+		}
+		return new AmplitudeStore[] {d, c};
+	}
+
+	private static void assertSame(AmplitudeStore[] p) {
+		for (long i=0; i < p[0].size(); i++) {
+			assertEquals("re "+i, p[0].getReal(i), p[1].getReal(i), QuantumUtil.EPSILON);
+			assertEquals("im "+i, p[0].getImaginary(i), p[1].getImaginary(i), QuantumUtil.EPSILON);
+		}
+	}
+
+	/** Every kernel, on low and high targets and controls, agrees with the dense store. */
+	@Test
+	public final void testKernels() {
+		final int n = 8, cb = 3;
+		AmplitudeStore[] p = pair(n, cb);
+		assertEquals(16, ((ChunkedAmplitudeStore)p[1]).getAllocatedChunks());
+		assertSame(p);
+		long[] controls = {0, 0b10, 0b100000, 0b100010};
+		for (long cm : controls) {
+			for (int t=0; t < n; t++)
+				if ((cm & 1L<<t) == 0)
+					for (AmplitudeStore s : p)
+						s.applySingleQubit(t, t % 2 == 0 ? H : W, cm);
+			assertSame(p);
+			for (AmplitudeStore s : p) {
+				s.applyXor(0b1, cm);
+				s.applyXor(0b10010000, cm & ~0b10000000L);
+				s.applyXor(0b11000001, cm);
+			}
+			assertSame(p);
+			int[][] targets = { {0, 2}, {6, 0}, {7, 4, 2}, {3, 4} };
+			for (int[] tb : targets)
+				if ((cm & QuantumUtil.depositBitsLong((1<<tb.length)-1, tb)) == 0) {
+					double[] diag = new double[2<<tb.length], mat = new double[2<<2*tb.length];
+					for (int l=0; l < 1<<tb.length; l++) {
+						diag[2*l] = Math.cos(l+1);
+						diag[2*l+1] = Math.sin(l+1);
+					}
+					for (int e=0; e < mat.length; e++)
+						mat[e] = (e % 3) - 1;
+					int[] perm = new int[1<<tb.length];
+					for (int l=0; l < perm.length; l++)
+						perm[l] = (l + 1) % perm.length;
+					for (AmplitudeStore s : p) {
+						s.applyDiagonal(tb, diag, cm);
+						s.applyMatrix(tb, mat, cm);
+						s.applyPermutation(tb, perm, cm);
+					}
+					assertSame(p);
+				}
+		}
+		long[] masks = {0b1, 0b10001000, 0b11110000};
+		for (long m : masks) {
+			double expected = p[0].sumSquares(m, m & 0b10101010);
+			assertEquals(expected, p[1].sumSquares(m, m & 0b10101010), expected*1e-12);
+			for (AmplitudeStore s : p)
+				s.scale(m, m & 0b1000, 0.5);
+			assertSame(p);
+		}
+		for (AmplitudeStore s : p)
+			s.setZero(0b10000000, 0);
+		assertSame(p);
+		// the half with bit 7 clear is whole chunks, which are dropped
+		assertTrue(((ChunkedAmplitudeStore)p[1]).getAllocatedChunks() <= 16);
+	}
+
+	/** A state on 33 qubits that only ever touches a few chunks. */
+	@Test
+	public final void testBeyond32Bits() {
+		ChunkedAmplitudeStore s = new ChunkedAmplitudeStore(33, 16);
+		final long top = 1L<<32;
+		s.set(0, 1, 0);
+		assertEquals(1, s.getAllocatedChunks());
+		s.applySingleQubit(32, H);
+		assertEquals(2, s.getAllocatedChunks());
+		assertEquals(Math.sqrt(0.5), s.getReal(top), QuantumUtil.EPSILON);
+		s.applyXor(top | 1, 0);
+		s.applySingleQubit(0, H, top);
+		assertEquals(Math.sqrt(0.5), s.getReal(1), QuantumUtil.EPSILON);
+		assertEquals(0.5, s.getReal(top), QuantumUtil.EPSILON);
+		assertEquals(-0.5, s.getReal(top | 1), QuantumUtil.EPSILON);
+		assertEquals(0.5, s.sumSquares(top, top), QuantumUtil.EPSILON);
+		s.setZero(top, top);
+		s.scale(top, 0, Math.sqrt(2));
+		assertEquals(1, s.sumSquares(0, 0), QuantumUtil.EPSILON);
+		assertEquals(1, s.normSquared(1), QuantumUtil.EPSILON);
+	}
+
+}
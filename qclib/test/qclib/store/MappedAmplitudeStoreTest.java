@@ -0,0 +1,81 @@
+package qclib.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import qclib.QubitRegister;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.Z;
+import qclib.util.QuantumUtil;
+
+public class MappedAmplitudeStoreTest {
+
+	private static final double[] W = {0.6, 0, 0, 0.8, 0, 0.8, 0.6, 0};
+
+	@Rule
+	public TemporaryFolder scratch = new TemporaryFolder();
+
+	/** Same results as the dense store; the file is in the given directory and goes away on close. */
+	@Test
+	public final void testKernelsAndFile() throws IOException {
+		final int n = 6;
+		AmplitudeStore d = new DoubleAmplitudeStore(n);
+		MappedAmplitudeStore m = new MappedAmplitudeStore(n, 2, scratch.getRoot());
+		File f = m.getFile();
+		assertEquals(scratch.getRoot(), f.getParentFile());
+		assertEquals(16L<<n, f.length());
+		assertTrue(m.isZero());
+		for (long i=0; i < d.size(); i++) {
+			d.set(i, i % 3, -(i % 4));
+			m.set(i, i % 3, -(i % 4));
+		}
+		for (int t=0; t < n; t++) {
+			d.applySingleQubit(t, W, t == 0 ? 0b100000 : 1);
+			m.applySingleQubit(t, W, t == 0 ? 0b100000 : 1);
+		}
+		d.applyXor(0b100100, 0b1);
+		m.applyXor(0b100100, 0b1);
+		d.applyPermutation(new int[] {4, 0}, new int[] {1, 2, 3, 0}, 0);
+		m.applyPermutation(new int[] {4, 0}, new int[] {1, 2, 3, 0}, 0);
+		AmplitudeStore c = m.copy();
+		for (long i=0; i < d.size(); i++) {
+			assertEquals(d.getReal(i), m.getReal(i), QuantumUtil.EPSILON);
+			assertEquals(d.getImaginary(i), m.getImaginary(i), QuantumUtil.EPSILON);
+			assertEquals(d.getImaginary(i), c.getImaginary(i), QuantumUtil.EPSILON);
+		}
+		c.close();
+		m.close();
+		assertNull(m.getFile());
+		assertFalse(f.exists());
+		// and no longer mapped, where the mappings can be seen
+		File maps = new File("/proc/self/maps");
+		if (maps.canRead())
+			assertFalse(new String(Files.readAllBytes(maps.toPath())).contains(f.getPath()));
+	}
+
+	/** A register whose coupled containers are file-backed, in the scratch directory. */
+	@Test
+	public final void testRegister() {
+		try (QubitRegister qr = new QubitRegister(3)) {
+			qr.setMappedBits(2, scratch.getRoot());
+			assertEquals(scratch.getRoot(), qr.getScratchDir());
+			qr.doOp(new H(), 0);
+			qr.doOp(new CNOT(), 1, 0);
+			qr.doOp(new H(), 2);
+			qr.doOp(new Z(), 2);
+			assertTrue(scratch.getRoot().list().length > 0);
+			assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(Math.sqrt(0.5), 0, 0, Math.sqrt(0.5)),
+					qr.getAmps(0, 1)));
+			assertEquals(qr.measure(0), qr.measure(1));
+		}
+	}
+
+}
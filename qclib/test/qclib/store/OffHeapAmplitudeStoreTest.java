@@ -0,0 +1,93 @@
+package qclib.store;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import qclib.QubitRegister;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.util.QuantumUtil;
+
+public class OffHeapAmplitudeStoreTest {
+
+	private static final double[] W = {0.6, 0, 0, 0.8, 0, 0.8, 0.6, 0};
+
+	/** The buffer kernels, within a chunk and across chunks, agree with the dense store. */
+	@Test
+	public final void testKernels() {
+		final int n = 7;
+		AmplitudeStore d = new DoubleAmplitudeStore(n);
+		try (OffHeapAmplitudeStore o = new OffHeapAmplitudeStore(n, 3)) {
+			for (long i=0; i < d.size(); i++) {
+				d.set(i, (i % 7) - 3, (i % 5) - 2);
+				o.set(i, (i % 7) - 3, (i % 5) - 2);
+			}
+			long[] controls = {0, 0b10, 0b1000000, 0b1000010};
+			for (long cm : controls) {
+				for (int t=0; t < n; t++)
+					if ((cm & 1L<<t) == 0) {
+						d.applySingleQubit(t, W, cm);
+						o.applySingleQubit(t, W, cm);
+					}
+				long[] flips = {0b1, 0b101, 0b110000, 0b100101};
+				for (long f : flips) {
+					d.applyXor(f, cm & ~f);
+					o.applyXor(f, cm & ~f);
+				}
+				d.applyDiagonal(new int[] {5, 1}, new double[] {1, 0, 0, 1, -1, 0, 0, -1}, cm & ~0b100010);
+				o.applyDiagonal(new int[] {5, 1}, new double[] {1, 0, 0, 1, -1, 0, 0, -1}, cm & ~0b100010);
+				int[][] targets = { {2, 0}, {6, 3}, {4, 6, 0} };
+				for (int[] tb : targets) {
+					double[] mat = new double[2<<2*tb.length];
+					for (int e=0; e < mat.length; e++)
+						mat[e] = ((e % 5) - 2) * 0.25;
+					long tm = QuantumUtil.depositBitsLong((1<<tb.length)-1, tb);
+					d.applyMatrix(tb, mat, cm & ~tm);
+					o.applyMatrix(tb, mat, cm & ~tm);
+				}
+			}
+			AmplitudeStore c = o.copy();
+			for (long i=0; i < d.size(); i++) {
+				assertEquals(d.getReal(i), o.getReal(i), QuantumUtil.EPSILON);
+				assertEquals(d.getImaginary(i), o.getImaginary(i), QuantumUtil.EPSILON);
+				assertEquals(d.getReal(i), c.getReal(i), QuantumUtil.EPSILON);
+			}
+			c.close();
+			assertTrue(((OffHeapAmplitudeStore)c).isClosed());
+		}
+	}
+
+	/** Direct buffers are freed right away on this JVM. */
+	@Test
+	public final void testFree() {
+		assertTrue(BufferAmplitudeStore.free(ByteBuffer.allocateDirect(1<<10)));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public final void testClosed() {
+		OffHeapAmplitudeStore o = new OffHeapAmplitudeStore(3);
+		o.close();
+		o.close();
+		o.applyXor(1, 0);
+	}
+
+	/** A register whose coupled containers live off the heap. */
+	@Test
+	public final void testRegister() {
+		try (QubitRegister qr = new QubitRegister(3)) {
+			qr.setOffHeapBits(2);
+			qr.doOp(new H(), 0);
+			qr.doOp(new CNOT(), 1, 0); // target first
+			qr.doOp(new CNOT(), 2, 1);
+			assertTrue(QuantumUtil.isApproxEqualVector(QuantumUtil.buildVector(Math.sqrt(0.5), 0, 0, 0, 0, 0, 0, Math.sqrt(0.5)),
+					qr.getAmps(0, 1, 2)));
+			boolean m = qr.measure(1);
+			assertEquals(m, qr.measure(0));
+			assertEquals(m, qr.measure(2));
+		}
+	}
+
+}
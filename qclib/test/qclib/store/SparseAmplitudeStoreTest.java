@@ -0,0 +1,109 @@
+package qclib.store;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import qclib.ControlledOperator;
+import qclib.Operator;
+import qclib.PermutationOperator;
+import qclib.op.CNOT;
+import qclib.op.H;
+import qclib.op.PhaseGate;
+import qclib.op.V;
+import qclib.op.X;
+import qclib.util.QuantumUtil;
+
+public class SparseAmplitudeStoreTest {
+
+	private static void assertSame(AmplitudeStore expected, AmplitudeStore s) {
+		for (long i=0; i < expected.size(); i++) {
+			assertEquals("re "+i, expected.getReal(i), s.getReal(i), QuantumUtil.EPSILON);
+			assertEquals("im "+i, expected.getImaginary(i), s.getImaginary(i), QuantumUtil.EPSILON);
+		}
+	}
+
+	/** Every kernel agrees with the dense store. */
+	@Test
+	public final void testKernels() {
+		AmplitudeStore d = new DoubleAmplitudeStore(5);
+		SparseAmplitudeStore s = new SparseAmplitudeStore(5);
+		s.setPruneThreshold(0);
+		d.set(3, 0.6, 0);
+		s.set(3, 0.6, 0);
+		d.set(20, 0, 0.8);
+		s.set(20, 0, 0.8);
+		Operator[] ops = new Operator[] {new H(), new V(), new PhaseGate(0.3), new CNOT(), new X(),
+				new ControlledOperator(new X(), 0, 1), new PermutationOperator(2, new int[] {1, 2, 0, 3}),
+				new H().extend(2, 1)};
+		for (int k=0; k < 5; k++)
+			for (Operator op : ops) {
+				int[] targets = new int[op.getArity()];
+				for (int j=0; j < targets.length; j++)
+					targets[j] = (k + 2*j) % 5;
+				op.applyTo(d, targets);
+				op.applyTo(s, targets);
+				assertSame(d, s);
+			}
+		double[] mat = new double[32];
+		for (int e=0; e < mat.length; e++)
+			mat[e] = (e % 5) - 2;
+		d.applyMatrix(new int[] {4, 1}, mat, 0b100);
+		s.applyMatrix(new int[] {4, 1}, mat, 0b100);
+		assertSame(d, s);
+		assertEquals(d.sumSquares(0b10, 0), s.sumSquares(0b10, 0), QuantumUtil.EPSILON);
+		d.setZero(0b10, 0);
+		s.setZero(0b10, 0);
+		d.scale(0, 0, 3);
+		s.scale(0, 0, 3);
+		assertSame(d, s);
+		int[] neworder = {2, 4, 0, 1, 3};
+		assertSame(d.reorderBits(neworder), s.reorderBits(neworder));
+		assertSame(d, s.copy());
+	}
+
+	/** Only the non-zero amplitudes are stored, far past what a dense store could hold. */
+	@Test
+	public final void testFewNonZero() {
+		SparseAmplitudeStore s = new SparseAmplitudeStore(40);
+		s.set(0, 1, 0);
+		new H().applyTo(s, 39);
+		new H().applyTo(s, 7);
+		new CNOT().applyTo(s, 20, 39);
+		new X().applyTo(s, 0);
+		assertEquals(4, s.nonZeroCount());
+		assertEquals(0.5, s.getReal(1L<<39 | 1L<<20 | 1L<<7 | 1), QuantumUtil.EPSILON);
+		// the two halves cancel and are pruned
+		new H().applyTo(s, 7);
+		assertEquals(2, s.nonZeroCount());
+		s = (SparseAmplitudeStore)s.reorderBits(rotate(40));
+		assertEquals(Math.sqrt(0.5), s.getReal(1L<<38 | 1L<<19 | 1L<<39), QuantumUtil.EPSILON);
+		assertEquals(1, s.sumSquares(1L<<39, 1L<<39), QuantumUtil.EPSILON);
+	}
+
+	/** New bit j is old bit j+1, and new bit 39 is old bit 0. */
+	private static int[] rotate(int n) {
+		int[] ret = new int[n];
+		for (int j=0; j < n; j++)
+			ret[j] = (j+1) % n;
+		return ret;
+	}
+
+	/** Removal keeps every other entry reachable. */
+	@Test
+	public final void testMapRemove() {
+		AmplitudeMap m = new AmplitudeMap(4);
+		for (long k=0; k < 1000; k++)
+			m.put(k * 0x10001L, k, -k);
+		for (long k=0; k < 1000; k += 3)
+			m.remove(k * 0x10001L);
+		m.prune(10*10);
+		for (long k=0; k < 1000; k++) {
+			int s = m.find(k * 0x10001L);
+			assertEquals(k % 3 != 0 && 2*k*k > 10*10, s >= 0);
+			if (s >= 0)
+				assertEquals(-k, m.imAt(s), 0);
+		}
+	}
+
+}
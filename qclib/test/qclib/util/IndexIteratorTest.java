@@ -0,0 +1,68 @@
+package qclib.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IndexIteratorTest {
+
+	/** Same blocks, in order, as depositing the target bits one at a time. */
+	@Test
+	public final void testBlocks() {
+		int[][] targets = { {}, {0}, {2}, {2, 0}, {1, 3, 0}, {4, 0, 2, 3, 1} };
+		for (int[] tb : targets) {
+			final int n = 5;
+			IndexIterator it = new IndexIterator(n, tb);
+			assertEquals(1L<<tb.length, it.blockSize());
+			assertEquals(1L<<(n-tb.length), it.numBlocks());
+			boolean[] seen = new boolean[1<<n];
+			long b = 0;
+			while (it.nextBlock()) {
+				assertEquals(QuantumUtil.depositMask(b, it.getFreeMask()), it.base());
+				for (int i=0; i < it.blockSize(); i++) {
+					long idx = it.next();
+					assertEquals(it.base() | QuantumUtil.depositBits(i, tb), idx);
+					assertFalse(seen[(int)idx]);
+					seen[(int)idx] = true;
+				}
+				b++;
+			}
+			assertEquals(it.numBlocks(), b);
+			assertFalse(it.nextBlock());
+		}
+	}
+
+	@Test
+	public final void testSeekAndRewind() {
+		IndexIterator it = new IndexIterator(4, 1, 3);
+		it.seekBlock(2);
+		assertEquals(0b0100, it.base());
+		assertEquals(0b0100, it.next());
+		assertEquals(0b0110, it.next());
+		it.rewindBlock();
+		assertEquals(0b0100, it.next());
+		assertTrue(it.nextBlock());
+		assertEquals(0b0101, it.base());
+		assertFalse(it.nextBlock());
+		it.reset();
+		assertTrue(it.nextBlock());
+		assertEquals(0, it.base());
+	}
+
+	/** Indices beyond 32 bits. */
+	@Test
+	public final void testLong() {
+		IndexIterator it = new IndexIterator(40, 39, 0);
+		it.seekBlock(it.numBlocks()-1);
+		assertEquals(((1L<<40)-1) & ~(1L<<39) & ~1L, it.base());
+		it.next();
+		assertEquals((1L<<40)-2, it.next());
+		assertEquals(it.base() | 1, it.next());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void testDuplicateTarget() {
+		new IndexIterator(3, 1, 1);
+	}
+
+}
@@ -262,5 +262,27 @@ public class QuantumUtilTest {
 					QuantumUtil.isApproxEqualVector(v[t], ve[t]) );
 		}
 	}
+	
+	@Test
+	public final void testDepositMask() {
+		final int mask = 0b101101;
+		// the c-th subset of mask, in the order of the enumeration sub = (sub - mask) & mask
+		int sub = 0;
+		for (int c=0; c < 1<<Integer.bitCount(mask); c++) {
+			assertEquals(sub, QuantumUtil.depositMask(c, mask));
+			sub = (sub - mask) & mask;
+		}
+		assertEquals(0b0100, QuantumUtil.depositBits(0b01, new int[] {2,0}));
+		assertEquals(0b01, QuantumUtil.extractBits(0b0110, new int[] {2,0}));
+	}
+
+	@Test
+	public final void testExtractMask() {
+		assertEquals(0b1000, QuantumUtil.depositMask(0b10L, 0b1010L));
+		assertEquals(0b10, QuantumUtil.extractMask(0b1000, 0b1010));
+		long wide = 0xF0F0_0000_0F0FL;
+		for (long x=0; x < 1<<16; x += 37)
+			assertEquals(x, QuantumUtil.extractMask(QuantumUtil.depositMask(x, wide), wide));
+	}
 
 }
@@ -0,0 +1,35 @@
+package qclib.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SplitMix64Test {
+
+	/** Matches the reference outputs, and doubleAt matches the stream. */
+	@Test
+	public final void testStream() {
+		SplitMix64 r = new SplitMix64(0);
+		assertEquals(0xe220a8397b1dcdafL, r.nextLong());
+		assertEquals(0x6e789e6aa1b965f4L, r.nextLong());
+		SplitMix64 s = new SplitMix64(42);
+		for (int k=0; k < 100; k++) {
+			double d = s.nextDouble();
+			assertTrue(d >= 0 && d < 1);
+			assertEquals(d, SplitMix64.doubleAt(42, k), 0);
+		}
+	}
+
+	/** Splitting is deterministic, and the children differ from each other and the parent. */
+	@Test
+	public final void testSplit() {
+		SplitMix64 a = new SplitMix64(7), b = new SplitMix64(7);
+		RandomSource a1 = a.split(), a2 = a.split(), b1 = b.split();
+		for (int k=0; k < 10; k++)
+			assertEquals(a1.nextLong(), b1.nextLong());
+		assertNotEquals(a1.nextLong(), a2.nextLong());
+		b.split();
+		assertEquals(a.nextLong(), b.nextLong()); // both split twice
+	}
+
+}